@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.Backend;
+import csulb.cecs323.app.PersistenceManager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens the CustomerOrders persistence unit against a fresh in-memory database, so that the
+ * benchmarks measure the application and the database rather than the disk.
+ * <p>
+ * The database is Derby, or, to compare backends, H2 in its MySQL compatibility mode, standing in
+ * for a MySQL server: EclipseLink generates MySQL SQL for it, the way it would for the real thing.
+ * H2 is only on the classpath of the benchmarks and the tests (see TestDatabase, which does the
+ * same for them).  The Connector/J tuning in Backend cannot be
+ * measured this way, since it needs a real server.
+ * </p>
+ */
+final class BenchmarkDatabase {
+   /** The embedded Derby backend. */
+   static final String DERBY = "derby";
+
+   /** The MySQL backend, against H2 in MySQL mode. */
+   static final String MYSQL_STAND_IN = "h2-mysql";
+
+   private BenchmarkDatabase() {}
+
+   /**
+    * Open a new, empty, in-memory database.
+    * @param name       The name of the database; use a different one for each benchmark.
+    * @param overrides  Any further persistence unit properties, for the mode being compared.
+    * @return           A PersistenceManager over the new database.
+    */
+   static PersistenceManager open(String name, Map<String, ?> overrides) {
+      return open(name, DERBY, overrides);
+   }
+
+   /**
+    * Open a new, empty, in-memory database of the given kind.
+    * @param name       The name of the database; use a different one for each benchmark.
+    * @param backend    DERBY or MYSQL_STAND_IN.
+    * @param overrides  Any further persistence unit properties, for the mode being compared.
+    * @return           A PersistenceManager over the new database.
+    */
+   static PersistenceManager open(String name, String backend, Map<String, ?> overrides) {
+      // Logging every entity would swamp whatever we are trying to measure.
+      Logger.getLogger("csulb.cecs323").setLevel(Level.WARNING);
+      Map<String, Object> properties = new HashMap<>();
+      if (backend.equals(DERBY)) {
+         properties.put(Backend.BACKEND_PROPERTY, "derby");
+         properties.put("javax.persistence.jdbc.url", "jdbc:derby:memory:" + name + ";create=true");
+      } else if (backend.equals(MYSQL_STAND_IN)) {
+         properties.put(Backend.BACKEND_PROPERTY, "mysql");
+         properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+         properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:" + name + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+      } else {
+         throw new IllegalArgumentException("Unknown benchmark backend: " + backend);
+      }
+      properties.put("eclipselink.logging.level", "OFF");
+      properties.putAll(overrides);
+      return PersistenceManager.create(properties);
+   }
+
+   /**
+    * Open a new, empty, in-memory database with the settings from persistence.xml.
+    * @param name       The name of the database; use a different one for each benchmark.
+    * @return           A PersistenceManager over the new database.
+    */
+   static PersistenceManager open(String name) {
+      return open(name, new HashMap<>());
+   }
+}
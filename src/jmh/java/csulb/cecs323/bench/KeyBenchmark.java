@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.model.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * equals and hashCode of the primary key classes, which the persistence context and every
+ * HashMap of keys lean on.  Each key is compared with an equal key that is a different object,
+ * which is what a lookup by key does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBenchmark {
+   private static final int KEYS = 1024;
+
+   private final Orders_pk[] orderKeys = new Orders_pk[KEYS];
+   private final Orders_pk[] orderKeyCopies = new Orders_pk[KEYS];
+   private final Order_lines_pk[] lineKeys = new Order_lines_pk[KEYS];
+   private final Order_lines_pk[] lineKeyCopies = new Order_lines_pk[KEYS];
+   private final Map<Order_lines_pk, Integer> lineMap = new HashMap<>();
+   private int next;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      LocalDateTime start = LocalDateTime.of(2021, 1, 1, 0, 0);
+      for (int i = 0; i < KEYS; i++) {
+         orderKeys[i] = new Orders_pk(i % 100, start.plusMinutes(i));
+         orderKeyCopies[i] = new Orders_pk(i % 100, start.plusMinutes(i));
+         lineKeys[i] = new Order_lines_pk(orderKeys[i], String.format("%012d", i));
+         lineKeyCopies[i] = new Order_lines_pk(orderKeyCopies[i], String.format("%012d", i));
+         lineMap.put(lineKeys[i], i);
+      }
+   }
+
+   private int nextIndex() {
+      next = (next + 1) & (KEYS - 1);
+      return next;
+   }
+
+   @Benchmark
+   public boolean ordersPkEquals() {
+      int i = nextIndex();
+      return orderKeys[i].equals(orderKeyCopies[i]);
+   }
+
+   @Benchmark
+   public int ordersPkHashCode() {
+      return orderKeyCopies[nextIndex()].hashCode();
+   }
+
+   @Benchmark
+   public boolean orderLinesPkEquals() {
+      int i = nextIndex();
+      return lineKeys[i].equals(lineKeyCopies[i]);
+   }
+
+   @Benchmark
+   public int orderLinesPkHashCode() {
+      return lineKeyCopies[nextIndex()].hashCode();
+   }
+
+   @Benchmark
+   public Integer orderLinesPkHashMapGet() {
+      return lineMap.get(lineKeyCopies[nextIndex()]);
+   }
+}
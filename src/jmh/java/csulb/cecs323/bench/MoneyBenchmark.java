@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.model.Money;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding up LINES lines of price times quantity: with doubles, the way prices used to be kept;
+ * with long cents and one Money.cannotOverflow check at the end, the way QuoteEngine adds them
+ * up now, keeping the OR of the prices as they are loaded so that the loop only ORs the
+ * quantities; with long cents through Money's checked static methods, which it falls back to;
+ * and with BigDecimal, the usual way to be exact, for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoneyBenchmark {
+   private static final int LINES = 1024;
+
+   private final double[] doublePrices = new double[LINES];
+   private final long[] centPrices = new long[LINES];
+   private final BigDecimal[] decimalPrices = new BigDecimal[LINES];
+   private final int[] quantities = new int[LINES];
+   /** The OR of centPrices, as QuoteEngine keeps it. */
+   private long centsBits;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      for (int i = 0; i < LINES; i++) {
+         centPrices[i] = 99 + 100L * (i % 50) + i % 7;
+         doublePrices[i] = centPrices[i] / 100.0;
+         decimalPrices[i] = BigDecimal.valueOf(centPrices[i], Money.SCALE);
+         quantities[i] = 1 + i % 5;
+         centsBits |= centPrices[i];
+      }
+   }
+
+   @Benchmark
+   public double doubles() {
+      double total = 0;
+      for (int i = 0; i < LINES; i++) {
+         total += doublePrices[i] * quantities[i];
+      }
+      return total;
+   }
+
+   @Benchmark
+   public long cents() {
+      long total = 0;
+      int quantityBits = 0;
+      for (int i = 0; i < LINES; i++) {
+         total += centPrices[i] * quantities[i];
+         quantityBits |= quantities[i];
+      }
+      if (!Money.cannotOverflow(centsBits, quantityBits, LINES)) {
+         throw new ArithmeticException("The prices are too big to add up unchecked");
+      }
+      return total;
+   }
+
+   @Benchmark
+   public long checkedCents() {
+      long total = 0;
+      for (int i = 0; i < LINES; i++) {
+         total = Money.plus(total, Money.times(centPrices[i], quantities[i]));
+      }
+      return total;
+   }
+
+   @Benchmark
+   public BigDecimal bigDecimals() {
+      BigDecimal total = BigDecimal.ZERO;
+      for (int i = 0; i < LINES; i++) {
+         total = total.add(decimalPrices[i].multiply(BigDecimal.valueOf(quantities[i])));
+      }
+      return total;
+   }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.app.PersistenceManager;
+import csulb.cecs323.model.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Placing an order through OrderService: the stock decrement and the Orders and Order_lines
+ * INSERTs, all in one transaction.  Run with -t to see how it holds up with several threads.
+ * Runs against each backend that BenchmarkDatabase knows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderPlacementBenchmark {
+   private static final int CUSTOMERS = 1000;
+   private static final int PRODUCTS = 100;
+
+   @Param({BenchmarkDatabase.DERBY, BenchmarkDatabase.MYSQL_STAND_IN})
+   public String backend;
+
+   private PersistenceManager persistence;
+   private OrderService orderService;
+   private long[] customerIds;
+   private String[] upcs;
+   private final LocalDateTime start = LocalDateTime.of(2021, 1, 1, 0, 0);
+
+   /** Every order gets a different date, so that no two orders have the same key. */
+   private final AtomicLong orderNumber = new AtomicLong();
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      persistence = BenchmarkDatabase.open("orders", backend, new HashMap<>());
+      customerIds = new long[CUSTOMERS];
+      upcs = new String[PRODUCTS];
+      persistence.inTransaction(loader -> {
+         for (int i = 0; i < PRODUCTS; i++) {
+            upcs[i] = String.format("%012d", i);
+            loader.persist(new Products(upcs[i], "Product " + i, "JMH", Integer.toString(i), Money.of("9.99"),
+                    Integer.MAX_VALUE));
+         }
+         Customers[] customers = new Customers[CUSTOMERS];
+         for (int i = 0; i < CUSTOMERS; i++) {
+            customers[i] = new Customers("Customer", Integer.toString(i), "1250 Bellflower Blvd.", "90840", "5629854111");
+            loader.persist(customers[i]);
+         }
+         loader.flush();
+         for (int i = 0; i < CUSTOMERS; i++) {
+            customerIds[i] = customers[i].getCustomer_id();
+         }
+         return null;
+      });
+      orderService = new OrderService(persistence);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      persistence.close();
+   }
+
+   @Benchmark
+   public Orders placeOrder() {
+      long n = orderNumber.getAndIncrement();
+      return orderService.placeOrder(customerIds[(int) (n % CUSTOMERS)], "JMH", start.plusSeconds(n),
+              upcs[(int) (n % PRODUCTS)], 1);
+   }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.CustomerOrders;
+import csulb.cecs323.app.PersistenceManager;
+import csulb.cecs323.model.*;
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How fast CustomerOrders.createEntity writes a list of new products, for several list sizes,
+ * with and without JDBC batch writing.  The score is lists per second; multiply by listSize for
+ * rows per second.  Runs against each backend that BenchmarkDatabase knows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistBenchmark {
+   @Param({"10", "100", "1000"})
+   public int listSize;
+
+   /** The value of eclipselink.jdbc.batch-writing: JDBC batches the INSERTs, None does not. */
+   @Param({"JDBC", "None"})
+   public String batchWriting;
+
+   @Param({BenchmarkDatabase.DERBY, BenchmarkDatabase.MYSQL_STAND_IN})
+   public String backend;
+
+   private PersistenceManager persistence;
+   private EntityManager manager;
+   private CustomerOrders customerOrders;
+
+   /** Makes every UPC unique across invocations. */
+   private long nextUpc;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      persistence = BenchmarkDatabase.open("persist", backend,
+              Collections.singletonMap("eclipselink.jdbc.batch-writing", batchWriting));
+      manager = persistence.getFactory().createEntityManager();
+      customerOrders = new CustomerOrders(manager);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      manager.close();
+      persistence.close();
+   }
+
+   @Benchmark
+   public void createEntity() {
+      List<Products> products = new ArrayList<>(listSize);
+      for (int i = 0; i < listSize; i++) {
+         products.add(new Products(Long.toString(nextUpc++), "Benchmark product", "JMH", "1", Money.of("9.99"), 100));
+      }
+      EntityTransaction tx = manager.getTransaction();
+      tx.begin();
+      customerOrders.createEntity(products);
+      tx.commit();
+      manager.clear();
+   }
+}
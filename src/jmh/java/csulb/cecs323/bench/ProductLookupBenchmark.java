@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.CustomerOrders;
+import csulb.cecs323.app.PersistenceManager;
+import csulb.cecs323.app.ProductQueries;
+import csulb.cecs323.model.*;
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManager;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up a product by UPC: through the ProductCatalog cache in CustomerOrders.getProduct,
+ * and with a fresh EntityManager per lookup, which has only the shared (L2) cache, if that is on,
+ * to save it from going to the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProductLookupBenchmark {
+   /** The number of products in the catalog. */
+   private static final int PRODUCTS = 10_000;
+
+   /** Whether Products is kept in EclipseLink's shared cache. */
+   @Param({"true", "false"})
+   public String sharedCache;
+
+   private PersistenceManager persistence;
+   private EntityManager manager;
+   private CustomerOrders customerOrders;
+   private String[] upcs;
+   private int next;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      persistence = BenchmarkDatabase.open("lookup",
+              Collections.singletonMap("eclipselink.cache.shared.Products", sharedCache));
+      upcs = new String[PRODUCTS];
+      persistence.inTransaction(loader -> {
+         for (int i = 0; i < PRODUCTS; i++) {
+            upcs[i] = String.format("%012d", i);
+            loader.persist(new Products(upcs[i], "Product " + i, "JMH", Integer.toString(i), Money.of("9.99"), 100));
+         }
+         return null;
+      });
+      manager = persistence.getFactory().createEntityManager();
+      customerOrders = new CustomerOrders(manager);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      manager.close();
+      persistence.close();
+   }
+
+   /** The next UPC to look up, cycling through the whole catalog. */
+   private String nextUpc() {
+      String upc = upcs[next];
+      next = (next + 1) % upcs.length;
+      return upc;
+   }
+
+   @Benchmark
+   public Products getProduct() {
+      return customerOrders.getProduct(nextUpc());
+   }
+
+   @Benchmark
+   public Products findByUpcNewEntityManager() {
+      String upc = nextUpc();
+      return persistence.withEntityManager(lookup -> ProductQueries.findByUpc(lookup, upc));
+   }
+}
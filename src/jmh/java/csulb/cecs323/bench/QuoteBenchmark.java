@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.CustomerOrders;
+import csulb.cecs323.app.PersistenceManager;
+import csulb.cecs323.app.QuoteEngine;
+import csulb.cecs323.model.*;
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManager;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pricing a basket of BASKET_SIZE products: with the QuoteEngine's primitive arrays, on one
+ * thread and on four, and by looking each product up through the ProductCatalog cache in
+ * CustomerOrders.getProduct, which is the fastest way to it as an entity.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QuoteBenchmark {
+   /** The number of products in the catalog. */
+   private static final int PRODUCTS = 10_000;
+
+   /** The number of products in each basket. */
+   private static final int BASKET_SIZE = 5;
+
+   private PersistenceManager persistence;
+   private EntityManager manager;
+   private CustomerOrders customerOrders;
+   private QuoteEngine quotes;
+   private String[] upcs;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      persistence = BenchmarkDatabase.open("quote");
+      upcs = new String[PRODUCTS];
+      persistence.inTransaction(loader -> {
+         for (int i = 0; i < PRODUCTS; i++) {
+            upcs[i] = String.format("%012d", i);
+            loader.persist(new Products(upcs[i], "Product " + i, "JMH", Integer.toString(i),
+                    Money.ofCents(999 + 100 * (i % 10)), 100));
+         }
+         return null;
+      });
+      manager = persistence.getFactory().createEntityManager();
+      customerOrders = new CustomerOrders(manager);
+      quotes = new QuoteEngine(persistence, QuoteEngine.DEFAULT_REFRESH_INTERVAL);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      quotes.close();
+      manager.close();
+      persistence.close();
+   }
+
+   /** Each thread's basket, which moves through the catalog from one quote to the next. */
+   @State(Scope.Thread)
+   public static class Basket {
+      final String[] upcs = new String[BASKET_SIZE];
+      final int[] quantities = new int[BASKET_SIZE];
+      int next;
+
+      void fill(String[] catalog) {
+         for (int i = 0; i < BASKET_SIZE; i++) {
+            upcs[i] = catalog[next];
+            quantities[i] = 1 + i;
+            next = (next + 1) % catalog.length;
+         }
+      }
+   }
+
+   @Benchmark
+   public long quoteEngine(Basket basket) {
+      basket.fill(upcs);
+      return quotes.totalCents(basket.upcs, basket.quantities, BASKET_SIZE);
+   }
+
+   @Benchmark
+   @Threads(4)
+   public long quoteEngineFourThreads(Basket basket) {
+      basket.fill(upcs);
+      return quotes.totalCents(basket.upcs, basket.quantities, BASKET_SIZE);
+   }
+
+   @Benchmark
+   public long productCatalog(Basket basket) {
+      basket.fill(upcs);
+      long total = 0;
+      for (int i = 0; i < BASKET_SIZE; i++) {
+         total = Money.plus(total, Money.times(customerOrders.getProduct(basket.upcs[i]).getUnit_list_price_cents(),
+                 basket.quantities[i]));
+      }
+      return total;
+   }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.app.PersistenceManager;
+import csulb.cecs323.model.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start: the time from creating the PersistenceManager to the first order being committed,
+ * in a JVM that has done nothing else.  Each fork measures it once, so the score is the spread
+ * over the forks rather than over iterations of a warm JVM.
+ * <p>
+ * Compare a plain build with a statically woven one:
+ * <pre>
+ *    mvn -Pbenchmarks verify -Djmh.args=StartupBenchmark
+ *    mvn -Pbenchmarks,static-weave verify -Djmh.args=StartupBenchmark
+ * </pre>
+ * This does not include starting the JVM itself, which is what a class data sharing archive
+ * mostly saves; StartupProbe measures that from the command line.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+   @Benchmark
+   public Orders firstOrder() {
+      try (PersistenceManager persistence = BenchmarkDatabase.open("startup")) {
+         long customerId = persistence.inTransaction(manager -> {
+            manager.persist(new Products("000000000000", "Product 0", "JMH", "0", Money.of("9.99"), 1));
+            Customers customer = new Customers("Customer", "0", "1250 Bellflower Blvd.", "90840", "5629854111");
+            manager.persist(customer);
+            manager.flush();
+            return customer.getCustomer_id();
+         });
+         return new OrderService(persistence).placeOrder(customerId, "JMH", LocalDateTime.of(2021, 1, 1, 0, 0),
+                 "000000000000", 1);
+      }
+   }
+}
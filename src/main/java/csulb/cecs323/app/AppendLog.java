@@ -0,0 +1,473 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only log of records, each numbered with a sequence number one higher than
+ * the one before.  Owners of a log write what they are about to do to it first, and only act on
+ * it once it is durable; after a crash, they replay what the log holds past the last point that
+ * they know was acted on.
+ * <p>
+ * The log is a series of segment files in one directory, named for the log and the sequence
+ * number of their first record, e.g. inventory-00000000000000000001.log.  Each record is
+ * <pre>
+ *    int length of the payload, int CRC-32 of the sequence number and payload, long sequence number, payload
+ * </pre>
+ * A record that was only partly written when the process died fails its CRC, and it and anything
+ * after it is cut off the end of the log when the log is opened.
+ * </p>
+ * <p>
+ * Appending only copies the record into memory.  sync makes it durable with group commit: the
+ * first thread to sync writes out every record appended so far and forces them to the disk in one
+ * fsync, while the threads that come after it wait for it and are usually covered by it, so that
+ * many writers share the cost of each fsync.
+ * </p>
+ * <p>
+ * An AppendLog is thread safe.  If a write to the disk fails, the log refuses all further work,
+ * since what it holds is no longer known.
+ * </p>
+ */
+public class AppendLog implements Closeable {
+   /** Start a new segment once the current one is this big. */
+   public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+   /** length, CRC and sequence number. */
+   private static final int HEADER_BYTES = 16;
+
+   private static final String SUFFIX = ".log";
+
+   private static final Logger LOGGER = Logger.getLogger(AppendLog.class.getName());
+
+   private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+   private final Path directory;
+
+   private final String name;
+
+   private final long segmentBytes;
+
+   private final Metrics.Timer syncTimer;
+
+   private final Metrics.Counter syncedRecords;
+
+   /** The segments, by the sequence number of their first record.  The last one is being written. */
+   private final ConcurrentSkipListMap<Long, Path> segments = new ConcurrentSkipListMap<>();
+
+   /** Guards everything below, and is waited on by threads waiting for a sync. */
+   private final Object lock = new Object();
+
+   /** Records appended but not yet written to the disk. */
+   private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+
+   /** The buffer that the last sync wrote out, kept to be the next pending one. */
+   private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+
+   private long nextSequence;
+
+   private long durableSequence;
+
+   /** Whether a thread is writing and forcing records right now. */
+   private boolean syncing;
+
+   private IOException failure;
+
+   private boolean closed;
+
+   /** The segment being written.  Only the syncing thread touches it, outside the lock. */
+   private FileChannel channel;
+
+   /**
+    * Open a log, or create it if there is none, with segments of DEFAULT_SEGMENT_BYTES.
+    * @param directory     The directory to keep the segments in; it is created if need be.
+    * @param name          The name of the log, which starts the name of every segment.
+    * @return              The log, ready to append to after anything in it.
+    * @throws IOException  if the directory or the last segment cannot be read.
+    */
+   public static AppendLog open(Path directory, String name) throws IOException {
+      return new AppendLog(directory, name, DEFAULT_SEGMENT_BYTES);
+   }
+
+   /**
+    * @param directory     The directory to keep the segments in; it is created if need be.
+    * @param name          The name of the log, which starts the name of every segment.
+    * @param segmentBytes  Start a new segment once the current one is this big.
+    * @throws IOException  if the directory or the last segment cannot be read.
+    */
+   public AppendLog(Path directory, String name, long segmentBytes) throws IOException {
+      this.directory = directory;
+      this.name = name;
+      this.segmentBytes = segmentBytes;
+      this.syncTimer = Metrics.timer("customerorders_journal_sync_seconds",
+              "Time to write out and fsync a group of journal records", "journal", name);
+      this.syncedRecords = Metrics.counter("customerorders_journal_records_total",
+              "Journal records made durable", "journal", name);
+      Files.createDirectories(directory);
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, name + "-*" + SUFFIX)) {
+         for (Path file : files) {
+            String fileName = file.getFileName().toString();
+            String first = fileName.substring(name.length() + 1, fileName.length() - SUFFIX.length());
+            try {
+               segments.put(Long.parseLong(first), file);
+            } catch (NumberFormatException e) {
+               LOGGER.log(Level.WARNING, "Ignoring {0}, which is not a segment of the log", file);
+            }
+         }
+      }
+      long last = 0;
+      if (!segments.isEmpty()) {
+         Map.Entry<Long, Path> tail = segments.lastEntry();
+         long[] end = {tail.getKey() - 1};
+         long validBytes = scan(tail.getValue(), (sequence, payload) -> end[0] = sequence);
+         last = end[0];
+         channel = FileChannel.open(tail.getValue(), StandardOpenOption.WRITE);
+         if (channel.size() > validBytes) {
+            LOGGER.log(Level.WARNING, "Cutting {0} bytes of incomplete records off the end of {1}",
+                    new Object[]{channel.size() - validBytes, tail.getValue()});
+            channel.truncate(validBytes);
+            channel.force(true);
+            forceDirectory();
+         }
+         channel.position(validBytes);
+      }
+      nextSequence = last + 1;
+      durableSequence = last;
+   }
+
+   /**
+    * Make sure that the next record appended is numbered after the given one, for an owner that
+    * knows of records that are no longer in the log, e.g. because their segments were discarded.
+    * @param sequence  A sequence number that must not be used again.
+    */
+   public void advanceTo(long sequence) {
+      synchronized (lock) {
+         if (nextSequence <= sequence) {
+            if (durableSequence < nextSequence - 1) {
+               throw new IllegalStateException("Cannot skip ahead of records that are not durable yet");
+            }
+            nextSequence = sequence + 1;
+            durableSequence = sequence;
+         }
+      }
+   }
+
+   /**
+    * Add a record to the end of the log.  It is not durable until sync is called with its
+    * sequence number, or a higher one.
+    * @param payload  The content of the record.
+    * @return         The sequence number of the record.
+    * @throws UncheckedIOException   if an earlier write to the disk failed.
+    */
+   public long append(byte[] payload) {
+      synchronized (lock) {
+         checkUsable();
+         if (pending.remaining() < HEADER_BYTES + payload.length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                    pending.position() + HEADER_BYTES + payload.length));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+         }
+         long sequence = nextSequence++;
+         pending.putInt(payload.length).putInt(crc(sequence, payload)).putLong(sequence).put(payload);
+         return sequence;
+      }
+   }
+
+   /**
+    * Wait until the record with the given sequence number, and every one before it, is on the
+    * disk, writing them out if no other thread is already doing so.
+    * @param sequence  The sequence number returned by append.
+    * @throws UncheckedIOException   if the records could not be written.
+    */
+   public void sync(long sequence) {
+      ByteBuffer batch;
+      long first;
+      long last;
+      synchronized (lock) {
+         while (true) {
+            if (durableSequence >= sequence) {
+               return;
+            }
+            checkUsable();
+            if (!syncing) {
+               break;
+            }
+            try {
+               lock.wait();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new IllegalStateException("Interrupted while waiting for the " + name + " log", e);
+            }
+         }
+         // Lead this group: take everything appended so far, and let the appends carry on into
+         // the spare buffer while we write.
+         syncing = true;
+         batch = pending;
+         pending = spare;
+         first = durableSequence + 1;
+         last = nextSequence - 1;
+      }
+      IOException failed = null;
+      long start = syncTimer.start();
+      try {
+         batch.flip();
+         write(batch, first);
+      } catch (IOException e) {
+         failed = e;
+      } finally {
+         syncTimer.stop(start);
+      }
+      synchronized (lock) {
+         syncing = false;
+         batch.clear();
+         spare = batch;
+         if (failed == null) {
+            durableSequence = last;
+            syncedRecords.add(last - first + 1);
+         } else {
+            failure = failed;
+         }
+         lock.notifyAll();
+      }
+      if (failed != null) {
+         throw new UncheckedIOException("Could not write to the " + name + " log", failed);
+      }
+   }
+
+   /**
+    * Append a record and wait until it is durable.
+    * @param payload  The content of the record.
+    * @return         The sequence number of the record.
+    */
+   public long write(byte[] payload) {
+      long sequence = append(payload);
+      sync(sequence);
+      return sequence;
+   }
+
+   /** Write out a group of records, starting a new segment first if the current one is full. */
+   private void write(ByteBuffer batch, long first) throws IOException {
+      if (!batch.hasRemaining()) {
+         return;
+      }
+      if (channel == null || channel.position() >= segmentBytes) {
+         if (channel != null) {
+            channel.close();
+         }
+         Path file = directory.resolve(String.format("%s-%020d%s", name, first, SUFFIX));
+         channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+         segments.put(first, file);
+         // Forcing the segment does not force its name into the directory: without this, a crash
+         // could lose the whole segment, and every record in it that sync has acknowledged.
+         forceDirectory();
+      }
+      while (batch.hasRemaining()) {
+         channel.write(batch);
+      }
+      channel.force(false);
+   }
+
+   /**
+    * Force the directory to the disk, so that the segments created in it, and the sizes of those
+    * cut short, survive a crash.  Windows cannot open a directory to force it, and has no need to,
+    * since NTFS writes its metadata through its own journal.
+    */
+   private void forceDirectory() throws IOException {
+      if (WINDOWS) {
+         return;
+      }
+      try (FileChannel entries = FileChannel.open(directory, StandardOpenOption.READ)) {
+         entries.force(true);
+      }
+   }
+
+   /**
+    * Hand every record after the given sequence number to the handler, in order.  Meant for
+    * recovery, before anything new is appended.
+    * @param after         Skip the records up to and including this one.
+    * @param handler       What to do with each record.
+    * @throws IOException  if a segment cannot be read, or the handler throws it.
+    */
+   public void replay(long after, RecordHandler handler) throws IOException {
+      for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+         Long next = segments.higherKey(segment.getKey());
+         if (next != null && next - 1 <= after) {
+            continue;
+         }
+         scan(segment.getValue(), (sequence, payload) -> {
+            if (sequence > after) {
+               handler.handle(sequence, payload);
+            }
+         });
+      }
+   }
+
+   /**
+    * Delete the segments that hold nothing after the given sequence number, because their
+    * owner has acted on all of it.  The segment being written is always kept.
+    * @param sequence      The last sequence number that is no longer needed.
+    */
+   public void discardThrough(long sequence) {
+      for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+         Long next = segments.higherKey(segment.getKey());
+         if (next == null || next - 1 > sequence) {
+            return;
+         }
+         try {
+            Files.deleteIfExists(segment.getValue());
+            segments.remove(segment.getKey());
+         } catch (IOException e) {
+            // It will be tried again with the next checkpoint.
+            LOGGER.log(Level.WARNING, "Could not delete " + segment.getValue(), e);
+            return;
+         }
+      }
+   }
+
+   /** @return  The sequence number of the last record that is on the disk. */
+   public long getDurableSequence() {
+      synchronized (lock) {
+         return durableSequence;
+      }
+   }
+
+   /** @return  The sequence number of the last record appended, durable or not. */
+   public long getLastSequence() {
+      synchronized (lock) {
+         return nextSequence - 1;
+      }
+   }
+
+   /** @return  The name of the log. */
+   public String getName() {
+      return name;
+   }
+
+   /**
+    * Make everything appended so far durable, and close the segment.
+    * @throws IOException  if the last records cannot be written.
+    */
+   @Override
+   public void close() throws IOException {
+      long last;
+      boolean failed;
+      synchronized (lock) {
+         if (closed) {
+            return;
+         }
+         last = nextSequence - 1;
+         failed = failure != null;
+      }
+      try {
+         if (!failed) {
+            sync(last);
+         }
+      } catch (UncheckedIOException e) {
+         throw e.getCause();
+      } finally {
+         synchronized (lock) {
+            closed = true;
+            while (syncing) {
+               try {
+                  lock.wait();
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  break;
+               }
+            }
+            if (channel != null) {
+               channel.close();
+            }
+         }
+      }
+   }
+
+   private void checkUsable() {
+      if (closed) {
+         throw new IllegalStateException("The " + name + " log is closed");
+      }
+      if (failure != null) {
+         throw new UncheckedIOException("An earlier write to the " + name + " log failed", failure);
+      }
+   }
+
+   /**
+    * Read the records of one segment, stopping at the first one that is incomplete or damaged.
+    * @return  The number of bytes of whole records.
+    */
+   private static long scan(Path file, RecordHandler handler) throws IOException {
+      long valid = 0;
+      long size = Files.size(file);
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+         while (true) {
+            int length;
+            int crc;
+            long sequence;
+            byte[] payload;
+            try {
+               length = in.readInt();
+               crc = in.readInt();
+               sequence = in.readLong();
+               if (length < 0 || length > size - valid) {
+                  return valid;
+               }
+               payload = new byte[length];
+               in.readFully(payload);
+            } catch (EOFException e) {
+               return valid;
+            }
+            if (crc != crc(sequence, payload)) {
+               return valid;
+            }
+            handler.handle(sequence, payload);
+            valid += HEADER_BYTES + length;
+         }
+      }
+   }
+
+   private static int crc(long sequence, byte[] payload) {
+      CRC32 crc = new CRC32();
+      crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, sequence).array());
+      crc.update(payload);
+      return (int) crc.getValue();
+   }
+
+   /** Receives the records of the log, during replay. */
+   @FunctionalInterface
+   public interface RecordHandler {
+      /**
+       * @param sequence      The sequence number of the record.
+       * @param payload       The content of the record.
+       * @throws IOException  if the record cannot be handled, which ends the replay.
+       */
+      void handle(long sequence, byte[] payload) throws IOException;
+   }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * A java.util.logging Handler that hands each record to a background thread, so that the thread
+ * that logged it does not wait for the record to be formatted or written.
+ * <p>
+ * Records wait in a bounded ring buffer (an ArrayBlockingQueue is a ring over an array).  The
+ * writer thread takes them off in batches, formats and writes each batch through the target
+ * Handler, and flushes once per batch rather than once per record.  If the buffer is full,
+ * records below WARNING are dropped, and the number dropped is reported with the next batch;
+ * WARNING and SEVERE records wait for room instead, so that problems are never lost.
+ * </p>
+ * <p>
+ * Since formatting happens later, on another thread, log parameters should be values that do not
+ * change, not entities that the caller goes on to modify.  The formatter also must not ask a record
+ * for its source class or method: those are found from the stack of the thread that asks.
+ * </p>
+ * <p>
+ * -Dcustomerorders.logging=async sends all logging through one of these, in the structured format
+ * of StructuredFormatter; see installIfEnabled.
+ * </p>
+ */
+public class AsyncLogHandler extends Handler {
+   /** The system property that turns asynchronous logging on, when set to "async". */
+   public static final String LOGGING_PROPERTY = "customerorders.logging";
+
+   /** The number of records that the buffer holds by default. */
+   public static final int DEFAULT_CAPACITY = 8192;
+
+   /** The most records that the writer formats and writes between flushes. */
+   private static final int BATCH_SIZE = 512;
+
+   private final Handler target;
+
+   private final BlockingQueue<LogRecord> buffer;
+
+   private final Thread writer;
+
+   /** Records dropped since the last ones were reported. */
+   private final AtomicLong dropped = new AtomicLong();
+
+   private volatile boolean closed;
+
+   /**
+    * @param target     Formats and writes the records, on the writer thread.
+    * @param capacity   The number of records that can wait to be written.
+    */
+   public AsyncLogHandler(Handler target, int capacity) {
+      this.target = target;
+      this.buffer = new ArrayBlockingQueue<>(capacity);
+      this.writer = new Thread(this::drain, "async-log-writer");
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   /**
+    * Replace the handlers of the root logger with an AsyncLogHandler writing structured records to
+    * the console, if -Dcustomerorders.logging=async was given.  Calling this more than once does
+    * nothing more.
+    * @return  Whether asynchronous logging is on.
+    */
+   public static synchronized boolean installIfEnabled() {
+      Logger root = LogManager.getLogManager().getLogger("");
+      for (Handler handler : root.getHandlers()) {
+         if (handler instanceof AsyncLogHandler) {
+            return true;
+         }
+      }
+      if (!"async".equals(System.getProperty(LOGGING_PROPERTY))) {
+         return false;
+      }
+      Handler console = new ConsoleHandler();
+      console.setFormatter(new StructuredFormatter());
+      // Let the root logger's level decide what is logged.
+      console.setLevel(Level.ALL);
+      AsyncLogHandler async = new AsyncLogHandler(console, DEFAULT_CAPACITY);
+      for (Handler handler : root.getHandlers()) {
+         root.removeHandler(handler);
+         handler.close();
+      }
+      root.addHandler(async);
+      // Write out what is still buffered when the JVM exits.
+      Runtime.getRuntime().addShutdownHook(new Thread(async::close));
+      return true;
+   }
+
+   @Override
+   public void publish(LogRecord record) {
+      if (closed || !isLoggable(record)) {
+         return;
+      }
+      if (buffer.offer(record)) {
+         return;
+      }
+      if (record.getLevel().intValue() < Level.WARNING.intValue()) {
+         dropped.incrementAndGet();
+         return;
+      }
+      try {
+         buffer.put(record);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         dropped.incrementAndGet();
+      }
+   }
+
+   /** The writer thread: write batches of records until closed and empty. */
+   private void drain() {
+      List<LogRecord> batch = new ArrayList<>(BATCH_SIZE);
+      while (!closed || !buffer.isEmpty()) {
+         try {
+            LogRecord first = buffer.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) {
+               continue;
+            }
+            batch.add(first);
+            buffer.drainTo(batch, BATCH_SIZE - 1);
+            write(batch);
+            batch.clear();
+         } catch (InterruptedException e) {
+            // close() interrupts us; go round again to write whatever is left.
+         } catch (RuntimeException e) {
+            reportError("Could not write log records", e, ErrorManager.WRITE_FAILURE);
+            batch.clear();
+         }
+      }
+   }
+
+   private void write(List<LogRecord> batch) {
+      long lost = dropped.getAndSet(0);
+      if (lost > 0) {
+         LogRecord warning = new LogRecord(Level.WARNING, "Log buffer full, dropped {0} records");
+         warning.setParameters(new Object[]{lost});
+         warning.setLoggerName(AsyncLogHandler.class.getName());
+         target.publish(warning);
+      }
+      for (LogRecord record : batch) {
+         target.publish(record);
+      }
+      target.flush();
+   }
+
+   @Override
+   public void flush() {
+      // The writer flushes after every batch.
+   }
+
+   /** Write out the records still in the buffer, then close the target. */
+   @Override
+   public void close() {
+      if (closed) {
+         return;
+      }
+      closed = true;
+      writer.interrupt();
+      try {
+         writer.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      target.close();
+   }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The database that the persistence unit runs against, and the settings that make it go fast.
+ * persistence.xml is set up for embedded Derby; each backend overrides what it needs to.
+ * <ul>
+ *    <li>DERBY (the default) is the embedded database.  Derby keeps a cache of database pages in
+ *    the JVM heap, 1000 pages by default; we make it bigger, so that the indexes of the hot tables
+ *    stay in memory.</li>
+ *    <li>MYSQL talks to a MySQL server with Connector/J.  Connector/J sends a JDBC batch as one
+ *    statement per row unless rewriteBatchedStatements is on, which throws away most of what
+ *    batch writing buys us; with it, a batch of INSERTs goes as one multi-row INSERT.  It also
+ *    prepares statements on the server, and keeps them, so that the server parses each statement
+ *    once per connection rather than once per execution.  And it reads the whole result of a
+ *    query into memory unless useCursorFetch is on; with it, a query's fetch size, for instance
+ *    OrderLinesExporter's, is the number of rows that come over at a time.</li>
+ * </ul>
+ * The backend is chosen with -Dcustomerorders.backend=mysql, or the environment variable
+ * CUSTOMERORDERS_BACKEND; the system property wins.  Point the MySQL backend at a server with
+ * -Djavax.persistence.jdbc.url=..., and the user and password properties; the tuning is added
+ * to whatever URL it is given, unless the URL already sets it.
+ */
+public enum Backend {
+   DERBY(RuntimeProfile.map()) {
+      @Override
+      void tune(Map<String, Object> properties) {
+         // Derby reads this when the engine boots, so it has no effect on a database that this JVM
+         // has already opened.
+         if (System.getProperty(DERBY_PAGE_CACHE_PROPERTY) == null) {
+            System.setProperty(DERBY_PAGE_CACHE_PROPERTY, Integer.toString(DERBY_PAGE_CACHE_SIZE));
+         }
+      }
+   },
+
+   MYSQL(RuntimeProfile.map("eclipselink.target-database", "MySQL",
+           "javax.persistence.jdbc.driver", "com.mysql.cj.jdbc.Driver",
+           "javax.persistence.jdbc.url", "jdbc:mysql://localhost:3306/CustomerOrders")) {
+      @Override
+      void tune(Map<String, Object> properties) {
+         Object url = properties.get(URL_PROPERTY);
+         if (url == null || !url.toString().startsWith("jdbc:mysql:")) {
+            // Not Connector/J, for instance a MySQL compatible database of some other kind.
+            return;
+         }
+         StringBuilder tuned = new StringBuilder(url.toString());
+         String lowerCase = tuned.toString().toLowerCase(Locale.ROOT);
+         for (int i = 0; i < MYSQL_TUNING.length; i += 2) {
+            if (!lowerCase.contains(MYSQL_TUNING[i].toLowerCase(Locale.ROOT) + "=")) {
+               tuned.append(tuned.indexOf("?") < 0 ? '?' : '&').append(MYSQL_TUNING[i]).append('=')
+                       .append(MYSQL_TUNING[i + 1]);
+            }
+         }
+         properties.put(URL_PROPERTY, tuned.toString());
+      }
+   };
+
+   /** The system property that chooses the backend. */
+   public static final String BACKEND_PROPERTY = "customerorders.backend";
+
+   /** The environment variable that chooses the backend if the system property is not set. */
+   public static final String BACKEND_ENVIRONMENT = "CUSTOMERORDERS_BACKEND";
+
+   /** The Derby system property for the number of pages that it caches. */
+   public static final String DERBY_PAGE_CACHE_PROPERTY = "derby.storage.pageCacheSize";
+
+   /** The pages that Derby caches unless told otherwise: 16 MB of 4 KB pages. */
+   public static final int DERBY_PAGE_CACHE_SIZE = 4000;
+
+   private static final String URL_PROPERTY = "javax.persistence.jdbc.url";
+
+   /** The Connector/J properties that we add to the URL, each followed by its value. */
+   private static final String[] MYSQL_TUNING = {
+           "serverTimezone", "UTC",
+           "rewriteBatchedStatements", "true",
+           "useServerPrepStmts", "true",
+           "cachePrepStmts", "true",
+           "prepStmtCacheSize", "250",
+           "prepStmtCacheSqlLimit", "2048",
+           "useCursorFetch", "true"
+   };
+
+   private final Map<String, String> properties;
+
+   Backend(Map<String, String> properties) {
+      this.properties = properties;
+   }
+
+   /**
+    * @return  The backend chosen by the system property or the environment, or DERBY if neither is set.
+    */
+   public static Backend current() {
+      String name = System.getProperty(BACKEND_PROPERTY, System.getenv(BACKEND_ENVIRONMENT));
+      return name == null ? DERBY : named(name);
+   }
+
+   /**
+    * @param name    The name of a backend, in any case.
+    * @return        The backend.
+    * @throws IllegalArgumentException   if there is no backend by that name.
+    */
+   public static Backend named(String name) {
+      try {
+         return valueOf(name.trim().toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+         throw new IllegalArgumentException(BACKEND_PROPERTY + " must be derby or mysql: " + name);
+      }
+   }
+
+   /** @return  The persistence unit properties that this backend overrides. */
+   public Map<String, String> getProperties() {
+      return properties;
+   }
+
+   /**
+    * Apply the tuning for this backend to the final persistence unit properties, after the
+    * profile, the system properties and the overrides have all had their say.
+    * @param properties  The properties that the factory is about to be created with.
+    */
+   abstract void tune(Map<String, Object> properties);
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The products that a customer wants to order, before the order is placed.  OrderService turns a
+ * basket into one Orders with an Order_lines for each product in it.
+ * <p>
+ * The products are kept in order by UPC, so that every order takes its stock row locks in the
+ * same order, and two orders for the same products wait on each other instead of deadlocking.
+ * </p>
+ */
+public class Basket {
+   private final long customerId;
+   private final String soldBy;
+   private final LocalDateTime orderDate;
+
+   /** The quantity of each product, by UPC. */
+   private final SortedMap<String, Integer> quantities = new TreeMap<>();
+
+   /**
+    * Start an empty basket.
+    * @param customerId    The customer placing the order.
+    * @param soldBy        The sales associate taking the order.
+    * @param orderDate     When the order is placed.
+    */
+   public Basket(long customerId, String soldBy, LocalDateTime orderDate) {
+      this.customerId = customerId;
+      this.soldBy = soldBy;
+      this.orderDate = orderDate;
+   }
+
+   /**
+    * Put a quantity of a product into the basket.  Adding a product that is already in the basket
+    * adds to its quantity.
+    * @param upc        The product.
+    * @param quantity   How many of it, at least 1.
+    * @return           This basket, so that calls can be chained.
+    */
+   public Basket add(String upc, int quantity) {
+      if (quantity < 1) {
+         throw new IllegalArgumentException("Quantity must be at least 1: " + quantity);
+      }
+      quantities.merge(upc, quantity, Integer::sum);
+      return this;
+   }
+
+   public long getCustomerId() {
+      return customerId;
+   }
+
+   public String getSoldBy() {
+      return soldBy;
+   }
+
+   public LocalDateTime getOrderDate() {
+      return orderDate;
+   }
+
+   /**
+    * @return  The quantity of each product in the basket, in order by UPC.
+    */
+   public Map<String, Integer> getQuantities() {
+      return Collections.unmodifiableMap(quantities);
+   }
+
+   /**
+    * @return  true if nothing has been put in the basket.
+    */
+   public boolean isEmpty() {
+      return quantities.isEmpty();
+   }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persists large numbers of entities in chunks.  After every chunk the persistence context is
+ * flushed, so that EclipseLink can send the pending INSERTs to the database as one JDBC batch
+ * (see eclipselink.jdbc.batch-writing in persistence.xml), and optionally cleared, so that the
+ * persistence context does not keep growing with every row that we load.
+ * <p>
+ * The chunk size can be chosen per entity type.  Wide rows with relationships (Order_lines) do
+ * better with smaller chunks than narrow rows such as Products.
+ * </p>
+ */
+public class BulkPersister {
+   /** Chunk size used for any entity type that has not been given one of its own. */
+   public static final int DEFAULT_CHUNK_SIZE = 500;
+
+   private static final Logger LOGGER = Logger.getLogger(BulkPersister.class.getName());
+
+   private static final Metrics.Timer PERSIST = Metrics.timer("customerorders_persist_seconds",
+           "Time to persist and flush a collection of entities");
+
+   private static final Metrics.Timer FLUSH = Metrics.timer("customerorders_flush_seconds",
+           "Time to flush one chunk of persisted entities");
+
+   private static final Metrics.Timer COMMIT = Metrics.timer("customerorders_commit_seconds",
+           "Time to commit a unit of work");
+
+   /** The EntityManager that all of the entities are persisted through. */
+   private final EntityManager entityManager;
+
+   /** Chunk size for each entity type that has been configured explicitly. */
+   private final Map<Class<?>, Integer> chunkSizes = new HashMap<>();
+
+   /** Chunk size for the entity types that are not in chunkSizes. */
+   private int defaultChunkSize = DEFAULT_CHUNK_SIZE;
+
+   /** Whether to detach everything after each flush to keep memory use flat. */
+   private boolean clearAfterFlush = true;
+
+   /**
+    * Create a BulkPersister with the default chunk sizes for the entities in csulb.cecs323.model.
+    * @param manager    The EntityManager that we will persist through.
+    */
+   public BulkPersister(EntityManager manager) {
+      this.entityManager = manager;
+      chunkSizes.put(Products.class, 1000);
+      chunkSizes.put(Customers.class, 1000);
+      chunkSizes.put(Orders.class, 500);
+      chunkSizes.put(Order_lines.class, 250);
+   }
+
+   /**
+    * Set the number of entities of the given type to persist between flushes.
+    * @param type       The entity class.
+    * @param size       The number of entities per chunk, must be at least 1.
+    * @return           This BulkPersister, so that calls can be chained.
+    */
+   public BulkPersister withChunkSize(Class<?> type, int size) {
+      if (size < 1) {
+         throw new IllegalArgumentException("Chunk size must be at least 1: " + size);
+      }
+      chunkSizes.put(type, size);
+      return this;
+   }
+
+   /**
+    * Set the chunk size for any entity type that has not been given one with withChunkSize.
+    * @param size       The number of entities per chunk, must be at least 1.
+    * @return           This BulkPersister, so that calls can be chained.
+    */
+   public BulkPersister withDefaultChunkSize(int size) {
+      if (size < 1) {
+         throw new IllegalArgumentException("Chunk size must be at least 1: " + size);
+      }
+      this.defaultChunkSize = size;
+      return this;
+   }
+
+   /**
+    * Choose whether the persistence context is cleared after each flush.  Clearing keeps memory
+    * flat, but it detaches every entity, so turn it off if the caller still needs to change the
+    * entities it just persisted within the same transaction.
+    * @param clear      true to clear after every flush.
+    * @return           This BulkPersister, so that calls can be chained.
+    */
+   public BulkPersister clearAfterFlush(boolean clear) {
+      this.clearAfterFlush = clear;
+      return this;
+   }
+
+   /**
+    * The number of entities of the given type that are persisted between flushes.
+    * @param type       The entity class.
+    * @return           The chunk size for that class.
+    */
+   public int chunkSizeFor(Class<?> type) {
+      Integer size = chunkSizes.get(type);
+      return size == null ? defaultChunkSize : size;
+   }
+
+   /**
+    * Persist the entities within the transaction that the caller already has open.  The
+    * persistence context is flushed (and cleared, if so configured) after every chunk and
+    * once more at the end.
+    * @param entities   The entities to persist.
+    * @return           The number of entities persisted.
+    */
+   public long persistAll(Iterable<?> entities) {
+      long start = PERSIST.start();
+      long count = 0;
+      int pending = 0;
+      for (Object next : entities) {
+         entityManager.persist(next);
+         count++;
+         if (++pending >= chunkSizeFor(next.getClass())) {
+            flushChunk();
+            pending = 0;
+         }
+      }
+      if (pending > 0) {
+         flushChunk();
+      }
+      PERSIST.stop(start);
+      return count;
+   }
+
+   /**
+    * Persist the entities, committing one transaction per chunk.  Use this for loads that are
+    * too big for a single transaction.  If a chunk fails, its transaction is rolled back and the
+    * exception is passed on; the chunks before it stay committed.
+    * @param entities   The entities to persist.
+    * @return           The number of entities persisted.
+    */
+   public long ingest(Iterable<?> entities) {
+      EntityTransaction tx = entityManager.getTransaction();
+      long count = 0;
+      int pending = 0;
+      try {
+         for (Object next : entities) {
+            if (!tx.isActive()) {
+               tx.begin();
+            }
+            entityManager.persist(next);
+            count++;
+            if (++pending >= chunkSizeFor(next.getClass())) {
+               commit(tx);
+               entityManager.clear();
+               pending = 0;
+            }
+         }
+         if (tx.isActive()) {
+            commit(tx);
+            entityManager.clear();
+         }
+      } catch (RuntimeException e) {
+         if (tx.isActive()) {
+            tx.rollback();
+         }
+         throw e;
+      }
+      LOGGER.log(Level.FINE, "Ingested {0} entities", count);
+      return count;
+   }
+
+   /** Commit one chunk of an ingest. */
+   private static void commit(EntityTransaction tx) {
+      long start = COMMIT.start();
+      tx.commit();
+      COMMIT.stop(start);
+   }
+
+   /**
+    * Send the pending INSERTs to the database and, if configured, detach everything.  This logs
+    * once per chunk, never once per entity, so that logging does not slow a bulk load down.
+    */
+   private void flushChunk() {
+      // Timed here rather than with FLUSH.start, which does not read the clock when metrics are off.
+      long start = System.nanoTime();
+      entityManager.flush();
+      long nanos = System.nanoTime() - start;
+      FLUSH.record(nanos);
+      LOGGER.finer(() -> "Flushed a chunk in " + nanos / 1000 + " us");
+      if (clearAfterFlush) {
+         entityManager.clear();
+      }
+   }
+}
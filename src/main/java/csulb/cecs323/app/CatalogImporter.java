@@ -0,0 +1,304 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Streams Products or Customers from a CSV or JSON-lines file into the database.
+ * <p>
+ * One thread reads the file through a FileChannel and parses it into entities, handing them
+ * over in batches through a small bounded queue.  The calling thread takes the batches off the
+ * queue and persists each one in its own transaction.  Parsing the next batch therefore
+ * overlaps with writing the previous one, and since the queue is bounded, only a few batches
+ * are ever in memory no matter how large the file is.
+ * </p>
+ * <p>
+ * The field names are the names of the entity attributes, for instance:
+ * <pre>
+ *    UPC,prod_name,mfgr,model,unit_list_price,units_in_stock
+ *    {"last_name": "Garcia", "first_name": "Diego", "street": "1296 Temple Ave.", "zip": "90803", "phone": "5627196643"}
+ * </pre>
+ * </p>
+ */
+public class CatalogImporter {
+   /** Number of entities handed from the parser to the writer at a time. */
+   public static final int DEFAULT_BATCH_SIZE = 1000;
+
+   /** Number of parsed batches that may wait for the writer before the parser blocks. */
+   private static final int QUEUE_CAPACITY = 4;
+
+   /** Size of the buffer that the file is read through. */
+   private static final int READ_BUFFER_SIZE = 1 << 20;
+
+   /** Seconds between progress reports. */
+   private static final long PROGRESS_INTERVAL = 5;
+
+   private static final Logger LOGGER = Logger.getLogger(CatalogImporter.class.getName());
+
+   /** Marks the end of the parsed batches on the queue. */
+   private static final List<Object> END_OF_FILE = new ArrayList<>();
+
+   private final EntityManagerFactory factory;
+
+   private final int batchSize;
+
+   /**
+    * Create an importer that writes through EntityManagers from the given factory.
+    * @param factory    The factory for the CustomerOrders persistence unit.
+    * @param batchSize  The number of entities written per transaction.
+    */
+   public CatalogImporter(EntityManagerFactory factory, int batchSize) {
+      if (batchSize < 1) {
+         throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+      }
+      this.factory = factory;
+      this.batchSize = batchSize;
+   }
+
+   /**
+    * Import a file of products.
+    * @param file       The CSV or JSONL file.
+    * @return           The number of products imported.
+    */
+   public long importProducts(Path file) {
+      return importFile(file, ImportFormat.forPath(file), CatalogImporter::toProduct);
+   }
+
+   /**
+    * Import a file of customers.
+    * @param file       The CSV or JSONL file.
+    * @return           The number of customers imported.
+    */
+   public long importCustomers(Path file) {
+      return importFile(file, ImportFormat.forPath(file), CatalogImporter::toCustomer);
+   }
+
+   /**
+    * Stream the records of a file into the database.
+    * @param file       The file to read.
+    * @param format     The format of the file.
+    * @param mapper     Builds an entity from the fields of one record.
+    * @return           The number of entities persisted.
+    */
+   public <E> long importFile(Path file, ImportFormat format, Function<Map<String, String>, E> mapper) {
+      BlockingQueue<List<?>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+      Progress progress = new Progress(file);
+      ExecutorService parser = Executors.newSingleThreadExecutor(r -> {
+         Thread t = new Thread(r, "import-parser");
+         t.setDaemon(true);
+         return t;
+      });
+      ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "import-progress");
+         t.setDaemon(true);
+         return t;
+      });
+      reporter.scheduleAtFixedRate(progress::report, PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.SECONDS);
+      Future<?> parsing = parser.submit(() -> {
+         parse(file, format, mapper, queue, progress);
+         return null;
+      });
+      try {
+         write(queue, progress);
+         // Surface any failure of the parser, now that it has said it is done.
+         parsing.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Import of " + file + " was interrupted", e);
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         throw new IllegalStateException("Import of " + file + " failed", cause);
+      } finally {
+         // If the writer gave up early, stop the parser and make room for its END_OF_FILE.
+         parsing.cancel(true);
+         queue.clear();
+         parser.shutdownNow();
+         reporter.shutdownNow();
+      }
+      progress.report();
+      return progress.written.get();
+   }
+
+   /** Read the file and put the parsed entities on the queue, followed by END_OF_FILE. */
+   private <E> void parse(Path file, ImportFormat format, Function<Map<String, String>, E> mapper,
+                          BlockingQueue<List<?>> queue, Progress progress)
+           throws IOException, InterruptedException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+           BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+                   StandardCharsets.UTF_8), READ_BUFFER_SIZE)) {
+         progress.totalBytes = channel.size();
+         String[] header = null;
+         List<Object> batch = new ArrayList<>(batchSize);
+         long lineNumber = 0;
+         String line;
+         while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+               continue;
+            }
+            if (format.hasHeader() && header == null) {
+               header = ImportFormat.parseHeader(line);
+               continue;
+            }
+            try {
+               batch.add(mapper.apply(format.parse(line, header)));
+            } catch (RuntimeException e) {
+               throw new IllegalArgumentException(file + " line " + lineNumber + ": " + e.getMessage(), e);
+            }
+            if (batch.size() >= batchSize) {
+               progress.bytesRead = channel.position();
+               progress.parsed.addAndGet(batch.size());
+               queue.put(batch);
+               batch = new ArrayList<>(batchSize);
+            }
+         }
+         progress.bytesRead = progress.totalBytes;
+         progress.parsed.addAndGet(batch.size());
+         if (!batch.isEmpty()) {
+            queue.put(batch);
+         }
+      } finally {
+         // Whatever happened, let the writer know that nothing more is coming.
+         queue.put(END_OF_FILE);
+      }
+   }
+
+   /** Take batches off the queue and commit each one, until END_OF_FILE shows up. */
+   private void write(BlockingQueue<List<?>> queue, Progress progress) throws InterruptedException {
+      EntityManager manager = factory.createEntityManager();
+      try {
+         BulkPersister persister = new BulkPersister(manager).withDefaultChunkSize(batchSize)
+                 .withChunkSize(Products.class, batchSize).withChunkSize(Customers.class, batchSize);
+         EntityTransaction tx = manager.getTransaction();
+         List<?> batch;
+         while ((batch = queue.take()) != END_OF_FILE) {
+            tx.begin();
+            try {
+               persister.persistAll(batch);
+               tx.commit();
+            } finally {
+               if (tx.isActive()) {
+                  tx.rollback();
+               }
+            }
+            manager.clear();
+            progress.written.addAndGet(batch.size());
+         }
+      } finally {
+         manager.close();
+      }
+   }
+
+   /**
+    * Build a Products from the fields of one record.
+    * @param fields     UPC, prod_name, mfgr, model, unit_list_price and units_in_stock.
+    * @return           The new, unmanaged, product.
+    */
+   public static Products toProduct(Map<String, String> fields) {
+      return new Products(required(fields, "UPC"), required(fields, "prod_name"),
+              required(fields, "mfgr"), required(fields, "model"),
+              Money.of(required(fields, "unit_list_price")),
+              Integer.parseInt(required(fields, "units_in_stock")));
+   }
+
+   /**
+    * Build a Customers from the fields of one record.
+    * @param fields     last_name, first_name, street, zip and phone.
+    * @return           The new, unmanaged, customer.
+    */
+   public static Customers toCustomer(Map<String, String> fields) {
+      return new Customers(required(fields, "last_name"), required(fields, "first_name"),
+              required(fields, "street"), required(fields, "zip"), required(fields, "phone"));
+   }
+
+   /** Look up a field that must be present, trimming off any surrounding blanks. */
+   private static String required(Map<String, String> fields, String name) {
+      String value = fields.get(name);
+      if (value == null) {
+         throw new IllegalArgumentException("Missing field " + name);
+      }
+      return value.trim();
+   }
+
+   /** Counters shared by the parser, the writer and the progress reporter. */
+   private static class Progress {
+      private final Path file;
+      private final long start = System.nanoTime();
+      private final AtomicLong parsed = new AtomicLong();
+      private final AtomicLong written = new AtomicLong();
+      private volatile long bytesRead;
+      private volatile long totalBytes;
+
+      Progress(Path file) {
+         this.file = file;
+      }
+
+      void report() {
+         double seconds = Math.max((System.nanoTime() - start) / 1e9, 1e-3);
+         long total = totalBytes;
+         LOGGER.info(String.format("%s: %d parsed, %d written, %.0f rows/s, %.1f MB/s, %.0f%% read",
+                 file.getFileName(), parsed.get(), written.get(), written.get() / seconds,
+                 bytesRead / seconds / (1 << 20), total == 0 ? 100.0 : 100.0 * bytesRead / total));
+      }
+   }
+
+   /**
+    * Import files given on the command line as products=FILE or customers=FILE, in order.
+    * @param args       The files to import.
+    */
+   public static void main(String[] args) {
+      if (args.length == 0) {
+         System.out.println("Usage: CatalogImporter products=FILE|customers=FILE ...");
+         return;
+      }
+      try (PersistenceManager persistence = PersistenceManager.create()) {
+         CatalogImporter importer = new CatalogImporter(persistence.getFactory(), DEFAULT_BATCH_SIZE);
+         for (String arg : args) {
+            int equals = arg.indexOf('=');
+            String kind = equals < 0 ? "" : arg.substring(0, equals);
+            Path file = Paths.get(arg.substring(equals + 1));
+            if (kind.equalsIgnoreCase("products")) {
+               importer.importProducts(file);
+            } else if (kind.equalsIgnoreCase("customers")) {
+               importer.importCustomers(file);
+            } else {
+               throw new IllegalArgumentException("Expected products=FILE or customers=FILE: " + arg);
+            }
+         }
+      }
+   }
+}
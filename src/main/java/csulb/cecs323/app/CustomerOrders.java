@@ -12,9 +12,13 @@
 
 package csulb.cecs323.app;
 
+import com.sun.net.httpserver.HttpServer;
 // Import all of the entity classes that we have written for this application.
 import csulb.cecs323.model.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -53,6 +57,14 @@ public class CustomerOrders {
     */
    private EntityManager entityManager;
 
+   /**
+    * Products that we have already looked up, so that getProduct does not go back to the database
+    * for them.  The products in it are managed by entityManager, so changes that we make to them
+    * are seen by the cache too.
+    */
+   private final ProductCatalog catalog = new ProductCatalog(this::findProduct,
+           ProductCatalog.DEFAULT_MAX_SIZE, ProductCatalog.DEFAULT_TIME_TO_LIVE);
+
    /**
     * The Logger can easily be configured to log to a file, rather than, or in addition to, the console.
     * We use it because it is easy to control how much or how little logging gets done without having to
@@ -73,8 +85,23 @@ public class CustomerOrders {
 
    public static void main(String[] args) {
       LOGGER.fine("Creating EntityManagerFactory and EntityManager");
-      EntityManagerFactory factory = Persistence.createEntityManagerFactory("CustomerOrders");
-      EntityManager manager = factory.createEntityManager();
+      PersistenceManager persistence = PersistenceManager.create();
+      if (args.length > 0 && args[0].equals("--serve")) {
+         // Headless mode: take orders over HTTP instead of from the console.
+         serve(persistence, args.length > 1 ? Integer.parseInt(args[1]) : OrderIntakeServer.DEFAULT_PORT);
+         return;
+      }
+      if (args.length > 1 && args[0].equals("--export")) {
+         // Headless mode: dump every order line to a file, and quit.
+         try {
+            new OrderLinesExporter(persistence).export(Paths.get(args[1]));
+         } finally {
+            persistence.close();
+         }
+         return;
+      }
+      // The console only ever does one thing at a time, so one EntityManager does for the whole session.
+      EntityManager manager = persistence.getFactory().createEntityManager();
       // Create an instance of CustomerOrders and store our new EntityManager as an instance variable.
       CustomerOrders customerOrders = new CustomerOrders(manager);
       // Any changes to the database need to be done within a transaction.
@@ -89,15 +116,13 @@ public class CustomerOrders {
       List <Products> products = new ArrayList<Products>();
       // Load up my List with the Entities that I want to persist.  Note, this does not put them
       // into the database.
-      products.add(new Products("076174517163", "16 oz. hickory hammer", "Stanely Tools", "1", 9.97, 50));
-      products.add(new Products("012345678910", "4-Volt Max 1/4-in Cordless Screwdriver", "Craftsman", "2", 29.98, 15));
-      products.add(new Products("052GBA892003", "4-Volt 1/4-in Cordless Screwdriver", "WORX", "3", 43.44, 20));
-      products.add(new Products("BRU852024801", "Steel Head Fiberglass Sledge Hammer", "Kobalt", "4", 19.98, 42));
+      products.add(new Products("076174517163", "16 oz. hickory hammer", "Stanely Tools", "1", Money.of("9.97"), 50));
+      products.add(new Products("012345678910", "4-Volt Max 1/4-in Cordless Screwdriver", "Craftsman", "2", Money.of("29.98"), 15));
+      products.add(new Products("052GBA892003", "4-Volt 1/4-in Cordless Screwdriver", "WORX", "3", Money.of("43.44"), 20));
+      products.add(new Products("BRU852024801", "Steel Head Fiberglass Sledge Hammer", "Kobalt", "4", Money.of("19.98"), 42));
       customerOrders.createEntity (products);
       //create Customers arrayList
       List <Customers> customers = new ArrayList<Customers>();
-      //create orderlines arrayList
-      List <Order_lines> orderlines = new ArrayList<Order_lines>();
       //create orders arrayList
       List <Orders> orders = new ArrayList<Orders>();
       //populate customers
@@ -125,53 +150,62 @@ public class CustomerOrders {
          } else {
             time = LocalDateTime.now();
          }
-         printProducts(products);
-         System.out.println("What product would you like to see?(1 - "+products.size()+")");
-         int productChoice = getIntRange(1, products.size());
-         Products p = products.get(productChoice - 1);
-         if (p.getUnits_in_stock() == 0){
-            while (p.getUnits_in_stock() == 0){
-               System.out.println("We don't have any more of " + p.getProd_name());
-               System.out.println("Please choose something else.");
-               products.remove(productChoice-1);
-               printProducts(products);
-               System.out.println("What product would you like to see?(1 - "+products.size()+")");
+         // One order for the whole basket, with an order line for each product in it.
+         Orders order = new Orders(customers.get(customer - 1),time,identity);
+         Money orderTotal = Money.ZERO;
+         String more = "Y";
+         while (more.equalsIgnoreCase("Y")){
+            printProducts(products);
+            System.out.println("What product would you like to see?(1 - "+products.size()+")");
+            int productChoice = getIntRange(1, products.size());
+            Products p = products.get(productChoice - 1);
+            if (p.getUnits_in_stock() == 0){
+               while (p.getUnits_in_stock() == 0){
+                  System.out.println("We don't have any more of " + p.getProd_name());
+                  System.out.println("Please choose something else.");
+                  products.remove(productChoice-1);
+                  printProducts(products);
+                  System.out.println("What product would you like to see?(1 - "+products.size()+")");
 
-               productChoice = getIntRange(1,products.size());
-               p = products.get(productChoice - 1);
+                  productChoice = getIntRange(1,products.size());
+                  p = products.get(productChoice - 1);
+               }
             }
-         }
 
 
-         System.out.println("How many of the products would you like to order?");
-         int numOrders = getInt();
-         if (p.getUnits_in_stock() < numOrders && p.getUnits_in_stock() != 0){
-            System.out.println("We only have this many in stock. " + p.getUnits_in_stock());
-            numOrders = p.getUnits_in_stock();
-         }
-         double price = p.getUnit_list_price();
-         double total = price * numOrders;
-         if (com.equalsIgnoreCase("Y")){
-            System.out.println("This would be your total: " + total);
+            System.out.println("How many of the products would you like to order?");
+            int numOrders = getInt();
+            if (p.getUnits_in_stock() < numOrders && p.getUnits_in_stock() != 0){
+               System.out.println("We only have this many in stock. " + p.getUnits_in_stock());
+               numOrders = p.getUnits_in_stock();
+            }
+            Money total = p.getUnit_list_price().times(numOrders);
+            System.out.println("This would be the total for this product: " + total);
 
-            System.out.println("Would you like to continue with this purchase? (Y/N)");
-            com = getString();
+            System.out.println("Would you like to add this to your order? (Y/N)");
+            if (getString().equalsIgnoreCase("Y") && numOrders > 0){
+               p.setUnits_in_stock(p.getUnits_in_stock() - numOrders);
+               // The order line takes the list price as its sale price.
+               order.addLine(p, numOrders);
+               orderTotal = orderTotal.plus(total);
+            }
+            System.out.println("Would you like to add another product to this order? (Y/N)");
+            more = getString();
          }
-         if (com.equalsIgnoreCase("N")){
-            break;
+         if (!order.getLines().isEmpty()){
+            System.out.println("This is your order total: " + orderTotal);
+            orders.add(order);
          }
-         orders.add(new Orders(customers.get(customer - 1),time,identity));
-         p.setUnits_in_stock(p.getUnits_in_stock() - numOrders);
-         p.setUnit_list_price(price);
-
-
-         orderlines.add(new Order_lines(p,orders.get(orders.size()-1),numOrders));
-         System.out.println("Would you like to continue? (Y/N)");
+         System.out.println("Would you like to place another order? (Y/N)");
          com = getString();
       }
 
+      // Persisting the orders cascades to their order lines, which are written as one JDBC batch.
       customerOrders.createEntity (orders);
-      customerOrders.createEntity (orderlines);
+      // Keep the daily sales rollup in step with the order lines, in the same transaction.
+      for (Orders order : orders) {
+         SalesRollup.record(manager, order);
+      }
 
 
       // Commit the changes so that the new data persists and is visible to other users.
@@ -180,6 +214,33 @@ public class CustomerOrders {
 
    } // End of the main method
 
+   /**
+    * Start taking orders over HTTP, and, if metrics are on, serving them on
+    * MetricsEndpoint.DEFAULT_PORT of the loopback interface.  The servers keep the JVM running
+    * after main returns, and they are shut down along with the EntityManagerFactory when the JVM
+    * is.
+    * @param persistence   The PersistenceManager that all of the orders share.
+    * @param port          The port to listen on.
+    */
+   public static void serve(PersistenceManager persistence, int port) {
+      try {
+         OrderIntakeServer server = new OrderIntakeServer(new OrderService(persistence), port);
+         HttpServer metrics = Metrics.isEnabled() ? MetricsEndpoint.start(MetricsEndpoint.DEFAULT_PORT) : null;
+         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(5);
+            if (metrics != null) {
+               metrics.stop(0);
+            }
+            LOGGER.info(persistence.getPoolStats().toString());
+            persistence.close();
+         }));
+         server.start();
+      } catch (IOException e) {
+         persistence.close();
+         throw new UncheckedIOException("Could not listen on port " + port, e);
+      }
+   }
+
    /**
     * Function that accepts a range of integers (inclusive) and returns a valid integer within that range.
     * @param low Inclusive min.
@@ -291,18 +352,14 @@ public class CustomerOrders {
     *                   used a Java generic so that I did not have to write this over and over.
     */
    public <E> void createEntity(List <E> entities) {
-      for (E next : entities) {
-         LOGGER.info("Persisting: " + next);
-         // Use the CustomerOrders entityManager instance variable to get our EntityManager.
-         this.entityManager.persist(next);
-      }
+      // The entities are persisted in chunks, and each chunk is flushed as one JDBC batch.  We do
+      // not clear the persistence context afterwards since main still updates these entities
+      // (the units in stock, for instance) before it commits.
+      long count = new BulkPersister(this.entityManager).clearAfterFlush(false).persistAll(entities);
 
       // The auto generated ID (if present) is not passed in to the constructor since JPA will
-      // generate a value.  So the previous for loop will not show a value for the ID.  But
-      // now that the Entity has been persisted, JPA has generated the ID and filled that in.
-      for (E next : entities) {
-         LOGGER.info("Persisted object after flush (non-null id): " + next);
-      }
+      // generate a value.  Now that the entities have been flushed, JPA has filled that in.
+      LOGGER.info("Persisted " + count + " entities");
    } // End of createEntity member method
 
    /**
@@ -314,16 +371,16 @@ public class CustomerOrders {
     * @return           The Products instance corresponding to that UPC.
     */
    public Products getProduct (String UPC) {
-      // Run the native query that we defined in the Products entity to find the right style.
-      List<Products> products = this.entityManager.createNamedQuery("ReturnProduct",
-              Products.class).setParameter(1, UPC).getResultList();
-      if (products.size() == 0) {
-         // Invalid style name passed in.
-         return null;
-      } else {
-         // Return the style object that they asked for.
-         return products.get(0);
-      }
+      return this.catalog.getProduct(UPC);
+   }// End of the getProduct method
 
-   }// End of the getStyle method
+   /**
+    * Look up a product in the database, for when it is not in the catalog cache.
+    * @param UPC        The UPC of the product that you are looking for.
+    * @return           The Products instance corresponding to that UPC, or null if there is none.
+    */
+   private Products findProduct (String UPC) {
+      // UPC is the @Id of Products, so this is a primary key lookup.
+      return ProductQueries.findByUpc(this.entityManager, UPC);
+   }// End of the findProduct method
 } // End of CustomerOrders class
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * The fetch plans for Orders and Order_lines: which of their relationships a use case is about
+ * to walk, and so should be loaded along with them.
+ * <p>
+ * The relationships of both entities are lazy, so a query loads only what its plan names.  The
+ * plans are the named entity graphs on the entities, applied as load graphs.  Anything that is
+ * walked without being in the plan is still batch fetched (see @BatchFetch on the entities), so
+ * forgetting a plan costs a few more queries rather than one per row.
+ * </p>
+ * <p>
+ * Lazy @ManyToOne relationships need EclipseLink's weaving.  Without it, EclipseLink loads them
+ * eagerly, in batches, and the plans make no difference.
+ * </p>
+ */
+public final class FetchPlans {
+   /** An order line and its product, for pricing and showing lines. */
+   public static final String LINE_PRODUCT = "Order_lines.product";
+
+   /** An order line, its product, and its order and the order's customer, for reports and exports. */
+   public static final String LINE_ORDER_AND_PRODUCT = "Order_lines.orderAndProduct";
+
+   /** An order and its customer, without the lines. */
+   public static final String ORDER_CUSTOMER = "Orders.customer";
+
+   /** An order, its lines, and their products, for showing whole orders. */
+   public static final String ORDER_LINES_AND_PRODUCTS = "Orders.linesAndProducts";
+
+   private static final String LINES_PLACED_BETWEEN =
+           "SELECT ol FROM Order_lines ol JOIN ol.order o " +
+           "WHERE  o.order_date >= :from AND o.order_date < :to";
+
+   private FetchPlans() {}
+
+   /**
+    * Load what a fetch plan names along with the results of a query.
+    * @param manager    The EntityManager that created the query.
+    * @param query      The query to apply the plan to.
+    * @param plan       The name of the plan, one of the constants in this class.
+    * @return           The query, so that calls can be chained.
+    */
+   public static <T> TypedQuery<T> apply(EntityManager manager, TypedQuery<T> query, String plan) {
+      return query.setHint("javax.persistence.loadgraph", manager.getEntityGraph(plan));
+   }
+
+   /**
+    * Look up the lines of the orders placed in a period.
+    * @param manager    The EntityManager to look the lines up with.
+    * @param from       The start of the period, inclusive.
+    * @param to         The end of the period, exclusive.
+    * @param plan       What to load with each line, one of the Order_lines plans in this class.
+    * @return           The order lines.
+    */
+   public static List<Order_lines> findLinesPlacedBetween(EntityManager manager, LocalDateTime from,
+                                                          LocalDateTime to, String plan) {
+      return apply(manager, manager.createQuery(LINES_PLACED_BETWEEN, Order_lines.class), plan)
+              .setParameter("from", from)
+              .setParameter("to", to)
+              .getResultList();
+   }
+}
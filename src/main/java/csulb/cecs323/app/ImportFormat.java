@@ -0,0 +1,265 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The file formats that CatalogImporter can read.  Both are line oriented so that a file can be
+ * streamed one record at a time, no matter how large it is.
+ * <ul>
+ *    <li>CSV: the first line is a header with the field names, every other line is one record.
+ *    Fields may be quoted with double quotes, and a quote within a quoted field is doubled.</li>
+ *    <li>JSONL: every line is one flat JSON object whose values are strings, numbers, booleans
+ *    or null.</li>
+ * </ul>
+ */
+public enum ImportFormat {
+   CSV {
+      @Override
+      public boolean hasHeader() {
+         return true;
+      }
+
+      @Override
+      public Map<String, String> parse(String line, String[] header) {
+         List<String> values = splitCsv(line);
+         if (values.size() != header.length) {
+            throw new IllegalArgumentException("Expected " + header.length + " fields but found " +
+                    values.size());
+         }
+         Map<String, String> record = new HashMap<>(header.length * 2);
+         for (int i = 0; i < header.length; i++) {
+            record.put(header[i], values.get(i));
+         }
+         return record;
+      }
+   },
+   JSONL {
+      @Override
+      public boolean hasHeader() {
+         return false;
+      }
+
+      @Override
+      public Map<String, String> parse(String line, String[] header) {
+         return new FlatJsonParser(line).parseObject();
+      }
+   };
+
+   /**
+    * Whether the first line of the file names the fields rather than holding a record.
+    * @return  true if the file starts with a header line.
+    */
+   public abstract boolean hasHeader();
+
+   /**
+    * Parse one line of the file into a map from field name to value.  Values are left as
+    * strings; converting them is up to whoever builds the entity.
+    * @param line       The line to parse, without its line terminator.
+    * @param header     The field names from the header line, or null if the format has none.
+    * @return           The fields of the record.
+    */
+   public abstract Map<String, String> parse(String line, String[] header);
+
+   /**
+    * Split a CSV header line into its field names.
+    * @param line       The header line.
+    * @return           The field names, trimmed.
+    */
+   public static String[] parseHeader(String line) {
+      List<String> names = splitCsv(line);
+      String[] header = new String[names.size()];
+      for (int i = 0; i < header.length; i++) {
+         header[i] = names.get(i).trim();
+      }
+      return header;
+   }
+
+   /**
+    * Pick the format from the file name extension: .csv is CSV, .jsonl, .ndjson and .json are JSONL.
+    * @param path       The file to be imported.
+    * @return           The format of the file.
+    */
+   public static ImportFormat forPath(Path path) {
+      String name = path.getFileName().toString().toLowerCase();
+      if (name.endsWith(".csv")) {
+         return CSV;
+      } else if (name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json")) {
+         return JSONL;
+      }
+      throw new IllegalArgumentException("Cannot tell the format of " + path + " from its extension");
+   }
+
+   /** Split one CSV line into its fields, undoing any quoting. */
+   private static List<String> splitCsv(String line) {
+      List<String> fields = new ArrayList<>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"') {
+               if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                  field.append('"');
+                  i++;
+               } else {
+                  quoted = false;
+               }
+            } else {
+               field.append(c);
+            }
+         } else if (c == '"') {
+            quoted = true;
+         } else if (c == ',') {
+            fields.add(field.toString());
+            field.setLength(0);
+         } else {
+            field.append(c);
+         }
+      }
+      if (quoted) {
+         throw new IllegalArgumentException("Unterminated quoted field");
+      }
+      fields.add(field.toString());
+      return fields;
+   }
+
+   /**
+    * Just enough of a JSON parser to read one flat object per line.  Nested objects and arrays
+    * are rejected since none of our entities have a field that would hold them.
+    */
+   private static class FlatJsonParser {
+      private final String text;
+      private int pos;
+
+      FlatJsonParser(String text) {
+         this.text = text;
+      }
+
+      Map<String, String> parseObject() {
+         Map<String, String> record = new HashMap<>();
+         skipWhitespace();
+         expect('{');
+         skipWhitespace();
+         if (peek() == '}') {
+            pos++;
+            return record;
+         }
+         while (true) {
+            skipWhitespace();
+            String name = parseString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            record.put(name, parseValue());
+            skipWhitespace();
+            char c = peek();
+            if (c != ',' && c != '}') {
+               throw error("Expected ',' or '}'");
+            }
+            pos++;
+            if (c == '}') {
+               break;
+            }
+         }
+         skipWhitespace();
+         if (pos != text.length()) {
+            throw error("Unexpected text after the object");
+         }
+         return record;
+      }
+
+      private String parseValue() {
+         char c = peek();
+         if (c == '"') {
+            return parseString();
+         } else if (c == '{' || c == '[') {
+            throw error("Nested objects and arrays are not supported");
+         }
+         int start = pos;
+         while (pos < text.length() && ",} \t".indexOf(text.charAt(pos)) < 0) {
+            pos++;
+         }
+         String literal = text.substring(start, pos);
+         if (literal.isEmpty()) {
+            throw error("Missing value");
+         }
+         return literal.equals("null") ? null : literal;
+      }
+
+      private String parseString() {
+         expect('"');
+         StringBuilder value = new StringBuilder();
+         while (true) {
+            char c = next();
+            if (c == '"') {
+               return value.toString();
+            } else if (c == '\\') {
+               char escaped = next();
+               switch (escaped) {
+                  case 'b': value.append('\b'); break;
+                  case 'f': value.append('\f'); break;
+                  case 'n': value.append('\n'); break;
+                  case 'r': value.append('\r'); break;
+                  case 't': value.append('\t'); break;
+                  case 'u':
+                     if (pos + 4 > text.length()) {
+                        throw error("Truncated unicode escape");
+                     }
+                     value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                     pos += 4;
+                     break;
+                  default: value.append(escaped);
+               }
+            } else {
+               value.append(c);
+            }
+         }
+      }
+
+      private void skipWhitespace() {
+         while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+         }
+      }
+
+      private char peek() {
+         if (pos >= text.length()) {
+            throw error("Unexpected end of line");
+         }
+         return text.charAt(pos);
+      }
+
+      private char next() {
+         char c = peek();
+         pos++;
+         return c;
+      }
+
+      private void expect(char c) {
+         if (peek() != c) {
+            throw error("Expected '" + c + "'");
+         }
+         pos++;
+      }
+
+      private IllegalArgumentException error(String message) {
+         return new IllegalArgumentException(message + " at column " + (pos + 1));
+      }
+   }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+/**
+ * Thrown when an order asks for more units of a product than we have in stock.  Nothing of the
+ * order has been written when this is thrown.
+ */
+public class InsufficientStockException extends RuntimeException {
+   /** The UPC of the product that ran short. */
+   private final String upc;
+
+   /** The number of units that the order asked for. */
+   private final int requested;
+
+   /**
+    * @param upc        The UPC of the product that ran short.
+    * @param requested  The number of units that the order asked for.
+    */
+   public InsufficientStockException(String upc, int requested) {
+      super("Not enough units of " + upc + " in stock for " + requested);
+      this.upc = upc;
+      this.requested = requested;
+   }
+
+   public String getUpc() {
+      return upc;
+   }
+
+   public int getRequested() {
+      return requested;
+   }
+}
@@ -0,0 +1,429 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+
+import javax.persistence.EntityManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the live stock of each product in memory, so that reserving stock does not have to wait
+ * on a row lock in PRODUCTS.
+ * <p>
+ * Each product that has been asked about has an AtomicLong of the units available, and a
+ * reservation takes units with compare-and-set: it never blocks, and orders for different
+ * products never touch the same counter.  Before a reservation returns, its change is made durable
+ * in an AppendLog, the "inventory" journal, with group commit; so once reserve returns, the
+ * reservation survives a crash.
+ * </p>
+ * <p>
+ * The changes are written back to PRODUCTS behind the scenes, every flush interval: all of the
+ * changes to a product since the last flush are added up into one UPDATE, and all of the UPDATEs
+ * go in one transaction together with the JournalCheckpoint, the sequence number of the last
+ * journal record that they cover.  When the ledger is opened, the journal records after the
+ * checkpoint are applied before anything else, so nothing is applied twice or lost.
+ * </p>
+ * <p>
+ * While a ledger is open, it must be the only thing that changes units_in_stock; in particular,
+ * OrderService must be given the ledger, so that it does not use ReserveStock.  The stock that the
+ * database shows lags the ledger by up to a flush interval.  Keep the journal with the database:
+ * opening a ledger over a journal from another database would apply its changes to the wrong stock.
+ * </p>
+ * <p>
+ * If the journal cannot be written, the ledger refuses all further reservations.  The units of
+ * the reservation that failed stay taken, since it may have reached the disk; that can only
+ * undersell, never oversell.
+ * </p>
+ */
+public class InventoryLedger implements AutoCloseable {
+   /** The name of the journal, and of its JournalCheckpoint. */
+   public static final String JOURNAL = "inventory";
+
+   /** The system property with the directory of the journals. */
+   public static final String DIRECTORY_PROPERTY = "customerorders.journal.dir";
+
+   /** The directory of the journals, relative to the project, if the property is not set. */
+   public static final String DEFAULT_DIRECTORY = "journal";
+
+   /** How often the changes are written back to PRODUCTS by default. */
+   public static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofMillis(200);
+
+   private static final Logger LOGGER = Logger.getLogger(InventoryLedger.class.getName());
+
+   private static final Metrics.Counter RESERVATIONS = Metrics.counter("customerorders_inventory_reservations_total",
+           "Stock reservations taken by the inventory ledger");
+
+   private static final Metrics.Counter SHORTAGES = Metrics.counter("customerorders_inventory_shortages_total",
+           "Stock reservations turned down for lack of units");
+
+   private static final Metrics.Timer FLUSH = Metrics.timer("customerorders_inventory_flush_seconds",
+           "Time to write the inventory changes back to the database");
+
+   private final PersistenceManager persistence;
+
+   private final AppendLog journal;
+
+   /** The units available of each product that has been asked about. */
+   private final ConcurrentHashMap<String, AtomicLong> available = new ConcurrentHashMap<>();
+
+   /** Changes that have been journalled, but not yet picked up by a flush, in no particular order. */
+   private final ConcurrentLinkedQueue<Change> journalled = new ConcurrentLinkedQueue<>();
+
+   /** Changes picked up by a flush but not applied, because one before them is not in yet. */
+   private final PriorityQueue<Change> waiting = new PriorityQueue<>();
+
+   /** The sequence number of the last journal record applied to the database. */
+   private long applied;
+
+   /** Told the UPC of each product whose stock a flush wrote back, once it has committed. */
+   private final List<Consumer<String>> writeBackListeners = new CopyOnWriteArrayList<>();
+
+   private final ScheduledExecutorService flusher;
+
+   /**
+    * Open a ledger with the journal in the directory named by the customerorders.journal.dir
+    * property, that flushes every DEFAULT_FLUSH_INTERVAL.
+    * @param persistence   The database that holds the stock.
+    * @return              The ledger, with any changes left in the journal applied.
+    */
+   public static InventoryLedger open(PersistenceManager persistence) {
+      return new InventoryLedger(persistence, Paths.get(System.getProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY)),
+              DEFAULT_FLUSH_INTERVAL);
+   }
+
+   /**
+    * Open the ledger, and apply any changes in the journal that did not reach the database.
+    * @param persistence   The database that holds the stock.
+    * @param directory     The directory of the journal.
+    * @param flushInterval How often to write the changes back to the database.
+    * @throws UncheckedIOException   if the journal cannot be read.
+    */
+   public InventoryLedger(PersistenceManager persistence, Path directory, Duration flushInterval) {
+      this.persistence = persistence;
+      try {
+         this.journal = AppendLog.open(directory, JOURNAL);
+         recover();
+      } catch (IOException e) {
+         throw new UncheckedIOException("Could not recover the " + JOURNAL + " journal in " + directory, e);
+      }
+      this.flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+         Thread thread = new Thread(task, "inventory-flusher");
+         thread.setDaemon(true);
+         return thread;
+      });
+      long period = flushInterval.toNanos();
+      flusher.scheduleWithFixedDelay(this::flushQuietly, period, period, TimeUnit.NANOSECONDS);
+   }
+
+   /** Apply the journal records after the checkpoint, all in one transaction. */
+   private void recover() throws IOException {
+      long checkpoint = persistence.withEntityManager(manager -> {
+         JournalCheckpoint found = manager.find(JournalCheckpoint.class, JOURNAL);
+         return found == null ? 0L : found.getLast_sequence();
+      });
+      journal.advanceTo(checkpoint);
+      Map<String, Long> totals = new HashMap<>();
+      long[] last = {checkpoint};
+      journal.replay(checkpoint, (sequence, payload) -> {
+         Change change = Change.decode(sequence, payload);
+         totals.merge(change.upc, (long) change.delta, Long::sum);
+         last[0] = sequence;
+      });
+      if (last[0] > checkpoint) {
+         apply(totals, last[0]);
+         LOGGER.log(Level.INFO, "Applied {0} journalled stock changes, up to {1}",
+                 new Object[]{last[0] - checkpoint, last[0]});
+      }
+      applied = last[0];
+      journal.discardThrough(applied);
+   }
+
+   /**
+    * Take units of a product out of stock.
+    * @param upc        The product.
+    * @param quantity   How many units, at least 1.
+    * @throws InsufficientStockException   if there are not that many units available.
+    * @throws IllegalArgumentException     if there is no such product.
+    * @throws UncheckedIOException         if the reservation could not be journalled.
+    */
+   public void reserve(String upc, int quantity) {
+      if (quantity < 1) {
+         throw new IllegalArgumentException("The quantity must be at least 1: " + quantity);
+      }
+      AtomicLong units = units(upc);
+      long now;
+      do {
+         now = units.get();
+         if (now < quantity) {
+            SHORTAGES.increment();
+            throw new InsufficientStockException(upc, quantity);
+         }
+      } while (!units.compareAndSet(now, now - quantity));
+      journal(upc, -quantity);
+      RESERVATIONS.increment();
+   }
+
+   /**
+    * Put units of a product back in stock: a reservation that was not used after all, or new
+    * stock.
+    * @param upc        The product.
+    * @param quantity   How many units, at least 1.
+    * @throws IllegalArgumentException     if there is no such product.
+    * @throws UncheckedIOException         if the change could not be journalled.
+    */
+   public void release(String upc, int quantity) {
+      if (quantity < 1) {
+         throw new IllegalArgumentException("The quantity must be at least 1: " + quantity);
+      }
+      units(upc).addAndGet(quantity);
+      journal(upc, quantity);
+   }
+
+   /**
+    * Reserve a quantity of each of several products, or none of them if any is short.
+    * @param quantities The quantity of each product, by UPC.
+    * @throws InsufficientStockException   if any product does not have enough units available.
+    * @throws IllegalArgumentException     if there is no such product.
+    * @throws UncheckedIOException         if a reservation could not be journalled.
+    */
+   public void reserveAll(Map<String, Integer> quantities) {
+      Map<String, Integer> reserved = new HashMap<>();
+      try {
+         for (Map.Entry<String, Integer> item : quantities.entrySet()) {
+            reserve(item.getKey(), item.getValue());
+            reserved.put(item.getKey(), item.getValue());
+         }
+      } catch (RuntimeException e) {
+         releaseAll(reserved);
+         throw e;
+      }
+   }
+
+   /**
+    * Put back a quantity of each of several products.
+    * @param quantities The quantity of each product, by UPC.
+    */
+   public void releaseAll(Map<String, Integer> quantities) {
+      for (Map.Entry<String, Integer> item : quantities.entrySet()) {
+         release(item.getKey(), item.getValue());
+      }
+   }
+
+   /**
+    * @param upc  The product.
+    * @return     The units of it available right now.
+    * @throws IllegalArgumentException     if there is no such product.
+    */
+   public long getAvailable(String upc) {
+      return units(upc).get();
+   }
+
+   /** The counter for a product, read from the database the first time it is asked about. */
+   private AtomicLong units(String upc) {
+      AtomicLong units = available.get(upc);
+      if (units == null) {
+         // No change to the product can have been journalled before its counter exists, so the
+         // database is up to date for it.
+         List<Integer> found = persistence.withEntityManager(manager ->
+                 manager.createNamedQuery("FindUnitsInStock", Integer.class)
+                         .setParameter("upc", upc)
+                         .getResultList());
+         if (found.isEmpty()) {
+            throw new IllegalArgumentException("No product with UPC " + upc);
+         }
+         AtomicLong loaded = new AtomicLong(found.get(0));
+         units = available.putIfAbsent(upc, loaded);
+         if (units == null) {
+            units = loaded;
+         }
+      }
+      return units;
+   }
+
+   /**
+    * Have a listener told about every product whose stock changes in the database, after the
+    * flush that changed it commits, e.g. to drop the product from a cache that would otherwise
+    * keep the stock from before the flush.
+    * @param listener   Given the UPC of each product written back, on the flushing thread.
+    */
+   public void onWriteBack(Consumer<String> listener) {
+      writeBackListeners.add(listener);
+   }
+
+   /** Write a change to the journal, and wait until it is durable. */
+   private void journal(String upc, int delta) {
+      long sequence = journal.append(Change.encode(upc, delta));
+      journalled.add(new Change(sequence, upc, delta));
+      journal.sync(sequence);
+   }
+
+   /**
+    * Write the durable changes that have not been written yet back to PRODUCTS, in one
+    * transaction.  This happens every flush interval anyway.
+    */
+   public synchronized void flush() {
+      long durable = journal.getDurableSequence();
+      for (Change change; (change = journalled.poll()) != null; ) {
+         waiting.add(change);
+      }
+      // Only apply an unbroken run of changes, so that the checkpoint covers exactly them.
+      List<Change> run = new ArrayList<>();
+      Map<String, Long> totals = new HashMap<>();
+      long through = applied;
+      while (!waiting.isEmpty() && waiting.peek().sequence == through + 1 && through < durable) {
+         Change change = waiting.poll();
+         run.add(change);
+         totals.merge(change.upc, (long) change.delta, Long::sum);
+         through = change.sequence;
+      }
+      if (run.isEmpty()) {
+         return;
+      }
+      long start = FLUSH.start();
+      try {
+         apply(totals, through);
+      } catch (RuntimeException e) {
+         waiting.addAll(run);
+         throw e;
+      } finally {
+         FLUSH.stop(start);
+      }
+      applied = through;
+      journal.discardThrough(through);
+      for (Consumer<String> listener : writeBackListeners) {
+         totals.keySet().forEach(listener);
+      }
+      LOGGER.log(Level.FINER, "Wrote back {0} stock changes to {1} products, up to {2}",
+              new Object[]{run.size(), totals.size(), through});
+   }
+
+   private void flushQuietly() {
+      try {
+         flush();
+      } catch (RuntimeException e) {
+         // The changes are still in the journal; the next flush tries them again.
+         LOGGER.log(Level.WARNING, "Could not write the inventory back to the database", e);
+      }
+   }
+
+   /**
+    * Add up the net changes to the stock, and move the checkpoint, in one transaction; then drop
+    * the products from the shared cache, which AdjustStock leaves alone.
+    */
+   private void apply(Map<String, Long> totals, long through) {
+      persistence.inTransaction(manager -> {
+         long change = ProductChanges.next(manager);
+         for (Map.Entry<String, Long> total : totals.entrySet()) {
+            if (total.getValue() != 0) {
+               manager.createNamedQuery("AdjustStock")
+                       .setParameter("delta", Math.toIntExact(total.getValue()))
+                       .setParameter("change", change)
+                       .setParameter("upc", total.getKey())
+                       .executeUpdate();
+            }
+         }
+         checkpoint(manager, through);
+         return null;
+      });
+      persistence.evict(Products.class, totals.keySet());
+   }
+
+   private static void checkpoint(EntityManager manager, long through) {
+      JournalCheckpoint checkpoint = manager.find(JournalCheckpoint.class, JOURNAL);
+      if (checkpoint == null) {
+         manager.persist(new JournalCheckpoint(JOURNAL, through, LocalDateTime.now()));
+      } else {
+         checkpoint.setLast_sequence(through);
+         checkpoint.setCheckpointed_at(LocalDateTime.now());
+      }
+   }
+
+   /** Stop the flusher, write back what is left, and close the journal. */
+   @Override
+   public void close() {
+      flusher.shutdown();
+      try {
+         flusher.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      try {
+         flush();
+      } finally {
+         try {
+            journal.close();
+         } catch (IOException e) {
+            throw new UncheckedIOException("Could not close the " + JOURNAL + " journal", e);
+         }
+      }
+   }
+
+   /** One journalled change to the stock of a product. */
+   private static final class Change implements Comparable<Change> {
+      private final long sequence;
+      private final String upc;
+      private final int delta;
+
+      Change(long sequence, String upc, int delta) {
+         this.sequence = sequence;
+         this.upc = upc;
+         this.delta = delta;
+      }
+
+      static byte[] encode(String upc, int delta) {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(upc.length() + 8);
+         try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(upc);
+            out.writeInt(delta);
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+         return bytes.toByteArray();
+      }
+
+      static Change decode(long sequence, byte[] payload) throws IOException {
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+         return new Change(sequence, in.readUTF(), in.readInt());
+      }
+
+      @Override
+      public int compareTo(Change other) {
+         return Long.compare(sequence, other.sequence);
+      }
+   }
+}
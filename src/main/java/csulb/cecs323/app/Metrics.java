@@ -0,0 +1,383 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters and timers for the hot paths of the application, exported through JMX and as
+ * Prometheus text (see MetricsEndpoint).
+ * <p>
+ * Metrics are looked up by name, like Loggers, and are usually kept in a static field:
+ * <pre>
+ *    private static final Metrics.Timer PLACEMENT = Metrics.timer("customerorders_order_placement_seconds", "...");
+ *    ...
+ *    long start = PLACEMENT.start();
+ *    ... place the order ...
+ *    PLACEMENT.stop(start);
+ * </pre>
+ * A metric may carry one label, such as the name of a query, which is given when it is looked
+ * up.  Every distinct label value is a metric of its own, so label values must come from a small
+ * fixed set.
+ * </p>
+ * <p>
+ * Metrics are off unless -Dcustomerorders.metrics=true is given, or setEnabled(true) is called.
+ * While they are off, start and stop do not read the clock and counters do not count, so an
+ * instrumented hot path costs one read of a volatile boolean.  When they are turned on, every
+ * metric is also registered as an MXBean with the platform MBean server.
+ * </p>
+ */
+public final class Metrics {
+   /** The system property that turns metrics on. */
+   public static final String ENABLED_PROPERTY = "customerorders.metrics";
+
+   /** The JMX domain of the metrics' MXBeans. */
+   public static final String JMX_DOMAIN = "csulb.cecs323";
+
+   /** What Timer.start returns while metrics are off, so that stop knows to do nothing. */
+   private static final long NOT_STARTED = Long.MIN_VALUE;
+
+   /** Upper bounds of the timers' histogram buckets, in seconds, as Prometheus expects. */
+   private static final double[] BUCKET_SECONDS =
+           {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+   /** The same bounds in nanoseconds, to compare with System.nanoTime differences. */
+   private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+
+   static {
+      for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+         BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * 1e9);
+      }
+   }
+
+   private static final Logger LOGGER = Logger.getLogger(Metrics.class.getName());
+
+   /** Every metric, by name and label. */
+   private static final ConcurrentHashMap<String, Metric> REGISTRY = new ConcurrentHashMap<>();
+
+   private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+   private Metrics() {}
+
+   /** @return  Whether metrics are being recorded. */
+   public static boolean isEnabled() {
+      return enabled;
+   }
+
+   /**
+    * Turn metrics on or off.  Turning them on registers every metric with JMX.
+    * @param on   true to start recording.
+    */
+   public static void setEnabled(boolean on) {
+      enabled = on;
+      if (on) {
+         REGISTRY.values().forEach(Metrics::register);
+      }
+   }
+
+   /**
+    * Look up a counter, creating it the first time.
+    * @param name    The Prometheus name of the counter, ending in _total.
+    * @param help    What the counter counts.
+    * @return        The counter.
+    */
+   public static Counter counter(String name, String help) {
+      return counter(name, help, null, null);
+   }
+
+   /**
+    * Look up one counter of a labelled family, creating it the first time.
+    * @param name       The Prometheus name of the family, ending in _total.
+    * @param help       What the counters count.
+    * @param label      The name of the label, e.g. "entity".
+    * @param value      This counter's value of the label.
+    * @return           The counter.
+    */
+   public static Counter counter(String name, String help, String label, String value) {
+      return (Counter) REGISTRY.computeIfAbsent(key(name, label, value),
+              k -> register(new Counter(name, help, label, value)));
+   }
+
+   /**
+    * Look up a timer, creating it the first time.
+    * @param name    The Prometheus name of the timer, ending in _seconds.
+    * @param help    What the timer times.
+    * @return        The timer.
+    */
+   public static Timer timer(String name, String help) {
+      return timer(name, help, null, null);
+   }
+
+   /**
+    * Look up one timer of a labelled family, creating it the first time.
+    * @param name       The Prometheus name of the family, ending in _seconds.
+    * @param help       What the timers time.
+    * @param label      The name of the label, e.g. "query".
+    * @param value      This timer's value of the label.
+    * @return           The timer.
+    */
+   public static Timer timer(String name, String help, String label, String value) {
+      return (Timer) REGISTRY.computeIfAbsent(key(name, label, value),
+              k -> register(new Timer(name, help, label, value)));
+   }
+
+   /**
+    * Write every metric in the Prometheus text exposition format, version 0.0.4.
+    * @param out            Where to write them.
+    * @throws IOException   if out does.
+    */
+   public static void writePrometheus(Appendable out) throws IOException {
+      List<Metric> metrics = new ArrayList<>(REGISTRY.values());
+      metrics.sort(Comparator.comparing((Metric m) -> m.name)
+              .thenComparing(m -> m.labelValue == null ? "" : m.labelValue));
+      String family = null;
+      for (Metric metric : metrics) {
+         if (!metric.name.equals(family)) {
+            family = metric.name;
+            out.append("# HELP ").append(family).append(' ').append(metric.help.replace("\n", " ")).append('\n');
+            out.append("# TYPE ").append(family).append(' ').append(metric.type()).append('\n');
+         }
+         metric.writePrometheus(out);
+      }
+   }
+
+   private static String key(String name, String label, String value) {
+      return label == null ? name : name + '{' + label + '=' + value + '}';
+   }
+
+   /** Register a metric with JMX if metrics are on.  A failure only costs us the MXBean. */
+   private static <M extends Metric> M register(M metric) {
+      if (enabled) {
+         try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = metric.objectName();
+            if (!server.isRegistered(name)) {
+               server.registerMBean(metric, name);
+            }
+         } catch (JMException e) {
+            LOGGER.log(Level.FINE, e, () -> "Could not register " + metric.name + " with JMX");
+         }
+      }
+      return metric;
+   }
+
+   /** What the counters and timers have in common. */
+   private abstract static class Metric {
+      final String name;
+      final String help;
+      final String labelName;
+      final String labelValue;
+
+      Metric(String name, String help, String labelName, String labelValue) {
+         this.name = name;
+         this.help = help;
+         this.labelName = labelName;
+         this.labelValue = labelValue;
+      }
+
+      /** The Prometheus type of the metric. */
+      abstract String type();
+
+      /** Write the samples of this metric, without the HELP and TYPE lines. */
+      abstract void writePrometheus(Appendable out) throws IOException;
+
+      ObjectName objectName() throws JMException {
+         String name = JMX_DOMAIN + ":type=Metrics,name=" + this.name;
+         if (labelName != null) {
+            name += "," + labelName + "=" + ObjectName.quote(labelValue);
+         }
+         return new ObjectName(name);
+      }
+
+      /** The label as Prometheus writes it, with the given extra label, or "" if there are none. */
+      String labels(String extraName, String extraValue) {
+         StringBuilder labels = new StringBuilder();
+         if (labelName != null) {
+            labels.append(labelName).append("=\"").append(escape(labelValue)).append('"');
+         }
+         if (extraName != null) {
+            if (labels.length() > 0) {
+               labels.append(',');
+            }
+            labels.append(extraName).append("=\"").append(extraValue).append('"');
+         }
+         return labels.length() == 0 ? "" : "{" + labels + "}";
+      }
+
+      private static String escape(String value) {
+         return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+      }
+   }
+
+   /** The JMX view of a Counter. */
+   public interface CounterMXBean {
+      long getCount();
+   }
+
+   /** A count of events that only goes up. */
+   public static final class Counter extends Metric implements CounterMXBean {
+      private final LongAdder count = new LongAdder();
+
+      private Counter(String name, String help, String labelName, String labelValue) {
+         super(name, help, labelName, labelValue);
+      }
+
+      /** Count one event. */
+      public void increment() {
+         if (enabled) {
+            count.increment();
+         }
+      }
+
+      /**
+       * Count some events.
+       * @param n    The number of events.
+       */
+      public void add(long n) {
+         if (enabled) {
+            count.add(n);
+         }
+      }
+
+      @Override
+      public long getCount() {
+         return count.sum();
+      }
+
+      @Override
+      String type() {
+         return "counter";
+      }
+
+      @Override
+      void writePrometheus(Appendable out) throws IOException {
+         out.append(name).append(labels(null, null)).append(' ').append(Long.toString(getCount())).append('\n');
+      }
+   }
+
+   /** The JMX view of a Timer. */
+   public interface TimerMXBean {
+      long getCount();
+
+      double getTotalSeconds();
+
+      double getMeanSeconds();
+
+      double getMaxSeconds();
+   }
+
+   /** How long something takes, as a count, a total, a maximum and a histogram. */
+   public static final class Timer extends Metric implements TimerMXBean {
+      private final LongAdder count = new LongAdder();
+      private final LongAdder totalNanos = new LongAdder();
+      private final AtomicLong maxNanos = new AtomicLong();
+      /** One more than the bounds: the last bucket is everything slower than the last bound. */
+      private final LongAdder[] buckets = new LongAdder[BUCKET_NANOS.length + 1];
+
+      private Timer(String name, String help, String labelName, String labelValue) {
+         super(name, help, labelName, labelValue);
+         for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+         }
+      }
+
+      /**
+       * Start timing.
+       * @return  What to pass to stop; not a time that means anything by itself.
+       */
+      public long start() {
+         return enabled ? System.nanoTime() : NOT_STARTED;
+      }
+
+      /**
+       * Stop timing, and record how long it has been since start.
+       * @param start   What start returned.
+       */
+      public void stop(long start) {
+         if (start != NOT_STARTED) {
+            record(System.nanoTime() - start);
+         }
+      }
+
+      /**
+       * Record a duration that was timed some other way.
+       * @param nanos   The duration, in nanoseconds.
+       */
+      public void record(long nanos) {
+         if (!enabled) {
+            return;
+         }
+         count.increment();
+         totalNanos.add(nanos);
+         maxNanos.accumulateAndGet(nanos, Math::max);
+         int bucket = 0;
+         while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+            bucket++;
+         }
+         buckets[bucket].increment();
+      }
+
+      @Override
+      public long getCount() {
+         return count.sum();
+      }
+
+      @Override
+      public double getTotalSeconds() {
+         return totalNanos.sum() / 1e9;
+      }
+
+      @Override
+      public double getMeanSeconds() {
+         long n = getCount();
+         return n == 0 ? 0 : getTotalSeconds() / n;
+      }
+
+      @Override
+      public double getMaxSeconds() {
+         return maxNanos.get() / 1e9;
+      }
+
+      @Override
+      String type() {
+         return "histogram";
+      }
+
+      @Override
+      void writePrometheus(Appendable out) throws IOException {
+         long cumulative = 0;
+         for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            String bound = i < BUCKET_SECONDS.length ? Double.toString(BUCKET_SECONDS[i]) : "+Inf";
+            out.append(name).append("_bucket").append(labels("le", bound))
+                    .append(' ').append(Long.toString(cumulative)).append('\n');
+         }
+         out.append(name).append("_sum").append(labels(null, null))
+                 .append(' ').append(Double.toString(getTotalSeconds())).append('\n');
+         out.append(name).append("_count").append(labels(null, null))
+                 .append(' ').append(Long.toString(cumulative)).append('\n');
+      }
+   }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+/**
+ * Serves the Metrics as Prometheus text on GET, to this machine only.  CustomerOrders --serve
+ * starts one next to the OrderIntakeServer, whose port is open to everyone; any other job can
+ * start one of its own with start.
+ */
+public class MetricsEndpoint implements HttpHandler {
+   /** The port that a stand-alone endpoint listens on if none is given. */
+   public static final int DEFAULT_PORT = 9464;
+
+   private static final Logger LOGGER = Logger.getLogger(MetricsEndpoint.class.getName());
+
+   /**
+    * Start a stand-alone endpoint at /metrics, reachable only from this machine.
+    * @param port          The TCP port to listen on, 0 for any free port.
+    * @return              The server, already started.  Stop it with stop(0).
+    * @throws IOException  if the port cannot be bound.
+    */
+   public static HttpServer start(int port) throws IOException {
+      HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      server.createContext("/metrics", new MetricsEndpoint());
+      server.start();
+      LOGGER.info("Serving metrics on port " + server.getAddress().getPort());
+      return server;
+   }
+
+   @Override
+   public void handle(HttpExchange exchange) throws IOException {
+      try {
+         if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            exchange.getResponseHeaders().set("Allow", "GET");
+            exchange.sendResponseHeaders(405, -1);
+            return;
+         }
+         StringBuilder text = new StringBuilder();
+         Metrics.writePrometheus(text);
+         byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+         exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+         exchange.sendResponseHeaders(200, body.length);
+         try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+         }
+      } finally {
+         exchange.close();
+      }
+   }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+
+import org.eclipse.persistence.config.QueryHints;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * A customer's orders, oldest first, a page at a time.
+ * <p>
+ * Pages are found by keyset rather than by offset: the cursor is the order_date of the last
+ * order on the previous page, and the next page starts after it.  (customer_id, order_date) is
+ * the primary key of ORDERS in the natural schema, and has a unique index in the compact one, so
+ * every page is an index range scan however far into the history it is, where OFFSET would have
+ * to step over every order before the page.
+ * </p>
+ * <p>
+ * Each page takes two queries.  The first reads just the keys of the orders on the page.  The
+ * second loads those orders with their lines and the lines' products in one join fetch, so that
+ * walking the lines does not cost a query per order or per product.  The limit has to go on the
+ * first query, since a join fetch returns a row per line rather than per order.
+ * </p>
+ */
+public class OrderHistory {
+   /** The number of orders on a page if none is given. */
+   public static final int DEFAULT_PAGE_SIZE = 100;
+
+   private static final String FIRST_KEYS =
+           "SELECT o.order_date FROM Orders o " +
+           "WHERE  o.customer.customer_id = :customer " +
+           "ORDER BY o.order_date";
+
+   private static final String KEYS_AFTER =
+           "SELECT o.order_date FROM Orders o " +
+           "WHERE  o.customer.customer_id = :customer AND o.order_date > :after " +
+           "ORDER BY o.order_date";
+
+   private static final String ORDERS_WITH_LINES =
+           "SELECT DISTINCT o FROM Orders o " +
+           "LEFT JOIN FETCH o.lines " +
+           "WHERE  o.customer.customer_id = :customer " +
+           "AND    o.order_date >= :first AND o.order_date <= :last " +
+           "ORDER BY o.order_date";
+
+   private final PersistenceManager persistence;
+
+   /**
+    * @param persistence   Where the orders are.
+    */
+   public OrderHistory(PersistenceManager persistence) {
+      this.persistence = persistence;
+   }
+
+   /**
+    * Read one page of a customer's orders.
+    * @param customerId    The customer whose orders to read.
+    * @param after         The cursor of the previous page, or null for the first page.
+    * @param pageSize      The most orders on the page, at least 1.
+    * @return              The page, whose orders are detached but have their lines loaded.
+    */
+   public Page page(long customerId, LocalDateTime after, int pageSize) {
+      if (pageSize < 1) {
+         throw new IllegalArgumentException("Page size must be at least 1: " + pageSize);
+      }
+      return persistence.withEntityManager(manager -> {
+         // Ask for one more key than we need, to learn whether there is a page after this one.
+         TypedQuery<LocalDateTime> query = manager.createQuery(after == null ? FIRST_KEYS : KEYS_AFTER, LocalDateTime.class)
+                 .setParameter("customer", customerId)
+                 .setMaxResults(pageSize + 1);
+         if (after != null) {
+            query.setParameter("after", after);
+         }
+         List<LocalDateTime> keys = query.getResultList();
+         boolean more = keys.size() > pageSize;
+         if (more) {
+            keys = keys.subList(0, pageSize);
+         }
+         List<Orders> orders = keys.isEmpty() ? Collections.emptyList()
+                 : load(manager, customerId, keys.get(0), keys.get(keys.size() - 1));
+         return new Page(orders, more ? keys.get(keys.size() - 1) : null);
+      });
+   }
+
+   /**
+    * All of a customer's orders, oldest first, read a page at a time as the stream is consumed.
+    * Only one page is held in memory at once, unless the caller keeps the orders.
+    * @param customerId    The customer whose orders to read.
+    * @param pageSize      The number of orders to read at a time, at least 1.
+    * @return              The orders, detached, with their lines loaded.
+    */
+   public Stream<Orders> stream(long customerId, int pageSize) {
+      return Stream.iterate(page(customerId, null, pageSize), Objects::nonNull,
+                      page -> page.hasNext() ? page(customerId, page.getNextCursor(), pageSize) : null)
+              .flatMap(page -> page.getOrders().stream());
+   }
+
+   /** Load the orders whose keys run from first to last, with their lines and products. */
+   private static List<Orders> load(EntityManager manager, long customerId, LocalDateTime first, LocalDateTime last) {
+      return manager.createQuery(ORDERS_WITH_LINES, Orders.class)
+              // JPQL cannot fetch through the lines to their products; EclipseLink's hint can.
+              .setHint(QueryHints.LEFT_FETCH, "o.lines.product")
+              .setParameter("customer", customerId)
+              .setParameter("first", first)
+              .setParameter("last", last)
+              .getResultList();
+   }
+
+   /** One page of a customer's orders, and the cursor for the page after it. */
+   public static class Page {
+      private final List<Orders> orders;
+      private final LocalDateTime nextCursor;
+
+      Page(List<Orders> orders, LocalDateTime nextCursor) {
+         this.orders = Collections.unmodifiableList(orders);
+         this.nextCursor = nextCursor;
+      }
+
+      /** @return  The orders on this page, oldest first. */
+      public List<Orders> getOrders() {
+         return orders;
+      }
+
+      /** @return  Whether there are more orders after this page. */
+      public boolean hasNext() {
+         return nextCursor != null;
+      }
+
+      /** @return  The cursor to pass to OrderHistory.page for the next page, or null if this is the last. */
+      public LocalDateTime getNextCursor() {
+         return nextCursor;
+      }
+   }
+}
@@ -0,0 +1,274 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import csulb.cecs323.model.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A headless way to take orders: an embedded HTTP server that places each order it is sent
+ * through an OrderService.
+ * <p>
+ * Orders are POSTed to /orders as an application/x-www-form-urlencoded body:
+ * <pre>
+ *    customer=1&amp;sold_by=Ralph&amp;upc=076174517163&amp;quantity=2[&amp;order_date=2021-03-01T10:15:30]
+ * </pre>
+ * To order several products at once, repeat upc and quantity; the first upc goes with the first
+ * quantity, and so on.  They are all placed as one order.
+ * The response is 201 if the order was placed, 409 if there was not enough stock or the order
+ * clashes with one already placed, 400 if the request was invalid, and 503 if the database could
+ * not be reached, or there was no connection to spare for the order (see below).
+ * </p>
+ * <p>
+ * A server given an OrderJournal instead of an OrderService answers 202 as soon as the order is
+ * in the journal, and the order reaches the database shortly after; see OrderJournal.
+ * </p>
+ * <p>
+ * The server does not serve the Metrics: the port it listens on is open to every interface, and
+ * the metrics are for this machine only; see MetricsEndpoint.
+ * </p>
+ * <p>
+ * Each request is handled on a thread of its own: a virtual thread when the JVM has them
+ * (Java 21 and up), otherwise a thread from a bounded pool of THREADS_PER_CORE threads per core.
+ * Virtual threads are not bounded the way the pool is, so with them, no more orders are placed at
+ * once than the connection pool has connections; an order beyond that is answered 503 straight
+ * away, rather than waiting for a connection until the pool gives up on it.
+ * </p>
+ */
+public class OrderIntakeServer {
+   /** The port that the server listens on if none is given. */
+   public static final int DEFAULT_PORT = 8080;
+
+   /**
+    * The pool threads per core, without virtual threads.  A request spends most of its time
+    * blocked on the database, not on a core, so it takes several threads per core to keep the
+    * cores busy.
+    */
+   private static final int THREADS_PER_CORE = 4;
+
+   /**
+    * Requests that may wait for a pool thread.  Beyond that, a request is run on the server's own
+    * thread, which holds up accepting the next ones.
+    */
+   private static final int QUEUE_CAPACITY = 1024;
+
+   private static final Logger LOGGER = Logger.getLogger(OrderIntakeServer.class.getName());
+
+   /** Places the orders, unless they go to the journal. */
+   private final OrderService orderService;
+
+   /** Takes the orders, or null if the OrderService places them. */
+   private final OrderJournal orderJournal;
+
+   private final HttpServer server;
+
+   private final ExecutorService executor;
+
+   /** The orders that may be placed at once, or null if the thread pool bounds them. */
+   private final Semaphore placing;
+
+   /**
+    * Create a server on the given port.  It does not accept requests until start is called.
+    * @param orderService  The service that places the orders.
+    * @param port          The TCP port to listen on, 0 for any free port.
+    * @throws IOException  if the port cannot be bound.
+    */
+   public OrderIntakeServer(OrderService orderService, int port) throws IOException {
+      this(orderService, null, port);
+   }
+
+   /**
+    * Create a server on the given port, that journals the orders rather than placing them.  It
+    * does not accept requests until start is called.
+    * @param orderJournal  The journal that takes the orders.
+    * @param port          The TCP port to listen on, 0 for any free port.
+    * @throws IOException  if the port cannot be bound.
+    */
+   public OrderIntakeServer(OrderJournal orderJournal, int port) throws IOException {
+      this(null, orderJournal, port);
+   }
+
+   private OrderIntakeServer(OrderService orderService, OrderJournal orderJournal, int port) throws IOException {
+      this.orderService = orderService;
+      this.orderJournal = orderJournal;
+      this.server = HttpServer.create(new InetSocketAddress(port), 0);
+      ExecutorService virtualThreads = newVirtualThreadExecutor();
+      this.executor = virtualThreads != null ? virtualThreads : newThreadPool();
+      // An order that the journal takes needs no connection of its own.
+      this.placing = virtualThreads != null && orderService != null
+              ? new Semaphore(orderService.getPersistence().getPoolStats().getMax()) : null;
+      server.setExecutor(executor);
+      server.createContext("/orders", this::handleOrder);
+   }
+
+   /** Start accepting requests. */
+   public void start() {
+      server.start();
+      LOGGER.info("Taking orders on port " + getPort());
+   }
+
+   /**
+    * Stop accepting requests, and give the ones in progress up to the given delay to finish.
+    * @param delaySeconds  The most time to wait for requests in progress.
+    */
+   public void stop(int delaySeconds) {
+      server.stop(delaySeconds);
+      executor.shutdown();
+   }
+
+   /**
+    * @return  The port that the server is listening on.
+    */
+   public int getPort() {
+      return server.getAddress().getPort();
+   }
+
+   /** Place the order described by one POST to /orders. */
+   private void handleOrder(HttpExchange exchange) throws IOException {
+      if (placing != null && !placing.tryAcquire()) {
+         try {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "Too many orders are being placed, please try again");
+         } finally {
+            exchange.close();
+         }
+         return;
+      }
+      try {
+         if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            respond(exchange, 405, "Orders must be POSTed");
+            return;
+         }
+         Map<String, List<String>> form = parseForm(exchange.getRequestBody());
+         long customer = Long.parseLong(required(form, "customer"));
+         String soldBy = required(form, "sold_by");
+         String date = form.containsKey("order_date") ? required(form, "order_date") : null;
+         LocalDateTime orderDate = date == null ? LocalDateTime.now() : LocalDateTime.parse(date);
+         List<String> upcs = form.getOrDefault("upc", Collections.emptyList());
+         List<String> quantities = form.getOrDefault("quantity", Collections.emptyList());
+         if (upcs.isEmpty() || upcs.size() != quantities.size()) {
+            throw new IllegalArgumentException("Every upc needs a quantity");
+         }
+         Basket basket = new Basket(customer, soldBy, orderDate);
+         for (int i = 0; i < upcs.size(); i++) {
+            basket.add(upcs.get(i), Integer.parseInt(quantities.get(i)));
+         }
+         if (orderJournal != null) {
+            respond(exchange, 202, "Accepted order " + orderJournal.submit(basket));
+         } else {
+            Orders order = orderService.placeOrder(basket);
+            respond(exchange, 201, "Placed " + order);
+         }
+      } catch (InsufficientStockException e) {
+         respond(exchange, 409, e.getMessage());
+      } catch (IllegalArgumentException | DateTimeParseException e) {
+         // NumberFormatException is an IllegalArgumentException too.
+         respond(exchange, 400, e.getMessage());
+      } catch (RuntimeException e) {
+         if (OrderService.isConstraintViolation(e)) {
+            respond(exchange, 409, "The order clashes with one already placed");
+            return;
+         }
+         LOGGER.log(Level.WARNING, "Could not place order", e);
+         respond(exchange, 503, "The order could not be placed, please try again");
+      } finally {
+         if (placing != null) {
+            placing.release();
+         }
+         exchange.close();
+      }
+   }
+
+   /** Send a plain text response. */
+   private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+      byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(status, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+         out.write(body);
+      }
+   }
+
+   /** Decode an application/x-www-form-urlencoded body. */
+   private static Map<String, List<String>> parseForm(InputStream in) throws IOException {
+      String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+      Map<String, List<String>> form = new HashMap<>();
+      for (String pair : body.split("&")) {
+         if (pair.isEmpty()) {
+            continue;
+         }
+         int equals = pair.indexOf('=');
+         String name = equals < 0 ? pair : pair.substring(0, equals);
+         String value = equals < 0 ? "" : pair.substring(equals + 1);
+         form.computeIfAbsent(URLDecoder.decode(name, StandardCharsets.UTF_8), k -> new ArrayList<>())
+                 .add(URLDecoder.decode(value, StandardCharsets.UTF_8));
+      }
+      return form;
+   }
+
+   /** Look up a form field that must be present, and only once. */
+   private static String required(Map<String, List<String>> form, String name) {
+      List<String> values = form.getOrDefault(name, Collections.emptyList());
+      if (values.size() > 1) {
+         throw new IllegalArgumentException("Only one " + name + " is allowed");
+      }
+      String value = values.isEmpty() ? null : values.get(0);
+      if (value == null || value.isEmpty()) {
+         throw new IllegalArgumentException("Missing field " + name);
+      }
+      return value;
+   }
+
+   /**
+    * A virtual thread per request, if this JVM has them.  We compile for Java 11, so the factory
+    * method is looked up by reflection.
+    * @return  The executor, or null if there are no virtual threads.
+    */
+   private static ExecutorService newVirtualThreadExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+         return null;
+      }
+   }
+
+   /**
+    * A pool of platform threads, THREADS_PER_CORE of them per core since placing an order mostly
+    * waits on the database; requests beyond the queue are run by the server's own thread, which
+    * slows down accepting new connections rather than dropping them.
+    */
+   private static ExecutorService newThreadPool() {
+      int threads = Runtime.getRuntime().availableProcessors() * THREADS_PER_CORE;
+      return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+              new ArrayBlockingQueue<>(QUEUE_CAPACITY), new ThreadPoolExecutor.CallerRunsPolicy());
+   }
+}
@@ -0,0 +1,452 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+
+import javax.persistence.EntityManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Takes orders at the rate that the disk can fsync, rather than the rate that the database can
+ * commit, by writing each order to a journal first and to the database later.
+ * <p>
+ * submit appends the order to the "orders" AppendLog and returns once it is durable; with group
+ * commit, the orders submitted at the same time share one fsync.  An order that submit accepted
+ * survives a crash.  A single applier thread then writes the orders to Orders and Order_lines in
+ * batches: all of the orders that came in while the last batch was being written, up to the
+ * batch size, go in one transaction, with one JDBC batch of INSERTs, one update of each
+ * DailyProductSales row that they touch, and the JournalCheckpoint of the last order in it.  When
+ * the journal is opened, the orders after the checkpoint are written before any new ones.
+ * </p>
+ * <p>
+ * With an InventoryLedger, the stock is reserved when the order is submitted, so an order that is
+ * short of stock is turned down right away.  Without one, the stock is taken with ReserveStock when
+ * the order is written.  Either way, an order that turns out not to be possible when it is written,
+ * e.g. for a customer that does not exist, is logged and counted as rejected, its stock is given
+ * back to the ledger, and the applier goes on with the next one.  An order that fails for any other
+ * reason, such as the database going away, is never rejected: the applier waits and tries it
+ * again, and the orders after it wait with it.  If the process dies between
+ * reserving the stock and journalling the order, the stock stays reserved: it can undersell, but
+ * not oversell.
+ * </p>
+ * <p>
+ * An order is in the database some time after submit returns; awaitApplied waits for it.  Orders
+ * are written in the order that they were journalled.
+ * </p>
+ */
+public class OrderJournal implements AutoCloseable {
+   /** The name of the journal, and of its JournalCheckpoint. */
+   public static final String JOURNAL = "orders";
+
+   /** The most orders written in one transaction, by default. */
+   public static final int DEFAULT_BATCH_SIZE = 200;
+
+   /** How long the applier waits for new orders before it looks again. */
+   private static final long POLL_MILLIS = 10;
+
+   /** How long the applier waits before trying again after the database failed. */
+   private static final long RETRY_MILLIS = 200;
+
+   private static final Logger LOGGER = Logger.getLogger(OrderJournal.class.getName());
+
+   private static final Metrics.Counter ACCEPTED = Metrics.counter("customerorders_journal_orders_accepted_total",
+           "Orders accepted into the order journal");
+
+   private static final Metrics.Counter APPLIED = Metrics.counter("customerorders_journal_orders_applied_total",
+           "Journalled orders written to the database");
+
+   private static final Metrics.Counter REJECTED = Metrics.counter("customerorders_journal_orders_rejected_total",
+           "Journalled orders that could not be written to the database");
+
+   private static final Metrics.Timer BATCH = Metrics.timer("customerorders_journal_batch_seconds",
+           "Time to write one batch of journalled orders to the database");
+
+   private final PersistenceManager persistence;
+
+   /** Where the stock is reserved, or null to reserve it with ReserveStock when the order is written. */
+   private final InventoryLedger ledger;
+
+   private final AppendLog journal;
+
+   private final int batchSize;
+
+   /** Orders submitted, that the applier has not picked up yet, in no particular order. */
+   private final LinkedBlockingQueue<Entry> submitted = new LinkedBlockingQueue<>();
+
+   /** Orders picked up by the applier and not yet written, by sequence number.  Applier only. */
+   private final TreeMap<Long, Entry> waiting = new TreeMap<>();
+
+   /** Guards applied, and is waited on by awaitApplied. */
+   private final Object appliedLock = new Object();
+
+   /** The sequence number of the last order written to the database, or rejected. */
+   private long applied;
+
+   private final Thread applier;
+
+   private volatile boolean closing;
+
+   /**
+    * Open the journal in the directory named by the customerorders.journal.dir property, with
+    * batches of DEFAULT_BATCH_SIZE.
+    * @param persistence   The database to write the orders to.
+    * @param ledger        Where to reserve the stock, or null to reserve it in the database.
+    * @return              The journal, whose applier is writing any orders left in it.
+    */
+   public static OrderJournal open(PersistenceManager persistence, InventoryLedger ledger) {
+      return new OrderJournal(persistence, ledger, Paths.get(System.getProperty(InventoryLedger.DIRECTORY_PROPERTY,
+              InventoryLedger.DEFAULT_DIRECTORY)), DEFAULT_BATCH_SIZE);
+   }
+
+   /**
+    * Open the journal, and start writing any orders in it that did not reach the database.
+    * @param persistence   The database to write the orders to.
+    * @param ledger        Where to reserve the stock, or null to reserve it in the database.
+    * @param directory     The directory of the journal.
+    * @param batchSize     The most orders to write in one transaction.
+    * @throws UncheckedIOException   if the journal cannot be read.
+    */
+   public OrderJournal(PersistenceManager persistence, InventoryLedger ledger, Path directory, int batchSize) {
+      if (batchSize < 1) {
+         throw new IllegalArgumentException("The batch size must be at least 1: " + batchSize);
+      }
+      this.persistence = persistence;
+      this.ledger = ledger;
+      this.batchSize = batchSize;
+      try {
+         this.journal = AppendLog.open(directory, JOURNAL);
+         recover();
+      } catch (IOException e) {
+         throw new UncheckedIOException("Could not recover the " + JOURNAL + " journal in " + directory, e);
+      }
+      this.applier = new Thread(this::applyUntilClosed, "order-journal-applier");
+      applier.setDaemon(true);
+      applier.start();
+   }
+
+   /** Queue up the orders after the checkpoint, for the applier to write first. */
+   private void recover() throws IOException {
+      long checkpoint = persistence.withEntityManager(manager -> {
+         JournalCheckpoint found = manager.find(JournalCheckpoint.class, JOURNAL);
+         return found == null ? 0L : found.getLast_sequence();
+      });
+      journal.advanceTo(checkpoint);
+      journal.replay(checkpoint, (sequence, payload) -> waiting.put(sequence, new Entry(sequence, decode(payload))));
+      if (!waiting.isEmpty()) {
+         LOGGER.log(Level.INFO, "{0} journalled orders still to be written, up to {1}",
+                 new Object[]{waiting.size(), waiting.lastKey()});
+      }
+      applied = checkpoint;
+      journal.discardThrough(checkpoint);
+   }
+
+   /**
+    * Take an order: reserve its stock, if there is a ledger, and journal it.
+    * @param basket     The products to order.
+    * @return           The sequence number of the order in the journal.
+    * @throws InsufficientStockException   if there is a ledger, and any product is short.
+    * @throws IllegalArgumentException     if the basket is empty, or a product does not exist.
+    * @throws UncheckedIOException         if the order could not be journalled.
+    */
+   public long submit(Basket basket) {
+      if (basket.isEmpty()) {
+         throw new IllegalArgumentException("There is nothing in the basket");
+      }
+      if (closing) {
+         throw new IllegalStateException("The order journal is closed");
+      }
+      if (ledger != null) {
+         ledger.reserveAll(basket.getQuantities());
+      }
+      long sequence = journal.append(encode(basket));
+      submitted.add(new Entry(sequence, basket));
+      journal.sync(sequence);
+      ACCEPTED.increment();
+      return sequence;
+   }
+
+   /**
+    * Wait until an order is in the database, or has been rejected.
+    * @param sequence   The sequence number that submit returned.
+    * @param timeout    The longest to wait.
+    * @param unit       The unit of the timeout.
+    * @return           Whether the order was written before the time ran out.
+    * @throws InterruptedException   if the wait is interrupted.
+    */
+   public boolean awaitApplied(long sequence, long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      synchronized (appliedLock) {
+         while (applied < sequence) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+               return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(appliedLock, left);
+         }
+         return true;
+      }
+   }
+
+   /** @return  The sequence number of the last order written to the database, or rejected. */
+   public long getAppliedSequence() {
+      synchronized (appliedLock) {
+         return applied;
+      }
+   }
+
+   /** The applier thread: write batches as the orders come in, until closed and caught up. */
+   private void applyUntilClosed() {
+      while (true) {
+         boolean failed = false;
+         try {
+            Entry entry = submitted.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (entry != null) {
+               waiting.put(entry.sequence, entry);
+            }
+            for (Entry more; (more = submitted.poll()) != null; ) {
+               waiting.put(more.sequence, more);
+            }
+            applyReady();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         } catch (RuntimeException e) {
+            // The orders are still in the journal, and in waiting; try them again shortly.
+            LOGGER.log(Level.WARNING, "Could not write journalled orders to the database", e);
+            failed = true;
+         }
+         if (closing && submitted.isEmpty() && (failed || nextBatch().isEmpty())) {
+            return;
+         }
+         if (failed) {
+            try {
+               Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               return;
+            }
+         }
+      }
+   }
+
+   /** Write every batch that is ready. */
+   private void applyReady() {
+      for (List<Entry> batch = nextBatch(); !batch.isEmpty(); batch = nextBatch()) {
+         if (!applyBatch(batch)) {
+            return;
+         }
+      }
+   }
+
+   /** The durable orders that follow the last one written, without a gap, up to the batch size. */
+   private List<Entry> nextBatch() {
+      long durable = journal.getDurableSequence();
+      List<Entry> batch = new ArrayList<>();
+      long next = getAppliedSequence() + 1;
+      for (Entry entry : waiting.tailMap(next).values()) {
+         if (entry.sequence != next || next > durable || batch.size() == batchSize) {
+            break;
+         }
+         batch.add(entry);
+         next++;
+      }
+      return batch;
+   }
+
+   /**
+    * Write a batch in one transaction.  If that fails, write its orders one at a time, so that one
+    * bad order does not hold up the rest.  An order is only rejected for something wrong with the
+    * order itself; anything else, such as a lost connection, is thrown, and the order stays in
+    * waiting for applyUntilClosed to try again.
+    * @return  false if an order ran into a lock conflict, and has to wait to be tried again.
+    */
+   private boolean applyBatch(List<Entry> batch) {
+      long start = BATCH.start();
+      try {
+         write(batch);
+         return true;
+      } catch (RuntimeException e) {
+         LOGGER.log(Level.FINE, "Could not write a batch of {0} orders, writing them one at a time", batch.size());
+      } finally {
+         BATCH.stop(start);
+      }
+      for (Entry entry : batch) {
+         try {
+            write(List.of(entry));
+         } catch (RuntimeException e) {
+            if (isBadOrder(e)) {
+               reject(entry, e);
+               continue;
+            }
+            if (OrderService.isConflict(e) && ++entry.conflicts < OrderService.DEFAULT_MAX_ATTEMPTS) {
+               return false;
+            }
+            // The order was accepted and is durable, so it must not be dropped for a failure that
+            // may go away; after that many conflicts, try again only after RETRY_MILLIS.
+            throw e;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Whether writing an order failed for good, whenever it is tried: there is no such customer or
+    * product, there is not enough stock, or the order breaks a constraint, such as having the key
+    * of an order already written.
+    */
+   private static boolean isBadOrder(RuntimeException e) {
+      return e instanceof IllegalArgumentException || e instanceof InsufficientStockException
+              || OrderService.isConstraintViolation(e);
+   }
+
+   /** Write the orders, and move the checkpoint past them, in one transaction. */
+   private void write(List<Entry> batch) {
+      long through = batch.get(batch.size() - 1).sequence;
+      persistence.inTransaction(manager -> {
+         List<Orders> orders = new ArrayList<>(batch.size());
+         for (Entry entry : batch) {
+            orders.add(OrderService.writeOrder(manager, entry.basket, ledger == null));
+         }
+         // Send the INSERTs as one batch before the rollup's UPDATEs.
+         manager.flush();
+         SalesRollup.record(manager, orders);
+         checkpoint(manager, through);
+         return null;
+      });
+      if (ledger == null) {
+         Set<String> upcs = new HashSet<>();
+         for (Entry entry : batch) {
+            upcs.addAll(entry.basket.getQuantities().keySet());
+         }
+         persistence.evict(Products.class, upcs);
+      }
+      APPLIED.add(batch.size());
+      advance(through);
+   }
+
+   /**
+    * Skip an order that cannot be written.  The checkpoint moves past it before its stock is
+    * given back, so that a crash in between cannot give the stock back twice.
+    */
+   private void reject(Entry entry, RuntimeException cause) {
+      LOGGER.log(Level.WARNING, "Rejected journalled order " + entry.sequence + " for customer "
+              + entry.basket.getCustomerId(), cause);
+      persistence.inTransaction(manager -> {
+         checkpoint(manager, entry.sequence);
+         return null;
+      });
+      REJECTED.increment();
+      advance(entry.sequence);
+      if (ledger != null) {
+         ledger.releaseAll(entry.basket.getQuantities());
+      }
+   }
+
+   private static void checkpoint(EntityManager manager, long through) {
+      JournalCheckpoint checkpoint = manager.find(JournalCheckpoint.class, JOURNAL);
+      if (checkpoint == null) {
+         manager.persist(new JournalCheckpoint(JOURNAL, through, LocalDateTime.now()));
+      } else {
+         checkpoint.setLast_sequence(through);
+         checkpoint.setCheckpointed_at(LocalDateTime.now());
+      }
+   }
+
+   /** Record that everything up to through is done with. */
+   private void advance(long through) {
+      waiting.headMap(through, true).clear();
+      synchronized (appliedLock) {
+         applied = through;
+         appliedLock.notifyAll();
+      }
+      journal.discardThrough(through);
+   }
+
+   /**
+    * Stop taking orders, wait for the applier to write the ones that it can, and close the
+    * journal.  Orders that could not be written stay in the journal for the next time it is opened.
+    */
+   @Override
+   public void close() {
+      closing = true;
+      try {
+         applier.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      try {
+         journal.close();
+      } catch (IOException e) {
+         throw new UncheckedIOException("Could not close the " + JOURNAL + " journal", e);
+      }
+   }
+
+   private static byte[] encode(Basket basket) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+         out.writeLong(basket.getCustomerId());
+         out.writeUTF(basket.getSoldBy());
+         out.writeUTF(basket.getOrderDate().toString());
+         out.writeInt(basket.getQuantities().size());
+         for (Map.Entry<String, Integer> item : basket.getQuantities().entrySet()) {
+            out.writeUTF(item.getKey());
+            out.writeInt(item.getValue());
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      return bytes.toByteArray();
+   }
+
+   private static Basket decode(byte[] payload) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+      Basket basket = new Basket(in.readLong(), in.readUTF(), LocalDateTime.parse(in.readUTF()));
+      for (int items = in.readInt(); items > 0; items--) {
+         basket.add(in.readUTF(), in.readInt());
+      }
+      return basket;
+   }
+
+   /** One journalled order. */
+   private static final class Entry {
+      private final long sequence;
+      private final Basket basket;
+
+      /** The times that writing the order on its own ran into a conflict.  Applier only. */
+      private int conflicts;
+
+      Entry(long sequence, Basket basket) {
+         this.sequence = sequence;
+         this.basket = basket;
+      }
+   }
+}
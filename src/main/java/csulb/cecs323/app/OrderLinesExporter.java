@@ -0,0 +1,520 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.queries.CursoredStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dumps every order line, with the order that it belongs to, to a compact columnar file.
+ * <p>
+ * The customers are split into key ranges, a few per thread, and the lines of each range are
+ * read on a ForkJoinPool by a scalar JPQL query through a cursor, so that the rows stream from
+ * the database fetchSize at a time and no entities are built.  The same query works on both
+ * the natural and the compact schema.  Each thread encodes its rows into row groups of up to
+ * ROW_GROUP_SIZE lines and appends them to the file, so reading, encoding and writing all scale
+ * with the number of threads.
+ * </p>
+ * <p>
+ * The dump is not a snapshot of the database.  Each range is read by a statement of its own, in a
+ * transaction of its own, at whatever time a thread gets to it, so an order placed or changed
+ * while the export runs is in the file, or not, as of when its customer's range was read.  Every
+ * order comes from one statement, so its lines are all there or none of them are.  For a
+ * consistent dump, export while no orders are being written.
+ * </p>
+ * <p>
+ * The file is:
+ * <pre>
+ *    "OLX2"
+ *    row group*
+ *    footer:  int groups, then per group: long offset, int length, int rows
+ *    int      length of the footer
+ *    "OLX2"
+ * </pre>
+ * The footer lists the row groups in the order of their lines, customer_id then order_date,
+ * whatever order they were written in.  A row group is an int number of rows, an int byte length
+ * for each of the COLUMNS, and the columns one after the other, so that a reader can skip the
+ * columns that it does not want:
+ * <ul>
+ *    <li>customer_id: the difference from the row before, as a zig-zag varint.</li>
+ *    <li>order_date: nanoseconds since 1970-01-01T00:00, as a difference from the row before,
+ *    zig-zag varint.  The rows are sorted, so these are small.</li>
+ *    <li>sold_by and upc: a dictionary, an int count of UTF strings, then the index of each row's
+ *    value in it as a varint.</li>
+ *    <li>quantity: an int per row.</li>
+ *    <li>unit_sale_price: cents, as a zig-zag varint.</li>
+ * </ul>
+ * read gives the lines back, in order.
+ * </p>
+ */
+public class OrderLinesExporter {
+   /** The number of lines that the JDBC driver fetches at a time, if none is given. */
+   public static final int DEFAULT_FETCH_SIZE = 1000;
+
+   /** The most lines in one row group. */
+   public static final int ROW_GROUP_SIZE = 1 << 16;
+
+   /** The columns of a row group, in the order that they are stored. */
+   public static final List<String> COLUMNS = List.of("customer_id", "order_date", "sold_by", "upc",
+           "quantity", "unit_sale_price");
+
+   /** The key ranges per thread, so that a thread that finishes early can take another one. */
+   private static final int RANGES_PER_THREAD = 4;
+
+   private static final byte[] MAGIC = {'O', 'L', 'X', '2'};
+
+   private static final Logger LOGGER = Logger.getLogger(OrderLinesExporter.class.getName());
+
+   private static final String CUSTOMER_RANGE =
+           "SELECT MIN(c.customer_id), MAX(c.customer_id) FROM Customers c";
+
+   /**
+    * o.customer.customer_id and l.product.UPC would join to CUSTOMERS and PRODUCTS just to read
+    * keys that ORDERS and ORDER_LINES already have, so read their foreign key columns instead.
+    */
+   private static final String LINES_IN_RANGE =
+           "SELECT COLUMN('customer_id', o), o.order_date, o.sold_by, COLUMN('product_upc', l), " +
+           "       l.quantity, l.unit_sale_price " +
+           "FROM   Order_lines l JOIN l.order o " +
+           "WHERE  COLUMN('customer_id', o) BETWEEN :low AND :high " +
+           "ORDER BY COLUMN('customer_id', o), o.order_date, COLUMN('product_upc', l)";
+
+   private final PersistenceManager persistence;
+
+   private final int parallelism;
+
+   private final int fetchSize;
+
+   /**
+    * @param persistence   Where the orders are.
+    * @param parallelism   The number of threads reading and encoding lines, at least 1.
+    * @param fetchSize     The number of lines that the JDBC driver fetches at a time, at least 1.
+    */
+   public OrderLinesExporter(PersistenceManager persistence, int parallelism, int fetchSize) {
+      if (parallelism < 1) {
+         throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+      }
+      if (fetchSize < 1) {
+         throw new IllegalArgumentException("Fetch size must be at least 1: " + fetchSize);
+      }
+      this.persistence = persistence;
+      this.parallelism = parallelism;
+      this.fetchSize = fetchSize;
+   }
+
+   /**
+    * An exporter with a thread per core, and DEFAULT_FETCH_SIZE.
+    * @param persistence   Where the orders are.
+    */
+   public OrderLinesExporter(PersistenceManager persistence) {
+      this(persistence, Runtime.getRuntime().availableProcessors(), DEFAULT_FETCH_SIZE);
+   }
+
+   /**
+    * Write every order line to a file.  The file is written under a temporary name and moved
+    * into place when it is complete, so a reader never sees half of one.
+    * @param file       The file to write, replacing any that is there.
+    * @return           The number of lines written.
+    * @throws UncheckedIOException   if the file could not be written.
+    */
+   public long export(Path file) {
+      long start = System.nanoTime();
+      Path partial = file.resolveSibling(file.getFileName() + ".partial");
+      List<long[]> ranges = customerRanges();
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      try {
+         long lines = 0;
+         int groups;
+         try (Output output = new Output(partial)) {
+            List<Callable<Long>> tasks = new ArrayList<>(ranges.size());
+            for (long[] range : ranges) {
+               tasks.add(() -> exportRange(range[0], range[1], output));
+            }
+            for (Future<Long> done : pool.invokeAll(tasks)) {
+               lines += done.get();
+            }
+            groups = output.finish();
+         }
+         Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         LOGGER.log(Level.INFO, "Exported {0} order lines in {1} row groups to {2} in {3} ms",
+                 new Object[]{lines, groups, file, (System.nanoTime() - start) / 1_000_000});
+         return lines;
+      } catch (IOException e) {
+         throw new UncheckedIOException("Could not export the order lines to " + file, e);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Export to " + file + " was interrupted", e);
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         throw new IllegalStateException("Export to " + file + " failed", cause);
+      } finally {
+         pool.shutdownNow();
+         try {
+            Files.deleteIfExists(partial);
+         } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete " + partial, e);
+         }
+      }
+   }
+
+   /** Split the customer ids into about RANGES_PER_THREAD ranges per thread, low and high inclusive. */
+   private List<long[]> customerRanges() {
+      Object[] bounds = persistence.withEntityManager(manager ->
+              manager.createQuery(CUSTOMER_RANGE, Object[].class).getSingleResult());
+      List<long[]> ranges = new ArrayList<>();
+      if (bounds[0] == null) {
+         return ranges;
+      }
+      long low = ((Number) bounds[0]).longValue();
+      long high = ((Number) bounds[1]).longValue();
+      long step = Math.max(1, (high - low) / ((long) parallelism * RANGES_PER_THREAD) + 1);
+      for (long from = low; from <= high; from += step) {
+         ranges.add(new long[]{from, Math.min(high, from + step - 1)});
+      }
+      return ranges;
+   }
+
+   /** Stream the lines of one range of customers into row groups. */
+   private long exportRange(long low, long high, Output output) {
+      return persistence.withEntityManager(manager -> {
+         CursoredStream cursor = (CursoredStream) manager.createQuery(LINES_IN_RANGE)
+                 .setParameter("low", low)
+                 .setParameter("high", high)
+                 .setHint(QueryHints.CURSOR, HintValues.TRUE)
+                 .setHint(QueryHints.CURSOR_PAGE_SIZE, fetchSize)
+                 .setHint(QueryHints.JDBC_FETCH_SIZE, fetchSize)
+                 .getSingleResult();
+         RowGroup group = new RowGroup();
+         long lines = 0;
+         try {
+            while (cursor.hasNext()) {
+               Object[] row = (Object[]) cursor.next();
+               group.add(((Number) row[0]).longValue(), (LocalDateTime) row[1], (String) row[2], (String) row[3],
+                       ((Number) row[4]).intValue(), ((Number) row[5]).longValue());
+               if (++lines % fetchSize == 0) {
+                  // The cursor keeps every row that it has read unless told otherwise.
+                  cursor.releasePrevious();
+               }
+               if (group.rows == ROW_GROUP_SIZE) {
+                  output.append(group);
+                  group = new RowGroup();
+               }
+            }
+            if (group.rows > 0) {
+               output.append(group);
+            }
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         } finally {
+            cursor.close();
+         }
+         return lines;
+      });
+   }
+
+   /** Receives the lines of an export, one at a time, from read. */
+   public interface LineHandler {
+      void line(long customerId, LocalDateTime orderDate, String soldBy, String upc, int quantity,
+                long unitSalePriceCents);
+   }
+
+   /**
+    * Read an export, in the order of its lines.
+    * @param file       The file that export wrote.
+    * @param handler    Is given each line.
+    * @return           The number of lines read.
+    * @throws IOException   if the file cannot be read, or is not an export.
+    */
+   public static long read(Path file, LineHandler handler) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+         long size = channel.size();
+         ByteBuffer tail = ByteBuffer.allocate(8);
+         if (size < 2 * MAGIC.length + 4 || !readFully(channel, tail, size - 8)
+                 || !Arrays.equals(Arrays.copyOfRange(tail.array(), 4, 8), MAGIC)) {
+            throw new IOException(file + " is not an order lines export");
+         }
+         int footerLength = tail.getInt(0);
+         ByteBuffer footer = ByteBuffer.allocate(footerLength);
+         readFully(channel, footer, size - 8 - footerLength);
+         footer.flip();
+         long lines = 0;
+         for (int groups = footer.getInt(); groups > 0; groups--) {
+            long offset = footer.getLong();
+            ByteBuffer group = ByteBuffer.allocate(footer.getInt());
+            footer.getInt();
+            readFully(channel, group, offset);
+            lines += RowGroup.decode(group.array(), handler);
+         }
+         return lines;
+      }
+   }
+
+   private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+         if (channel.read(buffer, position + buffer.position()) < 0) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /** Where the threads append their row groups.  The footer is written by finish. */
+   private static final class Output implements AutoCloseable {
+      private final FileChannel channel;
+
+      /** Per row group: the first customer and order_date, for sorting, then offset, length and rows. */
+      private final List<long[]> groups = new ArrayList<>();
+
+      private long position;
+
+      Output(Path file) throws IOException {
+         this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING);
+         write(ByteBuffer.wrap(MAGIC));
+      }
+
+      /** Encode a row group outside of the lock, then write it at the end of the file. */
+      void append(RowGroup group) throws IOException {
+         byte[] bytes = group.encode();
+         synchronized (this) {
+            groups.add(new long[]{group.customers[0], group.dates[0], position, bytes.length, group.rows});
+            write(ByteBuffer.wrap(bytes));
+         }
+      }
+
+      /** Write the footer, and make the file durable.  Returns the number of row groups. */
+      synchronized int finish() throws IOException {
+         groups.sort(Comparator.<long[]>comparingLong(g -> g[0]).thenComparingLong(g -> g[1])
+                 .thenComparingLong(g -> g[2]));
+         ByteBuffer footer = ByteBuffer.allocate(4 + groups.size() * 16 + 4 + MAGIC.length);
+         footer.putInt(groups.size());
+         for (long[] group : groups) {
+            footer.putLong(group[2]).putInt((int) group[3]).putInt((int) group[4]);
+         }
+         footer.putInt(4 + groups.size() * 16).put(MAGIC).flip();
+         write(footer);
+         channel.force(false);
+         return groups.size();
+      }
+
+      private void write(ByteBuffer buffer) throws IOException {
+         while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+         }
+      }
+
+      @Override
+      public void close() throws IOException {
+         channel.close();
+      }
+   }
+
+   /** Up to ROW_GROUP_SIZE lines, a primitive array per column, and their encoding. */
+   private static final class RowGroup {
+      private final long[] customers = new long[ROW_GROUP_SIZE];
+      private final long[] dates = new long[ROW_GROUP_SIZE];
+      private final int[] soldBy = new int[ROW_GROUP_SIZE];
+      private final int[] upcs = new int[ROW_GROUP_SIZE];
+      private final int[] quantities = new int[ROW_GROUP_SIZE];
+      private final long[] prices = new long[ROW_GROUP_SIZE];
+      private final Dictionary soldByDictionary = new Dictionary();
+      private final Dictionary upcDictionary = new Dictionary();
+      private int rows;
+
+      void add(long customerId, LocalDateTime orderDate, String soldBy, String upc, int quantity, long price) {
+         customers[rows] = customerId;
+         dates[rows] = toEpochNanos(orderDate);
+         this.soldBy[rows] = soldByDictionary.indexOf(soldBy);
+         upcs[rows] = upcDictionary.indexOf(upc);
+         quantities[rows] = quantity;
+         prices[rows] = price;
+         rows++;
+      }
+
+      byte[] encode() throws IOException {
+         List<ByteArrayOutputStream> columns = new ArrayList<>(COLUMNS.size());
+         DataOutputStream out = column(columns, rows * 2);
+         for (int i = 0; i < rows; i++) {
+            writeVarLong(out, zigZag(customers[i] - (i == 0 ? 0 : customers[i - 1])));
+         }
+         out = column(columns, rows * 4);
+         for (int i = 0; i < rows; i++) {
+            writeVarLong(out, zigZag(dates[i] - (i == 0 ? 0 : dates[i - 1])));
+         }
+         writeDictionary(column(columns, rows), soldByDictionary, soldBy, rows);
+         writeDictionary(column(columns, rows * 2), upcDictionary, upcs, rows);
+         out = column(columns, rows * Integer.BYTES);
+         for (int i = 0; i < rows; i++) {
+            out.writeInt(quantities[i]);
+         }
+         out = column(columns, rows * 3);
+         for (int i = 0; i < rows; i++) {
+            writeVarLong(out, zigZag(prices[i]));
+         }
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + 4 * columns.size()
+                 + columns.stream().mapToInt(ByteArrayOutputStream::size).sum());
+         DataOutputStream group = new DataOutputStream(bytes);
+         group.writeInt(rows);
+         for (ByteArrayOutputStream column : columns) {
+            group.writeInt(column.size());
+         }
+         for (ByteArrayOutputStream column : columns) {
+            column.writeTo(group);
+         }
+         return bytes.toByteArray();
+      }
+
+      static int decode(byte[] bytes, LineHandler handler) throws IOException {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(bytes)));
+         int rows = in.readInt();
+         in.skipBytes(4 * COLUMNS.size());
+         long[] customers = new long[rows];
+         long[] dates = new long[rows];
+         for (int i = 0; i < rows; i++) {
+            customers[i] = (i == 0 ? 0 : customers[i - 1]) + unZigZag(readVarLong(in));
+         }
+         for (int i = 0; i < rows; i++) {
+            dates[i] = (i == 0 ? 0 : dates[i - 1]) + unZigZag(readVarLong(in));
+         }
+         String[] soldBy = readDictionary(in, rows);
+         String[] upcs = readDictionary(in, rows);
+         int[] quantities = new int[rows];
+         for (int i = 0; i < rows; i++) {
+            quantities[i] = in.readInt();
+         }
+         for (int i = 0; i < rows; i++) {
+            handler.line(customers[i], fromEpochNanos(dates[i]), soldBy[i], upcs[i], quantities[i],
+                    unZigZag(readVarLong(in)));
+         }
+         return rows;
+      }
+
+      private static DataOutputStream column(List<ByteArrayOutputStream> columns, int expectedSize) {
+         ByteArrayOutputStream column = new ByteArrayOutputStream(Math.max(32, expectedSize));
+         columns.add(column);
+         return new DataOutputStream(column);
+      }
+
+      private static void writeDictionary(DataOutputStream out, Dictionary dictionary, int[] indexes, int rows)
+              throws IOException {
+         out.writeInt(dictionary.values.size());
+         for (String value : dictionary.values) {
+            out.writeUTF(value);
+         }
+         for (int i = 0; i < rows; i++) {
+            writeVarLong(out, indexes[i]);
+         }
+      }
+
+      /** Read a dictionary column, and give back the value of each row. */
+      private static String[] readDictionary(DataInput in, int rows) throws IOException {
+         String[] values = new String[in.readInt()];
+         for (int i = 0; i < values.length; i++) {
+            values[i] = in.readUTF();
+         }
+         String[] column = new String[rows];
+         for (int i = 0; i < rows; i++) {
+            column[i] = values[(int) readVarLong(in)];
+         }
+         return column;
+      }
+   }
+
+   /** The distinct values of a column, and the index of each. */
+   private static final class Dictionary {
+      private final Map<String, Integer> indexes = new HashMap<>();
+      private final List<String> values = new ArrayList<>();
+
+      int indexOf(String value) {
+         Integer index = indexes.get(value);
+         if (index == null) {
+            index = values.size();
+            indexes.put(value, index);
+            values.add(value);
+         }
+         return index;
+      }
+   }
+
+   private static long toEpochNanos(LocalDateTime time) {
+      return Math.addExact(Math.multiplyExact(time.toEpochSecond(ZoneOffset.UTC), 1_000_000_000L), time.getNano());
+   }
+
+   private static LocalDateTime fromEpochNanos(long nanos) {
+      return LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L),
+              (int) Math.floorMod(nanos, 1_000_000_000L), ZoneOffset.UTC);
+   }
+
+   /** Map signed values to unsigned ones, small negatives to small positives, so they varint well. */
+   private static long zigZag(long value) {
+      return (value << 1) ^ (value >> 63);
+   }
+
+   private static long unZigZag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   /** Write an unsigned value seven bits at a time, low bits first, the high bit set on all but the last byte. */
+   private static void writeVarLong(DataOutput out, long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+         out.writeByte((int) ((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }
+      out.writeByte((int) value);
+   }
+
+   private static long readVarLong(DataInput in) throws IOException {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+         byte b = in.readByte();
+         value |= (long) (b & 0x7F) << shift;
+         if (b >= 0) {
+            return value;
+         }
+      }
+   }
+}
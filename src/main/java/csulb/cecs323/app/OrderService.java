@@ -0,0 +1,305 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
+import javax.persistence.*;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Places orders, each in its own short transaction, so that any number of threads can take
+ * orders at the same time.
+ * <p>
+ * Stock is reserved with the ReserveStock query, a single conditional UPDATE that only takes the
+ * units if they are still there.  The database row lock that the UPDATE takes is held only until
+ * the order's transaction commits, and there is no lock of any kind in this class, so orders for
+ * different products never wait on each other.  If the database picks our transaction as the
+ * victim of a deadlock or lock timeout, the whole order is retried after a short random pause.
+ * </p>
+ * <p>
+ * Given an InventoryLedger, the stock is reserved in the ledger instead, before the transaction
+ * starts, and the transaction only writes the order.  The reservations are released if the
+ * order cannot be placed.  The ledger changes the stock in the database only when it next
+ * flushes, so that is when the products are dropped from the ProductCatalog, rather than when
+ * the order commits.
+ * </p>
+ * <p>
+ * An OrderService is thread safe; share one instance among all of the callers.
+ * </p>
+ */
+public class OrderService {
+   /** How many times an order is tried before a conflict is passed on to the caller. */
+   public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+   /** Upper bound, in milliseconds, of the pause before the first retry.  It doubles each time. */
+   private static final long BACKOFF_MILLIS = 5;
+
+   private static final Logger LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   private static final Metrics.Timer PLACEMENT = Metrics.timer("customerorders_order_placement_seconds",
+           "Time to place an order, including any retries");
+
+   private static final Metrics.Counter PLACED = Metrics.counter("customerorders_orders_placed_total",
+           "Orders placed");
+
+   private static final Metrics.Counter OUT_OF_STOCK = Metrics.counter("customerorders_orders_out_of_stock_total",
+           "Orders turned down because a product did not have enough stock");
+
+   private static final Metrics.Counter RETRIES = Metrics.counter("customerorders_order_retries_total",
+           "Orders tried again after a lock conflict");
+
+   /** Every order is a unit of work of its own. */
+   private final PersistenceManager persistence;
+
+   /** Products whose stock we change are dropped from this cache, if there is one. */
+   private final ProductCatalog catalog;
+
+   /** Where the stock is reserved, or null to reserve it in the database with ReserveStock. */
+   private final InventoryLedger ledger;
+
+   private final int maxAttempts;
+
+   /**
+    * Create an OrderService that retries conflicting orders up to DEFAULT_MAX_ATTEMPTS times.
+    * @param persistence   The source of the EntityManagers for the orders.
+    */
+   public OrderService(PersistenceManager persistence) {
+      this(persistence, null, DEFAULT_MAX_ATTEMPTS);
+   }
+
+   /**
+    * @param persistence   The source of the EntityManagers for the orders.
+    * @param catalog       The product cache to keep up to date with the stock we take, or null.
+    * @param maxAttempts   How many times to try an order before giving up on a conflict.
+    */
+   public OrderService(PersistenceManager persistence, ProductCatalog catalog, int maxAttempts) {
+      this(persistence, catalog, null, maxAttempts);
+   }
+
+   /**
+    * @param persistence   The source of the EntityManagers for the orders.
+    * @param catalog       The product cache to keep up to date with the stock we take, or null.
+    * @param ledger        The ledger to reserve stock in, or null to reserve it in the database.
+    * @param maxAttempts   How many times to try an order before giving up on a conflict.
+    */
+   public OrderService(PersistenceManager persistence, ProductCatalog catalog, InventoryLedger ledger,
+                       int maxAttempts) {
+      if (maxAttempts < 1) {
+         throw new IllegalArgumentException("There must be at least one attempt: " + maxAttempts);
+      }
+      this.persistence = persistence;
+      this.catalog = catalog;
+      this.ledger = ledger;
+      this.maxAttempts = maxAttempts;
+      if (ledger != null && catalog != null) {
+         ledger.onWriteBack(catalog::invalidate);
+      }
+   }
+
+   /** @return  The PersistenceManager that the orders are placed through. */
+   PersistenceManager getPersistence() {
+      return persistence;
+   }
+
+   /**
+    * Place an order for a quantity of one product.
+    * @param customerId    The customer placing the order.
+    * @param soldBy        The sales associate taking the order.
+    * @param orderDate     When the order was placed.
+    * @param upc           The product ordered.
+    * @param quantity      How many of the product, at least 1.
+    * @return              The order that was written, detached.
+    * @throws InsufficientStockException   if there are not that many units in stock.
+    * @throws IllegalArgumentException     if there is no such customer or product.
+    */
+   public Orders placeOrder(long customerId, String soldBy, LocalDateTime orderDate, String upc, int quantity) {
+      return placeOrder(new Basket(customerId, soldBy, orderDate).add(upc, quantity));
+   }
+
+   /**
+    * Place one order for everything in a basket.  The stock of every product is taken and the
+    * order and all of its lines are written in one transaction; either all of it happens or
+    * none of it does.  The order lines go to the database as one JDBC batch, and are added to
+    * the DailyProductSales rollup in the same transaction.
+    * @param basket        The products to order.
+    * @return              The order that was written, with its lines, detached.
+    * @throws InsufficientStockException   if any product does not have enough units in stock.
+    * @throws IllegalArgumentException     if the basket is empty, or there is no such customer
+    *                                      or product.
+    */
+   public Orders placeOrder(Basket basket) {
+      if (basket.isEmpty()) {
+         throw new IllegalArgumentException("There is nothing in the basket");
+      }
+      long start = PLACEMENT.start();
+      try {
+         if (ledger == null) {
+            return placeWithRetries(basket);
+         }
+         ledger.reserveAll(basket.getQuantities());
+         boolean placed = false;
+         try {
+            Orders order = placeWithRetries(basket);
+            placed = true;
+            return order;
+         } finally {
+            if (!placed) {
+               ledger.releaseAll(basket.getQuantities());
+            }
+         }
+      } catch (InsufficientStockException e) {
+         OUT_OF_STOCK.increment();
+         throw e;
+      } finally {
+         PLACEMENT.stop(start);
+      }
+   }
+
+   /** Place the order, trying again after a conflict. */
+   private Orders placeWithRetries(Basket basket) {
+      for (int attempt = 1; ; attempt++) {
+         try {
+            Orders order = tryPlaceOrder(basket);
+            // With a ledger, the stock in the database has not changed yet; see onWriteBack.
+            if (ledger == null) {
+               persistence.evict(Products.class, basket.getQuantities().keySet());
+               if (catalog != null) {
+                  basket.getQuantities().keySet().forEach(catalog::invalidate);
+               }
+            }
+            PLACED.increment();
+            return order;
+         } catch (PersistenceException e) {
+            if (attempt >= maxAttempts || !isConflict(e)) {
+               throw e;
+            }
+            LOGGER.log(Level.FINE, "Conflict placing order for customer {0}, attempt {1}",
+                    new Object[]{basket.getCustomerId(), attempt});
+            RETRIES.increment();
+            backOff(attempt);
+         }
+      }
+   }
+
+   /** One attempt at placing the order, in a transaction of its own. */
+   private Orders tryPlaceOrder(Basket basket) {
+      return persistence.inTransaction(manager -> {
+         Orders order = writeOrder(manager, basket, ledger == null);
+         SalesRollup.record(manager, order);
+         return order;
+      });
+   }
+
+   /**
+    * Persist the order for a basket, with its lines, in the caller's transaction.  If it takes
+    * the stock, the caller must evict the products from the shared cache once it commits.
+    * @param manager       The EntityManager of the transaction.
+    * @param basket        The products to order.
+    * @param reserveStock  Whether to take the stock with ReserveStock, or it has already been taken.
+    * @return              The order, managed by the EntityManager.
+    * @throws InsufficientStockException   if any product does not have enough units in stock.
+    * @throws IllegalArgumentException     if there is no such customer or product.
+    */
+   static Orders writeOrder(EntityManager manager, Basket basket, boolean reserveStock) {
+      Customers customer = manager.find(Customers.class, basket.getCustomerId());
+      if (customer == null) {
+         throw new IllegalArgumentException("No customer with id " + basket.getCustomerId());
+      }
+      Orders order = new Orders(customer, basket.getOrderDate(), basket.getSoldBy());
+      // One change number covers every product that the order takes stock of.
+      long change = reserveStock ? ProductChanges.next(manager) : 0;
+      for (Map.Entry<String, Integer> item : basket.getQuantities().entrySet()) {
+         String upc = item.getKey();
+         int quantity = item.getValue();
+         int reserved = !reserveStock ? 1 : manager.createNamedQuery("ReserveStock")
+                 .setParameter("quantity", quantity)
+                 .setParameter("change", change)
+                 .setParameter("upc", upc)
+                 .executeUpdate();
+         // The bulk UPDATE went around the persistence context and the shared cache, so read the
+         // new stock level from the database.
+         Products product = reserveStock
+                 ? manager.find(Products.class, upc, Collections.singletonMap(QueryHints.REFRESH, HintValues.TRUE))
+                 : manager.find(Products.class, upc);
+         if (product == null) {
+            throw new IllegalArgumentException("No product with UPC " + upc);
+         }
+         if (reserved == 0) {
+            throw new InsufficientStockException(upc, quantity);
+         }
+         order.addLine(product, quantity);
+      }
+      // Cascades to the order lines.
+      manager.persist(order);
+      return order;
+   }
+
+   /**
+    * Whether the failure was the database rolling us back over a lock conflict, in which case
+    * trying again is likely to work.  SQLSTATE class 40 is "transaction rollback", which covers
+    * serialization failures, deadlocks and (in Derby) lock timeouts.  A duplicate key is not a
+    * conflict: the race to insert the first DailyProductSales row of a day is settled in
+    * SalesRollup, so a duplicate key that gets this far is an order that is already there.
+    */
+   static boolean isConflict(Throwable e) {
+      for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+         if (cause instanceof OptimisticLockException) {
+            return true;
+         }
+         if (cause instanceof SQLException) {
+            String state = ((SQLException) cause).getSQLState();
+            if (state != null && state.startsWith("40")) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Whether the failure was the data breaking a constraint, such as an order with the key of
+    * one already placed, which no number of tries will get past.  SQLSTATE class 23 is
+    * "integrity constraint violation", in Derby, MySQL and the SQL standard alike.
+    */
+   static boolean isConstraintViolation(Throwable e) {
+      for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+         if (cause instanceof SQLException) {
+            String state = ((SQLException) cause).getSQLState();
+            if (state != null && state.startsWith("23")) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /** Sleep for a random time that grows with each attempt, so that the retries spread out. */
+   private static void backOff(int attempt) {
+      long bound = BACKOFF_MILLIS << Math.min(attempt - 1, 10);
+      try {
+         Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted while waiting to retry an order", e);
+      }
+   }
+}
@@ -0,0 +1,406 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Orders;
+import org.eclipse.persistence.internal.weaving.PersistenceWeaved;
+import org.eclipse.persistence.jpa.JpaEntityManagerFactory;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+import javax.persistence.metamodel.EntityType;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Owns the EntityManagerFactory for the CustomerOrders persistence unit, and hands out one
+ * EntityManager per unit of work.
+ * <p>
+ * An EntityManagerFactory is thread safe and meant to be shared; an EntityManager is neither.
+ * So rather than keep one EntityManager around for the life of the process, code that may run
+ * on several threads asks for a unit of work:
+ * <pre>
+ *    Products product = persistence.inTransaction(manager -&gt; manager.find(Products.class, upc));
+ * </pre>
+ * The transaction is committed if the work returns normally, rolled back if it throws, and the
+ * EntityManager is closed either way.
+ * </p>
+ * <p>
+ * The JDBC connections come from EclipseLink's internal connection pools, which are sized in
+ * persistence.xml.  Any system property whose name starts with "eclipselink." or
+ * "javax.persistence." overrides the persistence.xml setting of the same name, for instance
+ * -Declipselink.connection-pool.default.max=32.
+ * </p>
+ * <p>
+ * -Dcustomerorders.schema=compact selects the compact key schema, in which Orders and
+ * Order_lines have long surrogate keys; see META-INF/orm-compact.xml.  The static-weave build
+ * weaves the entities for the natural schema only, so the compact schema needs classes that have
+ * not been statically woven.
+ * </p>
+ * <p>
+ * The RuntimeProfile (dev, test or prod) decides whether the schema is recreated or validated, and
+ * what is done at start up; create logs how long start up took.  The Backend (derby or mysql)
+ * decides which database it is, and how the driver is tuned.
+ * </p>
+ * <p>
+ * -Dcustomerorders.logging=async turns on asynchronous structured logging, see AsyncLogHandler.
+ * </p>
+ * <p>
+ * If Metrics are on when the factory is created, every query is timed and every row written is
+ * counted, see PersistenceMetrics.
+ * </p>
+ */
+public class PersistenceManager implements AutoCloseable {
+   /** The name of the persistence unit in persistence.xml. */
+   public static final String PERSISTENCE_UNIT = "CustomerOrders";
+
+   /**
+    * The property, either a system property or an override, that selects the key schema:
+    * "natural" (the default) for the composite keys declared on the entities, or "compact" for
+    * the surrogate keys in META-INF/orm-compact.xml.
+    */
+   public static final String SCHEMA_PROPERTY = "customerorders.schema";
+
+   /** The mapping file that turns the compact key schema on. */
+   private static final String COMPACT_MAPPING = "META-INF/orm-compact.xml";
+
+   private static final Metrics.Timer COMMIT = Metrics.timer("customerorders_commit_seconds",
+           "Time to commit a unit of work");
+
+   private static final Metrics.Timer CONNECTION_WAIT = Metrics.timer("customerorders_connection_wait_seconds",
+           "Time a unit of work waited for a pooled connection");
+
+   private static final Logger LOGGER = Logger.getLogger(PersistenceManager.class.getName());
+
+   private final EntityManagerFactory factory;
+
+   /** The number of connections handed out by the pool for units of work. */
+   private final LongAdder acquisitions = new LongAdder();
+
+   /** Total time that units of work spent waiting for a connection, in nanoseconds. */
+   private final LongAdder waitNanos = new LongAdder();
+
+   /** The longest that any unit of work waited for a connection, in nanoseconds. */
+   private final AtomicLong maxWaitNanos = new AtomicLong();
+
+   /** The profile that the factory was set up for. */
+   private final RuntimeProfile profile;
+
+   /** The database that the factory talks to. */
+   private final Backend backend;
+
+   /** How long create took, from reading the properties to being ready for work. */
+   private long startupNanos;
+
+   private PersistenceManager(EntityManagerFactory factory, RuntimeProfile profile, Backend backend) {
+      this.factory = factory;
+      this.profile = profile;
+      this.backend = backend;
+   }
+
+   /**
+    * Log in to the database now rather than on first use, then do what the profile asks for at
+    * start up, and report how long each step took.
+    */
+   private void start(long start) {
+      // Logging in deploys the persistence unit, if deploy-on-startup has not already, and opens
+      // the initial connections of the pools.
+      ServerSession session = factory.unwrap(JpaEntityManagerFactory.class).getServerSession();
+      if (Metrics.isEnabled()) {
+         PersistenceMetrics.install(session);
+      }
+      long deployed = System.nanoTime();
+      if (profile.validatesSchema()) {
+         List<String> problems = inTransaction(manager -> {
+            try {
+               return SchemaValidator.validate(session, manager.unwrap(Connection.class));
+            } catch (SQLException e) {
+               throw new IllegalStateException("Could not read the database schema", e);
+            }
+         });
+         if (!problems.isEmpty()) {
+            throw new IllegalStateException("The database does not match the entities:\n   " +
+                    String.join("\n   ", problems));
+         }
+      }
+      long validated = System.nanoTime();
+      if (profile.preWarms()) {
+         preWarm();
+      }
+      long warmed = System.nanoTime();
+      startupNanos = warmed - start;
+      LOGGER.info(String.format("Started with profile %s on %s in %d ms (deploy %d ms, validate %d ms, warm up %d ms)",
+              profile, backend, startupNanos / 1_000_000, (deployed - start) / 1_000_000,
+              (validated - deployed) / 1_000_000, (warmed - validated) / 1_000_000));
+   }
+
+   /**
+    * Read one row of every entity, so that the query machinery, the JDBC driver and the statement
+    * cache are all loaded before the first real request needs them.
+    */
+   private void preWarm() {
+      withEntityManager(manager -> {
+         for (EntityType<?> entity : factory.getMetamodel().getEntities()) {
+            manager.createQuery("SELECT e FROM " + entity.getName() + " e")
+                    .setMaxResults(1)
+                    .getResultList();
+         }
+         return null;
+      });
+   }
+
+   /**
+    * Create the EntityManagerFactory from persistence.xml, the current RuntimeProfile and Backend,
+    * and any overriding system properties.
+    * @return  A new PersistenceManager.
+    */
+   public static PersistenceManager create() {
+      return create(new HashMap<>());
+   }
+
+   /**
+    * Create the EntityManagerFactory from persistence.xml, the current RuntimeProfile and Backend,
+    * overriding system properties, and then the given properties, which take precedence over all
+    * of them.  The profile and the backend themselves may be chosen with customerorders.profile and
+    * customerorders.backend overrides.
+    * @param overrides  Persistence unit properties to override.
+    * @return           A new PersistenceManager.
+    */
+   public static PersistenceManager create(Map<String, ?> overrides) {
+      long start = System.nanoTime();
+      Object profileName = overrides.get(RuntimeProfile.PROFILE_PROPERTY);
+      RuntimeProfile profile = profileName == null ? RuntimeProfile.current() : RuntimeProfile.named(profileName.toString());
+      Object backendName = overrides.get(Backend.BACKEND_PROPERTY);
+      Backend backend = backendName == null ? Backend.current() : Backend.named(backendName.toString());
+      Map<String, Object> properties = new HashMap<>(profile.getProperties());
+      properties.putAll(backend.getProperties());
+      if (AsyncLogHandler.installIfEnabled()) {
+         // Send EclipseLink's log through java.util.logging, and so through the async handler,
+         // rather than straight to System.out.  A system property or override may still change it.
+         properties.put("eclipselink.logging.logger", "JavaLogger");
+      }
+      for (String name : System.getProperties().stringPropertyNames()) {
+         if (name.startsWith("eclipselink.") || name.startsWith("javax.persistence.")) {
+            properties.put(name, System.getProperty(name));
+         }
+      }
+      properties.putAll(overrides);
+      Object schema = properties.containsKey(SCHEMA_PROPERTY) ? properties.get(SCHEMA_PROPERTY)
+              : System.getProperty(SCHEMA_PROPERTY, "natural");
+      if (schema.equals("compact")) {
+         if (PersistenceWeaved.class.isAssignableFrom(Orders.class)) {
+            // The weaver only saw the annotations, so the woven classes do not match the compact
+            // mappings, and EclipseLink would silently write null keys.
+            throw new IllegalStateException("The compact schema cannot be used with statically woven entities;"
+                    + " build without -Pstatic-weave");
+         }
+         // Have EclipseLink read the compact mappings on top of the annotations.
+         properties.put("eclipselink.metadata-source", "XML");
+         properties.put("eclipselink.metadata-source.xml.file", COMPACT_MAPPING);
+      } else if (!schema.equals("natural")) {
+         throw new IllegalArgumentException(SCHEMA_PROPERTY + " must be natural or compact: " + schema);
+      }
+      backend.tune(properties);
+      EntityManagerFactory factory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, properties);
+      PersistenceManager persistence = new PersistenceManager(factory, profile, backend);
+      try {
+         persistence.start(start);
+      } catch (RuntimeException e) {
+         persistence.close();
+         throw e;
+      }
+      return persistence;
+   }
+
+   /** @return  The profile that the persistence unit was set up for. */
+   public RuntimeProfile getProfile() {
+      return profile;
+   }
+
+   /** @return  The database that the persistence unit runs against. */
+   public Backend getBackend() {
+      return backend;
+   }
+
+   /** @return  How long create took, in nanoseconds, including any validation and warm up. */
+   public long getStartupNanos() {
+      return startupNanos;
+   }
+
+   /**
+    * @return  The shared EntityManagerFactory, for code that manages its own EntityManagers.
+    */
+   public EntityManagerFactory getFactory() {
+      return factory;
+   }
+
+   /**
+    * Run some work in a transaction of its own, with an EntityManager of its own.  Any entities
+    * that the work returns are detached by the time this returns.
+    * @param work       The work to do.  It must not commit or roll back the transaction.
+    * @return           Whatever the work returns.
+    */
+   public <T> T inTransaction(Function<EntityManager, T> work) {
+      EntityManager manager = factory.createEntityManager();
+      EntityTransaction tx = manager.getTransaction();
+      try {
+         tx.begin();
+         acquireConnection(manager);
+         T result = work.apply(manager);
+         long start = COMMIT.start();
+         tx.commit();
+         COMMIT.stop(start);
+         return result;
+      } finally {
+         if (tx.isActive()) {
+            tx.rollback();
+         }
+         manager.close();
+      }
+   }
+
+   /**
+    * Run some read only work with an EntityManager of its own, outside of any transaction.
+    * @param work       The work to do.
+    * @return           Whatever the work returns.
+    */
+   public <T> T withEntityManager(Function<EntityManager, T> work) {
+      EntityManager manager = factory.createEntityManager();
+      try {
+         return work.apply(manager);
+      } finally {
+         manager.close();
+      }
+   }
+
+   /**
+    * Drop entities from the shared cache, once a bulk UPDATE that changed them has committed.
+    * ReserveStock and AdjustStock leave the cache alone, rather than throw out every product.
+    * @param entity     The class of the entities.
+    * @param ids        Their ids.
+    */
+   public void evict(Class<?> entity, Collection<?> ids) {
+      Cache cache = factory.getCache();
+      for (Object id : ids) {
+         cache.evict(entity, id);
+      }
+   }
+
+   /**
+    * Take the transaction's connection from the pool now, rather than at the first write, so
+    * that we can time how long the unit of work had to wait for it.
+    */
+   private void acquireConnection(EntityManager manager) {
+      long start = System.nanoTime();
+      manager.unwrap(Connection.class);
+      long waited = System.nanoTime() - start;
+      acquisitions.increment();
+      waitNanos.add(waited);
+      maxWaitNanos.accumulateAndGet(waited, Math::max);
+      CONNECTION_WAIT.record(waited);
+   }
+
+   /**
+    * @return  The current state of the connection pool used for writes and transactions.
+    */
+   public PoolStats getPoolStats() {
+      ServerSession session = factory.unwrap(JpaEntityManagerFactory.class).getServerSession();
+      ConnectionPool pool = session.getDefaultConnectionPool();
+      int total;
+      int idle;
+      synchronized (pool) {
+         total = pool.getTotalNumberOfConnections();
+         idle = pool.getConnectionsAvailable().size();
+      }
+      long count = acquisitions.sum();
+      return new PoolStats(total - idle, idle, pool.getMaxNumberOfConnections(), count,
+              count == 0 ? 0 : waitNanos.sum() / count, maxWaitNanos.get());
+   }
+
+   /** Close the EntityManagerFactory, and with it every pooled connection. */
+   @Override
+   public void close() {
+      if (factory.isOpen()) {
+         factory.close();
+      }
+   }
+
+   /** A snapshot of the connection pool. */
+   public static class PoolStats {
+      private final int active;
+      private final int idle;
+      private final int max;
+      private final long acquisitions;
+      private final long averageWaitNanos;
+      private final long maxWaitNanos;
+
+      PoolStats(int active, int idle, int max, long acquisitions, long averageWaitNanos, long maxWaitNanos) {
+         this.active = active;
+         this.idle = idle;
+         this.max = max;
+         this.acquisitions = acquisitions;
+         this.averageWaitNanos = averageWaitNanos;
+         this.maxWaitNanos = maxWaitNanos;
+      }
+
+      /** @return  Connections that are checked out right now. */
+      public int getActive() {
+         return active;
+      }
+
+      /** @return  Connections that are open and waiting in the pool. */
+      public int getIdle() {
+         return idle;
+      }
+
+      /** @return  The most connections that the pool will open. */
+      public int getMax() {
+         return max;
+      }
+
+      /** @return  The number of connections taken by units of work so far. */
+      public long getAcquisitions() {
+         return acquisitions;
+      }
+
+      /** @return  The average time a unit of work waited for its connection, in nanoseconds. */
+      public long getAverageWaitNanos() {
+         return averageWaitNanos;
+      }
+
+      /** @return  The longest time a unit of work waited for its connection, in nanoseconds. */
+      public long getMaxWaitNanos() {
+         return maxWaitNanos;
+      }
+
+      @Override
+      public String toString() {
+         return "Pool- active: " + active + ", idle: " + idle + ", max: " + max +
+                 ", acquisitions: " + acquisitions + ", avg wait: " + averageWaitNanos / 1000 +
+                 " us, max wait: " + maxWaitNanos / 1000 + " us";
+      }
+   }
+}
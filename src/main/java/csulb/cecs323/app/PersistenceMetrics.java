@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.Record;
+import org.eclipse.persistence.sessions.SessionProfilerAdapter;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+/**
+ * Hooks the Metrics into EclipseLink: a timer per query, and a count of the rows written per
+ * entity.  PersistenceManager installs these only when metrics are on, so that EclipseLink does
+ * not pay for them otherwise.
+ */
+final class PersistenceMetrics {
+   static final String QUERY_SECONDS = "customerorders_query_seconds";
+   static final String ROWS_WRITTEN = "customerorders_rows_written_total";
+
+   private PersistenceMetrics() {}
+
+   /**
+    * Start timing the queries, and counting the rows written, of a session.
+    * @param session   The server session of the EntityManagerFactory.
+    */
+   static void install(ServerSession session) {
+      session.setProfiler(new QueryTimer(session));
+      for (ClassDescriptor descriptor : session.getDescriptors().values()) {
+         Metrics.Counter rows = Metrics.counter(ROWS_WRITTEN, "Rows inserted or updated, per entity",
+                 "entity", descriptor.getJavaClass().getSimpleName());
+         descriptor.getEventManager().addListener(new DescriptorEventAdapter() {
+            @Override
+            public void postInsert(DescriptorEvent event) {
+               rows.increment();
+            }
+
+            @Override
+            public void postUpdate(DescriptorEvent event) {
+               rows.increment();
+            }
+         });
+      }
+   }
+
+   /**
+    * Times every query that EclipseLink runs, labelled with the name of the query.  Named queries
+    * go by their names; the queries that EclipseLink makes up for itself (finds, relationships,
+    * writes) go by their kind and entity, e.g. ReadObjectQuery:Products.
+    */
+   private static class QueryTimer extends SessionProfilerAdapter {
+      /** Where the named queries are registered. */
+      private final ServerSession server;
+
+      QueryTimer(ServerSession server) {
+         this.server = server;
+      }
+
+      @Override
+      public Object profileExecutionOfQuery(DatabaseQuery query, Record row, AbstractSession session) {
+         Metrics.Timer timer = Metrics.timer(QUERY_SECONDS, "Time to run a query, per query", "query", nameOf(query));
+         long start = timer.start();
+         try {
+            return super.profileExecutionOfQuery(query, row, session);
+         } finally {
+            timer.stop(start);
+         }
+      }
+
+      private String nameOf(DatabaseQuery query) {
+         // Only a name that is registered is bounded; others may be the text of the JPQL.
+         String name = query.getName();
+         if (name != null && server.getQueries().containsKey(name)) {
+            return name;
+         }
+         Class<?> reference = query.getReferenceClass();
+         return query.getClass().getSimpleName() + (reference == null ? "" : ":" + reference.getSimpleName());
+      }
+   }
+}
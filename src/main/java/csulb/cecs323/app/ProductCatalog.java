@@ -0,0 +1,233 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A read-through cache of Products keyed by UPC, so that looking up a hot product does not
+ * cost a trip to the database every time.
+ * <p>
+ * The cache holds at most maxSize products; when it is full, the product that was loaded
+ * longest ago is evicted.  Each product also expires timeToLive after it was loaded, which
+ * bounds how stale the cache can get when another process changes the PRODUCTS table.  Changes
+ * made through this application should call invalidate for the product that changed.
+ * </p>
+ * <p>
+ * A ProductCatalog is thread safe.  Lookups of products that are cached do not lock.  Two
+ * threads that miss on the same UPC at the same time may both load it; the first one to finish
+ * wins.  A load that was under way when its product was invalidated may have read the product
+ * from before the change, so it is returned to its caller but not kept: invalidate bumps a
+ * generation number for the UPC, and a load keeps what it read only if the generation is the
+ * same as when it started.
+ * </p>
+ */
+public class ProductCatalog {
+   /** The number of products that the cache holds by default. */
+   public static final int DEFAULT_MAX_SIZE = 10_000;
+
+   /** How long a product stays in the cache by default. */
+   public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(5);
+
+   // Every catalog counts into the same metrics; each also keeps counts of its own, see toString.
+   private static final Metrics.Counter CACHE_HITS = Metrics.counter("customerorders_catalog_hits_total",
+           "Product lookups served from the ProductCatalog");
+
+   private static final Metrics.Counter CACHE_MISSES = Metrics.counter("customerorders_catalog_misses_total",
+           "Product lookups that the ProductCatalog had to load from the database");
+
+   private static final Metrics.Counter CACHE_EVICTIONS = Metrics.counter("customerorders_catalog_evictions_total",
+           "Products dropped from the ProductCatalog because it was full or they had expired");
+
+   /** The number of generation counters, a power of 2. */
+   private static final int GENERATION_STRIPES = 256;
+
+   /** Loads a product from the database, or returns null if there is no such UPC. */
+   private final Function<String, Products> loader;
+
+   private final int maxSize;
+
+   private final long timeToLiveNanos;
+
+   private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+   /** Entries in the order they were loaded, oldest first.  Some may have been removed since. */
+   private final Queue<Entry> loadOrder = new ConcurrentLinkedQueue<>();
+
+   /** The number of entries in loadOrder, since ConcurrentLinkedQueue.size() has to count them. */
+   private final AtomicInteger loadOrderSize = new AtomicInteger();
+
+   /**
+    * The invalidations of the UPCs that hash to each stripe, so far.  UPCs share stripes rather
+    * than have a counter each, which would need a map that grows with every UPC ever invalidated;
+    * an invalidation of another UPC in the same stripe only costs a load its place in the cache.
+    */
+   private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+   private final LongAdder evictions = new LongAdder();
+
+   /**
+    * @param loader        Looks up a product in the database, returning null if there is none.
+    * @param maxSize       The most products to hold.
+    * @param timeToLive    How long a product may be served from the cache after it was loaded.
+    */
+   public ProductCatalog(Function<String, Products> loader, int maxSize, Duration timeToLive) {
+      if (maxSize < 1) {
+         throw new IllegalArgumentException("Cache size must be at least 1: " + maxSize);
+      }
+      this.loader = loader;
+      this.maxSize = maxSize;
+      this.timeToLiveNanos = timeToLive.toNanos();
+   }
+
+   /**
+    * Create a catalog with the default size and time to live, that loads each product with an
+    * EntityManager of its own.  The products that it returns are detached.
+    * @param persistence   Where to load the products from.
+    * @return              A new, empty, catalog.
+    */
+   public static ProductCatalog over(PersistenceManager persistence) {
+      return new ProductCatalog(upc -> persistence.withEntityManager(manager -> manager.find(Products.class, upc)),
+              DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE);
+   }
+
+   /**
+    * Look up a product, from the cache if we have it, otherwise from the database.
+    * @param upc  The UPC of the product.
+    * @return     The product, or null if there is no product with that UPC.
+    */
+   public Products getProduct(String upc) {
+      Entry entry = entries.get(upc);
+      if (entry != null) {
+         if (System.nanoTime() - entry.loadedAt < timeToLiveNanos) {
+            hits.increment();
+            CACHE_HITS.increment();
+            return entry.product;
+         }
+         if (entries.remove(upc, entry)) {
+            evictions.increment();
+            CACHE_EVICTIONS.increment();
+         }
+      }
+      misses.increment();
+      CACHE_MISSES.increment();
+      int stripe = stripe(upc);
+      long generation = generations.get(stripe);
+      Products product = loader.apply(upc);
+      if (product != null) {
+         Entry loaded = new Entry(upc, product, System.nanoTime());
+         Entry previous = entries.putIfAbsent(upc, loaded);
+         if (previous != null) {
+            return previous.product;
+         }
+         // Checked after the put: an invalidate that bumped the generation before we got here
+         // is seen now, and one that bumps it after removes the entry itself.
+         if (generations.get(stripe) != generation) {
+            entries.remove(upc, loaded);
+            return product;
+         }
+         loadOrder.add(loaded);
+         loadOrderSize.incrementAndGet();
+         evictIfFull();
+      }
+      return product;
+   }
+
+   /**
+    * Drop a product from the cache, so that the next lookup reads it from the database.  Call
+    * this whenever the price or the units in stock of the product change.
+    * @param upc  The UPC of the product that changed.
+    */
+   public void invalidate(String upc) {
+      generations.incrementAndGet(stripe(upc));
+      entries.remove(upc);
+   }
+
+   /** Drop every product from the cache. */
+   public void invalidateAll() {
+      for (int stripe = 0; stripe < GENERATION_STRIPES; stripe++) {
+         generations.incrementAndGet(stripe);
+      }
+      entries.clear();
+   }
+
+   private static int stripe(String upc) {
+      int hash = upc.hashCode();
+      return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+   }
+
+   /** Evict the oldest entries while there are too many, and forget invalidated ones. */
+   private void evictIfFull() {
+      while (entries.size() > maxSize || loadOrderSize.get() > 2 * maxSize) {
+         Entry oldest = loadOrder.poll();
+         if (oldest == null) {
+            return;
+         }
+         loadOrderSize.decrementAndGet();
+         if (entries.remove(oldest.upc, oldest)) {
+            evictions.increment();
+            CACHE_EVICTIONS.increment();
+         }
+      }
+   }
+
+   /** @return  The number of lookups served from the cache. */
+   public long getHits() {
+      return hits.sum();
+   }
+
+   /** @return  The number of lookups that had to go to the database. */
+   public long getMisses() {
+      return misses.sum();
+   }
+
+   /** @return  The number of products dropped because the cache was full or they had expired. */
+   public long getEvictions() {
+      return evictions.sum();
+   }
+
+   /** @return  The number of products in the cache right now. */
+   public int size() {
+      return entries.size();
+   }
+
+   @Override
+   public String toString() {
+      return "ProductCatalog- size: " + size() + ", hits: " + getHits() + ", misses: " + getMisses() +
+              ", evictions: " + getEvictions();
+   }
+
+   /** A cached product and when it was loaded. */
+   private static class Entry {
+      private final String upc;
+      private final Products product;
+      private final long loadedAt;
+
+      Entry(String upc, Products product, long loadedAt) {
+         this.upc = upc;
+         this.product = product;
+         this.loadedAt = loadedAt;
+      }
+   }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+
+/**
+ * The ways that we look products up in the catalog.  Each one is a typed query that the database
+ * can answer from an index: the primary key for the UPC, and the indexes declared on Products
+ * for the others.
+ */
+public final class ProductQueries {
+   private ProductQueries() {}
+
+   /**
+    * Look up a product by its UPC.  This goes through the persistence context and then the shared
+    * cache before it goes to the database.
+    * @param manager    The EntityManager to look the product up with.
+    * @param upc        The UPC of the product.
+    * @return           The product, or null if there is none with that UPC.
+    */
+   public static Products findByUpc(EntityManager manager, String upc) {
+      return manager.find(Products.class, upc);
+   }
+
+   /**
+    * Look up the products made by a manufacturer under a model number.  There is normally just
+    * one, but nothing stops a manufacturer from reusing a model number.
+    * @param manager    The EntityManager to look the products up with.
+    * @param mfgr       The name of the manufacturer.
+    * @param model      The manufacturer's model number.
+    * @return           The matching products, possibly none.
+    */
+   public static List<Products> findByManufacturerAndModel(EntityManager manager, String mfgr, String model) {
+      return manager.createNamedQuery("FindProductsByModel", Products.class)
+              .setParameter("mfgr", mfgr)
+              .setParameter("model", model)
+              .getResultList();
+   }
+
+   /**
+    * Look up the products whose name starts with the given text, in order by name.
+    * @param manager    The EntityManager to look the products up with.
+    * @param prefix     The start of the product name.  % and _ in it are matched literally.
+    * @param maxResults The most products to return.
+    * @return           The matching products, possibly none.
+    */
+   public static List<Products> findByNamePrefix(EntityManager manager, String prefix, int maxResults) {
+      return manager.createNamedQuery("FindProductsByNamePrefix", Products.class)
+              .setParameter("prefix", escapeLike(prefix) + "%")
+              .setMaxResults(maxResults)
+              .getResultList();
+   }
+
+   /** Escape the LIKE wildcards, using the backslash that the named query declares as its escape. */
+   static String escapeLike(String text) {
+      return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+   }
+}
@@ -0,0 +1,433 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Money;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Prices baskets, and checks that their products are in stock, from a copy of the price and stock
+ * of every product, without going near the Products entities.
+ * <p>
+ * The copy is an open addressing hash index from UPC to a slot, and an array each of UPCs, prices
+ * in cents and stock by slot.  Looking a product up hashes its UPC (String caches its hash code)
+ * and probes an int array; the price and stock are then plain array reads.  Quotes take no lock: they read
+ * under a StampedLock optimistic read, and only if a refresh changed the arrays in the meantime do
+ * they read again under the read lock.  Nothing is allocated to quote a basket given as arrays, so
+ * quoting scales with the number of threads and does not make garbage.
+ * </p>
+ * <p>
+ * A background thread refreshes the copy every refreshInterval, with the products changed since
+ * it last looked.  Every change to a product stamps it with a number from one database sequence,
+ * see ProductChanges, so there is no clock to disagree about.  The numbers are taken before their
+ * transactions commit, though, and not always in the order that they commit, so a refresh cannot
+ * simply start after the highest number it has seen: a lower one may still be on its way.
+ * Instead, each refresh reads the products numbered above the highest number that had been seen
+ * settleTime before, which finds every change whose transaction committed within settleTime of
+ * taking its number.  The first refresh, and reload, read every product.
+ * </p>
+ * <p>
+ * Quotes are therefore up to a refresh interval behind the database, and the database is up to a
+ * flush interval behind an InventoryLedger; a quote is a quote, and placing the order is what
+ * takes the stock.
+ * </p>
+ */
+public class QuoteEngine implements AutoCloseable {
+   /** How often the products are refreshed, if not told otherwise. */
+   public static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofSeconds(1);
+
+   /**
+    * How long a transaction may take, from taking its change number to committing, and still have
+    * its change found by a refresh, if not told otherwise.  Longer than an order or an inventory
+    * flush takes even when it waits for a lock until Derby gives up on it, after a minute.
+    */
+   public static final Duration DEFAULT_SETTLE_TIME = Duration.ofSeconds(90);
+
+   /** The products that there is room for before the arrays first grow. */
+   private static final int INITIAL_CAPACITY = 1024;
+
+   private static final Logger LOGGER = Logger.getLogger(QuoteEngine.class.getName());
+
+   private static final Metrics.Timer REFRESH = Metrics.timer("customerorders_quote_refresh_seconds",
+           "Time to refresh the quote engine's prices and stock from the database");
+
+   private static final String ALL_PRODUCTS =
+           "SELECT p.UPC, p.unit_list_price, p.units_in_stock, p.change_number FROM Products p";
+
+   private static final String CHANGED_PRODUCTS = ALL_PRODUCTS + " WHERE p.change_number > :since";
+
+   private final PersistenceManager persistence;
+
+   private final long settleNanos;
+
+   /** Guards table and its arrays.  Quotes read optimistically, refreshes write. */
+   private final StampedLock lock = new StampedLock();
+
+   private Table table = new Table(INITIAL_CAPACITY);
+
+   /** Whether the next refresh must read every product.  Refresh only. */
+   private boolean reloading = true;
+
+   /** The highest change number seen so far.  Refresh only. */
+   private long highest;
+
+   /**
+    * The highest change number seen by each refresh of the last settleTime, oldest first.  Refresh
+    * only.
+    */
+   private final ArrayDeque<Mark> marks = new ArrayDeque<>();
+
+   /** The highest change number seen by a refresh at least settleTime ago.  Refresh only. */
+   private long settled;
+
+   private final ScheduledExecutorService refresher;
+
+   /**
+    * Load every product, and refresh them every refreshInterval from then on, finding the changes
+    * that took up to DEFAULT_SETTLE_TIME to commit.
+    * @param persistence       Where the products are.
+    * @param refreshInterval   How often to read the products that have changed.
+    */
+   public QuoteEngine(PersistenceManager persistence, Duration refreshInterval) {
+      this(persistence, refreshInterval, DEFAULT_SETTLE_TIME);
+   }
+
+   /**
+    * Load every product, and refresh them every refreshInterval from then on.
+    * @param persistence       Where the products are.
+    * @param refreshInterval   How often to read the products that have changed.
+    * @param settleTime        How long a transaction may take to commit after taking its change
+    *                          number, and still have its change found.  Each refresh reads again
+    *                          every product changed this long before it.
+    */
+   public QuoteEngine(PersistenceManager persistence, Duration refreshInterval, Duration settleTime) {
+      this.persistence = persistence;
+      this.settleNanos = settleTime.toNanos();
+      refresh();
+      this.refresher = Executors.newSingleThreadScheduledExecutor(task -> {
+         Thread thread = new Thread(task, "quote-refresher");
+         thread.setDaemon(true);
+         return thread;
+      });
+      long period = refreshInterval.toNanos();
+      refresher.scheduleWithFixedDelay(this::refreshQuietly, period, period, TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * The total list price of some products.
+    * @param upcs          The products.
+    * @param quantities    How many of each.
+    * @param count         The number of products, from the start of both arrays.
+    * @return              The sum of price times quantity, in cents.
+    * @throws IllegalArgumentException   if a product does not exist.
+    */
+   public long totalCents(String[] upcs, int[] quantities, int count) {
+      long stamp = lock.tryOptimisticRead();
+      long total = table.total(upcs, quantities, count);
+      if (!lock.validate(stamp)) {
+         stamp = lock.readLock();
+         try {
+            total = table.total(upcs, quantities, count);
+         } finally {
+            lock.unlockRead(stamp);
+         }
+      }
+      if (total == Table.MISSING_TOTAL) {
+         throw new IllegalArgumentException("No such product: " + firstMissing(upcs, count));
+      }
+      return total;
+   }
+
+   /**
+    * Whether there are enough units in stock of each of some products.
+    * @param upcs          The products.
+    * @param quantities    How many of each.
+    * @param count         The number of products, from the start of both arrays.
+    * @return              true if every product has at least its quantity in stock.
+    * @throws IllegalArgumentException   if a product does not exist.
+    */
+   public boolean isInStock(String[] upcs, int[] quantities, int count) {
+      long stamp = lock.tryOptimisticRead();
+      int shortOrMissing = table.shortOrMissing(upcs, quantities, count);
+      if (!lock.validate(stamp)) {
+         stamp = lock.readLock();
+         try {
+            shortOrMissing = table.shortOrMissing(upcs, quantities, count);
+         } finally {
+            lock.unlockRead(stamp);
+         }
+      }
+      if (shortOrMissing == Table.MISSING) {
+         throw new IllegalArgumentException("No such product: " + firstMissing(upcs, count));
+      }
+      return shortOrMissing == 0;
+   }
+
+   /**
+    * The total list price of a basket.  This walks the basket's map, so it is not free of
+    * allocation the way that totalCents is.
+    * @param basket     The products and their quantities.
+    * @return           The sum of price times quantity.
+    * @throws IllegalArgumentException   if a product does not exist.
+    */
+   public Money total(Basket basket) {
+      Map<String, Integer> quantities = basket.getQuantities();
+      String[] upcs = new String[quantities.size()];
+      int[] counts = new int[upcs.length];
+      int i = 0;
+      for (Map.Entry<String, Integer> item : quantities.entrySet()) {
+         upcs[i] = item.getKey();
+         counts[i++] = item.getValue();
+      }
+      return Money.ofCents(totalCents(upcs, counts, upcs.length));
+   }
+
+   /** @return  The number of products that can be quoted. */
+   public int size() {
+      long stamp = lock.readLock();
+      try {
+         return table.size;
+      } finally {
+         lock.unlockRead(stamp);
+      }
+   }
+
+   /**
+    * Read the products that have changed since the last refresh, or every product on the first.
+    * @return  The number of products read.
+    */
+   public synchronized int refresh() {
+      long start = REFRESH.start();
+      try {
+         boolean full = reloading;
+         long now = System.nanoTime();
+         while (!marks.isEmpty() && now - marks.peekFirst().nanoTime >= settleNanos) {
+            settled = marks.pollFirst().highest;
+         }
+         long since = settled;
+         List<Object[]> rows = persistence.withEntityManager(manager -> full
+                 ? manager.createQuery(ALL_PRODUCTS, Object[].class).getResultList()
+                 : manager.createQuery(CHANGED_PRODUCTS, Object[].class).setParameter("since", since).getResultList());
+         // Every number seen was taken before now, which is what a later refresh needs to know.
+         long read = System.nanoTime();
+         // Build a full load off to the side, so that quotes go on reading the old table meanwhile.
+         Table loaded = full ? putAll(new Table(Math.max(INITIAL_CAPACITY, rows.size())), rows) : null;
+         long stamp = lock.writeLock();
+         try {
+            table = loaded != null ? loaded : putAll(table, rows);
+         } finally {
+            lock.unlockWrite(stamp);
+         }
+         reloading = false;
+         marks.addLast(new Mark(read, highest));
+         return rows.size();
+      } finally {
+         REFRESH.stop(start);
+      }
+   }
+
+   /** Put the rows of a refresh into a table, and note the highest change.  Returns the table, which may have grown. */
+   private Table putAll(Table target, List<Object[]> rows) {
+      for (Object[] row : rows) {
+         target = target.put((String) row[0], ((Number) row[1]).longValue(), ((Number) row[2]).intValue());
+         highest = Math.max(highest, ((Number) row[3]).longValue());
+      }
+      return target;
+   }
+
+   /**
+    * Throw the copy away and read every product again, for instance after products were deleted,
+    * which a refresh does not notice.
+    * @return  The number of products read.
+    */
+   public synchronized int reload() {
+      reloading = true;
+      return refresh();
+   }
+
+   private void refreshQuietly() {
+      try {
+         refresh();
+      } catch (RuntimeException e) {
+         // The quotes go on with what they have; the next refresh tries again from the same point.
+         LOGGER.log(Level.WARNING, "Could not refresh the quote engine", e);
+      }
+   }
+
+   /** Find which product was not there, for the message; the table may have changed since. */
+   private String firstMissing(String[] upcs, int count) {
+      long stamp = lock.readLock();
+      try {
+         for (int i = 0; i < count; i++) {
+            if (table.slotOf(upcs[i]) < 0) {
+               return upcs[i];
+            }
+         }
+         return "(added since)";
+      } finally {
+         lock.unlockRead(stamp);
+      }
+   }
+
+   /** Stop refreshing. */
+   @Override
+   public void close() {
+      refresher.shutdownNow();
+   }
+
+   /** The highest change number that a refresh had seen when it finished reading. */
+   private static final class Mark {
+      final long nanoTime;
+      final long highest;
+
+      Mark(long nanoTime, long highest) {
+         this.nanoTime = nanoTime;
+         this.highest = highest;
+      }
+   }
+
+   /**
+    * The prices and stock.  The index has at least twice as many positions as the arrays have
+    * slots, so a probe always comes to an empty position; and every array access is in bounds,
+    * even for a reader that sees a put half done, which an optimistic read can.
+    */
+   private static final class Table {
+      /** What shortOrMissing returns if a product is not there. */
+      static final int MISSING = -1;
+
+      /** What total returns if a product is not there. */
+      static final long MISSING_TOTAL = Long.MIN_VALUE;
+
+      /** The slot of each UPC plus 1, at the position its hash probes to; 0 where empty. */
+      private final int[] index;
+      private final int mask;
+      private final String[] upcs;
+      /** In cents. */
+      private final long[] prices;
+      /** The OR of every price ever put, for Money.cannotOverflow; it only gains bits. */
+      private long centsBits;
+      private final int[] stock;
+      private int size;
+
+      Table(int capacity) {
+         int positions = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+         this.index = new int[positions];
+         this.mask = positions - 1;
+         this.upcs = new String[capacity];
+         this.prices = new long[capacity];
+         this.stock = new int[capacity];
+      }
+
+      int slotOf(String upc) {
+         for (int position = spread(upc.hashCode()) & mask; ; position = (position + 1) & mask) {
+            int slot = index[position] - 1;
+            if (slot < 0) {
+               return -1;
+            }
+            if (upc.equals(upcs[slot])) {
+               return slot;
+            }
+         }
+      }
+
+      /** The sum of price times quantity in cents, or MISSING_TOTAL if a product is not there. */
+      long total(String[] upcs, int[] quantities, int count) {
+         long total = 0;
+         int quantityBits = 0;
+         for (int i = 0; i < count; i++) {
+            int slot = slotOf(upcs[i]);
+            if (slot < 0) {
+               return MISSING_TOTAL;
+            }
+            total += prices[slot] * quantities[i];
+            quantityBits |= quantities[i];
+         }
+         return Money.cannotOverflow(centsBits, quantityBits, count) ? total : exactTotal(upcs, quantities, count);
+      }
+
+      /** The same sum, checking every step, for prices or quantities too big to be sure of. */
+      private long exactTotal(String[] upcs, int[] quantities, int count) {
+         long total = 0;
+         for (int i = 0; i < count; i++) {
+            int slot = slotOf(upcs[i]);
+            if (slot < 0) {
+               return MISSING_TOTAL;
+            }
+            total = Money.plus(total, Money.times(prices[slot], quantities[i]));
+         }
+         return total;
+      }
+
+      /** The number of products short of their quantity, or MISSING if a product is not there. */
+      int shortOrMissing(String[] upcs, int[] quantities, int count) {
+         int shortOf = 0;
+         for (int i = 0; i < count; i++) {
+            int slot = slotOf(upcs[i]);
+            if (slot < 0) {
+               return MISSING;
+            }
+            if (stock[slot] < quantities[i]) {
+               shortOf++;
+            }
+         }
+         return shortOf;
+      }
+
+      /**
+       * Add or update a product.  Under the write lock.
+       * @return  This table, or a bigger copy if this one was full.
+       */
+      Table put(String upc, long price, int units) {
+         int slot = slotOf(upc);
+         if (slot < 0) {
+            if (size == upcs.length) {
+               return grow().put(upc, price, units);
+            }
+            slot = size++;
+            upcs[slot] = upc;
+            int position = spread(upc.hashCode()) & mask;
+            while (index[position] != 0) {
+               position = (position + 1) & mask;
+            }
+            index[position] = slot + 1;
+         }
+         prices[slot] = price;
+         centsBits |= price;
+         stock[slot] = units;
+         return this;
+      }
+
+      private Table grow() {
+         Table bigger = new Table(upcs.length * 2);
+         for (int slot = 0; slot < size; slot++) {
+            bigger.put(upcs[slot], prices[slot], stock[slot]);
+         }
+         return bigger;
+      }
+
+      /** Mix the high bits of the hash into the low ones that the mask keeps. */
+      private static int spread(int hash) {
+         return hash ^ (hash >>> 16);
+      }
+   }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * How the persistence unit is set up for the environment that we are running in.  persistence.xml
+ * holds the settings for development; each profile overrides what it needs to.
+ * <ul>
+ *    <li>DEV (the default) drops and recreates the tables on every start, and loads the seed data.
+ *    Fine for working on the entities, but every start loses the data.</li>
+ *    <li>TEST does the same against an in-memory database, so that nothing is left behind.  That
+ *    is Derby's; on any other Backend, the backend's URL wins.</li>
+ *    <li>PROD leaves the schema alone: no DDL, no seed data.  Instead, it checks that the tables
+ *    have the columns that the entities need, and warms up the metamodel and the connection pool
+ *    before the first request rather than during it.</li>
+ * </ul>
+ * The profile is chosen with -Dcustomerorders.profile=prod, or the environment variable
+ * CUSTOMERORDERS_PROFILE; the system property wins.  Any setting that a profile makes can still be
+ * overridden with a system property of the same name, see PersistenceManager.
+ */
+public enum RuntimeProfile {
+   DEV(Collections.emptyMap(), false),
+
+   TEST(map("javax.persistence.jdbc.url", "jdbc:derby:memory:CustomerOrders;create=true"), false),
+
+   PROD(map("javax.persistence.schema-generation.database.action", "none",
+           // Build the metamodel when the factory is created, not on the first createEntityManager.
+           "eclipselink.deploy-on-startup", "true",
+           // Open the connections at start up, and keep them open.
+           "eclipselink.connection-pool.default.initial", "8",
+           "eclipselink.connection-pool.default.min", "8",
+           "eclipselink.connection-pool.read.initial", "4",
+           "eclipselink.connection-pool.read.min", "4",
+           "eclipselink.jdbc.batch-writing", "JDBC",
+           "eclipselink.jdbc.batch-writing.size", "1000",
+           "eclipselink.jdbc.cache-statements", "true",
+           "eclipselink.jdbc.cache-statements.size", "100"), true);
+
+   /** The system property that chooses the profile. */
+   public static final String PROFILE_PROPERTY = "customerorders.profile";
+
+   /** The environment variable that chooses the profile if the system property is not set. */
+   public static final String PROFILE_ENVIRONMENT = "CUSTOMERORDERS_PROFILE";
+
+   private final Map<String, String> properties;
+
+   private final boolean production;
+
+   RuntimeProfile(Map<String, String> properties, boolean production) {
+      this.properties = properties;
+      this.production = production;
+   }
+
+   /**
+    * @return  The profile chosen by the system property or the environment, or DEV if neither is set.
+    */
+   public static RuntimeProfile current() {
+      String name = System.getProperty(PROFILE_PROPERTY, System.getenv(PROFILE_ENVIRONMENT));
+      return name == null ? DEV : named(name);
+   }
+
+   /**
+    * @param name    The name of a profile, in any case.
+    * @return        The profile.
+    * @throws IllegalArgumentException   if there is no profile by that name.
+    */
+   public static RuntimeProfile named(String name) {
+      try {
+         return valueOf(name.trim().toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+         throw new IllegalArgumentException(PROFILE_PROPERTY + " must be dev, test or prod: " + name);
+      }
+   }
+
+   /** @return  The persistence unit properties that this profile overrides. */
+   public Map<String, String> getProperties() {
+      return properties;
+   }
+
+   /** @return  Whether to check the schema against the entities at start up. */
+   public boolean validatesSchema() {
+      return production;
+   }
+
+   /** @return  Whether to run a query against every entity at start up. */
+   public boolean preWarms() {
+      return production;
+   }
+
+   /**
+    * Persistence unit properties, for a profile or a Backend to start the factory with.
+    * @param namesAndValues   Each name followed by its value.
+    * @return                 The properties, unmodifiable.
+    */
+   static Map<String, String> map(String... namesAndValues) {
+      Map<String, String> map = new HashMap<>();
+      for (int i = 0; i < namesAndValues.length; i += 2) {
+         map.put(namesAndValues[i], namesAndValues[i + 1]);
+      }
+      return Collections.unmodifiableMap(map);
+   }
+}
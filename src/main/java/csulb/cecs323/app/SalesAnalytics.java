@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+
+import javax.persistence.EntityManager;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Revenue reports over the orders placed in a period.  Every report is one GROUP BY query, so the
+ * database adds up the order lines and only the totals come back; no entities are loaded.
+ * <p>
+ * The period is matched against ORDERS.order_date, which is indexed, as is sold_by.  Revenue is
+ * quantity * unit_sale_price, the price actually charged, rather than the current list price.
+ * </p>
+ * <p>
+ * The reports that take whole days (LocalDate rather than LocalDateTime) read the
+ * DailyProductSales rollup instead of the order lines, so they cost one row per product per day
+ * in the period, however many orders there were.
+ * </p>
+ */
+public class SalesAnalytics {
+   /** The joins and the period that every report shares. */
+   private static final String FROM_PERIOD =
+           "FROM   Order_lines ol JOIN ol.order o JOIN ol.product p " +
+           "WHERE  o.order_date >= :from AND o.order_date < :to ";
+
+   private static final String UNITS_AND_REVENUE = "SUM(ol.quantity), SUM(ol.quantity * ol.unit_sale_price)";
+
+   private static final String BY_PRODUCT =
+           "SELECT NEW csulb.cecs323.app.SalesTotal(p.UPC, " + UNITS_AND_REVENUE + ") " +
+           FROM_PERIOD + "GROUP BY p.UPC";
+
+   private static final String BY_CUSTOMER =
+           "SELECT NEW csulb.cecs323.app.SalesTotal(o.customer.customer_id, " + UNITS_AND_REVENUE + ") " +
+           FROM_PERIOD + "GROUP BY o.customer.customer_id";
+
+   private static final String BY_SALES_ASSOCIATE =
+           "SELECT NEW csulb.cecs323.app.SalesTotal(o.sold_by, " + UNITS_AND_REVENUE + ") " +
+           FROM_PERIOD + "GROUP BY o.sold_by";
+
+   // JPQL has no date truncation, so group on the parts of the date.  YEAR, MONTH and DAY are
+   // understood by both Derby and MySQL.
+   private static final String BY_DAY =
+           "SELECT FUNCTION('YEAR', o.order_date), FUNCTION('MONTH', o.order_date), " +
+           "       FUNCTION('DAY', o.order_date), " + UNITS_AND_REVENUE + " " +
+           FROM_PERIOD +
+           "GROUP BY FUNCTION('YEAR', o.order_date), FUNCTION('MONTH', o.order_date), FUNCTION('DAY', o.order_date)";
+
+   private static final String BY_MONTH =
+           "SELECT FUNCTION('YEAR', o.order_date), FUNCTION('MONTH', o.order_date), " + UNITS_AND_REVENUE + " " +
+           FROM_PERIOD +
+           "GROUP BY FUNCTION('YEAR', o.order_date), FUNCTION('MONTH', o.order_date)";
+
+   private static final String DAILY_PRODUCT_SALES =
+           "SELECT d FROM DailyProductSales d " +
+           "WHERE  d.sales_day >= :from AND d.sales_day < :to " +
+           "ORDER BY d.sales_day, d.upc";
+
+   private static final String ROLLUP_BY_DAY =
+           "SELECT NEW csulb.cecs323.app.SalesTotal(d.sales_day, SUM(d.units), SUM(d.revenue)) " +
+           "FROM   DailyProductSales d " +
+           "WHERE  d.sales_day >= :from AND d.sales_day < :to " +
+           "GROUP BY d.sales_day";
+
+   private static final String ROLLUP_BY_PRODUCT =
+           "SELECT NEW csulb.cecs323.app.SalesTotal(d.upc, SUM(d.units), SUM(d.revenue)) " +
+           "FROM   DailyProductSales d " +
+           "WHERE  d.sales_day >= :from AND d.sales_day < :to " +
+           "GROUP BY d.upc";
+
+   private final PersistenceManager persistence;
+
+   /**
+    * @param persistence   Where to run the reports.
+    */
+   public SalesAnalytics(PersistenceManager persistence) {
+      this.persistence = persistence;
+   }
+
+   /**
+    * Revenue per product, highest revenue first.
+    * @param from    The start of the period, inclusive.
+    * @param to      The end of the period, exclusive.
+    * @return        One total per product sold in the period; the key is the UPC.
+    */
+   public List<SalesTotal> revenueByProduct(LocalDateTime from, LocalDateTime to) {
+      return byRevenue(totals(BY_PRODUCT, from, to));
+   }
+
+   /**
+    * Revenue per customer, highest revenue first.
+    * @param from    The start of the period, inclusive.
+    * @param to      The end of the period, exclusive.
+    * @return        One total per customer who ordered in the period; the key is the customer_id.
+    */
+   public List<SalesTotal> revenueByCustomer(LocalDateTime from, LocalDateTime to) {
+      return byRevenue(totals(BY_CUSTOMER, from, to));
+   }
+
+   /**
+    * Revenue per sales associate, highest revenue first.
+    * @param from    The start of the period, inclusive.
+    * @param to      The end of the period, exclusive.
+    * @return        One total per associate who sold in the period; the key is sold_by.
+    */
+   public List<SalesTotal> revenueBySalesAssociate(LocalDateTime from, LocalDateTime to) {
+      return byRevenue(totals(BY_SALES_ASSOCIATE, from, to));
+   }
+
+   /**
+    * Revenue per day, in date order.
+    * @param from    The start of the period, inclusive.
+    * @param to      The end of the period, exclusive.
+    * @return        One total per day with sales; the key is the ISO date, e.g. 2021-03-01.
+    */
+   public List<SalesTotal> revenueByDay(LocalDateTime from, LocalDateTime to) {
+      List<SalesTotal> totals = new ArrayList<>();
+      for (Object[] row : rows(BY_DAY, from, to)) {
+         LocalDate day = LocalDate.of(number(row[0]), number(row[1]), number(row[2]));
+         totals.add(new SalesTotal(day.toString(), (Long) row[3], (Long) row[4]));
+      }
+      totals.sort(Comparator.comparing(SalesTotal::getKey));
+      return totals;
+   }
+
+   /**
+    * Revenue per month, in date order.
+    * @param from    The start of the period, inclusive.
+    * @param to      The end of the period, exclusive.
+    * @return        One total per month with sales; the key is the ISO month, e.g. 2021-03.
+    */
+   public List<SalesTotal> revenueByMonth(LocalDateTime from, LocalDateTime to) {
+      List<SalesTotal> totals = new ArrayList<>();
+      for (Object[] row : rows(BY_MONTH, from, to)) {
+         YearMonth month = YearMonth.of(number(row[0]), number(row[1]));
+         totals.add(new SalesTotal(month.toString(), (Long) row[2], (Long) row[3]));
+      }
+      totals.sort(Comparator.comparing(SalesTotal::getKey));
+      return totals;
+   }
+
+   /**
+    * The rollup rows for a period, in order by day and then UPC.
+    * @param from    The first day of the period.
+    * @param to      The day after the last day of the period.
+    * @return        The units and revenue of each product on each day with sales, detached.
+    */
+   public List<DailyProductSales> dailyProductSales(LocalDate from, LocalDate to) {
+      return persistence.withEntityManager(manager -> manager.createQuery(DAILY_PRODUCT_SALES, DailyProductSales.class)
+              .setParameter("from", from)
+              .setParameter("to", to)
+              .getResultList());
+   }
+
+   /**
+    * Revenue per day, in date order, from the rollup.
+    * @param from    The first day of the period.
+    * @param to      The day after the last day of the period.
+    * @return        One total per day with sales; the key is the ISO date, e.g. 2021-03-01.
+    */
+   public List<SalesTotal> revenueByDay(LocalDate from, LocalDate to) {
+      List<SalesTotal> totals = rollupTotals(ROLLUP_BY_DAY, from, to);
+      totals.sort(Comparator.comparing(SalesTotal::getKey));
+      return totals;
+   }
+
+   /**
+    * Revenue per product, highest revenue first, from the rollup.
+    * @param from    The first day of the period.
+    * @param to      The day after the last day of the period.
+    * @return        One total per product sold in the period; the key is the UPC.
+    */
+   public List<SalesTotal> revenueByProduct(LocalDate from, LocalDate to) {
+      return byRevenue(rollupTotals(ROLLUP_BY_PRODUCT, from, to));
+   }
+
+   /** Run a report over the rollup that builds its SalesTotals with a constructor expression. */
+   private List<SalesTotal> rollupTotals(String query, LocalDate from, LocalDate to) {
+      return persistence.withEntityManager(manager -> manager.createQuery(query, SalesTotal.class)
+              .setParameter("from", from)
+              .setParameter("to", to)
+              .getResultList());
+   }
+
+   /** Run a report that builds its SalesTotals with a constructor expression. */
+   private List<SalesTotal> totals(String query, LocalDateTime from, LocalDateTime to) {
+      return persistence.withEntityManager(manager -> manager.createQuery(query, SalesTotal.class)
+              .setParameter("from", from)
+              .setParameter("to", to)
+              .getResultList());
+   }
+
+   /** Run a report whose rows need converting before they become SalesTotals. */
+   private List<Object[]> rows(String query, LocalDateTime from, LocalDateTime to) {
+      return persistence.withEntityManager(manager -> manager.createQuery(query, Object[].class)
+              .setParameter("from", from)
+              .setParameter("to", to)
+              .getResultList());
+   }
+
+   /** The database decides what type of number YEAR, MONTH and DAY come back as. */
+   private static int number(Object value) {
+      return ((Number) value).intValue();
+   }
+
+   /** Sort the totals highest revenue first. */
+   private static List<SalesTotal> byRevenue(List<SalesTotal> totals) {
+      totals.sort(Comparator.comparing(SalesTotal::getRevenue).reversed());
+      return totals;
+   }
+}
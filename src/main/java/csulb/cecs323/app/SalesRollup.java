@@ -0,0 +1,256 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maintains the DailyProductSales rollup: the units and revenue of each product on each day.
+ * <p>
+ * OrderService calls record in the transaction that writes each order, so the rollup commits or
+ * rolls back with the order lines that it counts.  Each line costs one UPDATE of the rollup row
+ * for its product and day, plus an INSERT for the first sale of the product that day.  Two
+ * orders that both make the first sale of a product on a day race to insert the same row; the
+ * loser's INSERT fails on the primary key, and it goes back to the UPDATE, which now finds the
+ * row.  The INSERT is sent over JDBC, on the transaction's own connection, because a JPA query
+ * that fails marks the whole transaction for rollback, whereas the database only rolls back the
+ * statement.
+ * </p>
+ * <p>
+ * backfill rebuilds the rollup from the order lines, for data that was loaded before the rollup
+ * existed, or after the rollup has been found to be wrong.  It should be run for days on which
+ * no orders are being taken, since an order that commits while the backfill is running may be
+ * counted twice or not at all.
+ * </p>
+ */
+public class SalesRollup {
+   private static final Logger LOGGER = Logger.getLogger(SalesRollup.class.getName());
+
+   // Add the order lines up per product and day, as SalesAnalytics does.
+   private static final String BY_PRODUCT_AND_DAY =
+           "SELECT p.UPC, FUNCTION('YEAR', o.order_date), FUNCTION('MONTH', o.order_date), " +
+           "       FUNCTION('DAY', o.order_date), SUM(ol.quantity), SUM(ol.quantity * ol.unit_sale_price) " +
+           "FROM   Order_lines ol JOIN ol.order o JOIN ol.product p " +
+           "WHERE  o.order_date >= :from AND o.order_date < :to " +
+           "GROUP BY p.UPC, FUNCTION('YEAR', o.order_date), FUNCTION('MONTH', o.order_date), " +
+           "       FUNCTION('DAY', o.order_date)";
+
+   private static final String ORDER_DATE_RANGE = "SELECT MIN(o.order_date), MAX(o.order_date) FROM Orders o";
+
+   // The first row of a product and day.  The table and columns are DailyProductSales' defaults.
+   private static final String INSERT_FIRST_SALE =
+           "INSERT INTO DAILYPRODUCTSALES (UPC, SALES_DAY, UNITS, REVENUE_CENTS) VALUES (?, ?, ?, ?)";
+
+   /** The SQLSTATE of a unique constraint violation, in Derby and the SQL standard. */
+   private static final String DUPLICATE_KEY = "23505";
+
+   /** MySQL reports a duplicate key with the general SQLSTATE 23000, so look at its error code. */
+   private static final int MYSQL_DUPLICATE_KEY = 1062;
+
+   private final PersistenceManager persistence;
+
+   /**
+    * @param persistence   Where the orders and the rollup are.
+    */
+   public SalesRollup(PersistenceManager persistence) {
+      this.persistence = persistence;
+   }
+
+   /**
+    * Add the lines of a new order to the rollup.  Call this in the transaction that persists the
+    * order, after all of its lines have been added.
+    * @param manager    The EntityManager of the order's transaction.
+    * @param order      The order being placed.
+    */
+   public static void record(EntityManager manager, Orders order) {
+      record(manager, Collections.singletonList(order));
+   }
+
+   /**
+    * Add a group of orders to the rollup, in the caller's transaction, touching each row once
+    * however many of the orders it covers.  Call it after the orders are persisted, so that their
+    * INSERTs can go to the database in one batch before the UPDATEs.
+    * @param manager    The EntityManager of the transaction that writes the orders.
+    * @param orders     The new orders.
+    */
+   public static void record(EntityManager manager, Collection<Orders> orders) {
+      Map<DailyProductSales_pk, Total> totals = totals(orders, false);
+      if (totals == null) {
+         totals = totals(orders, true);
+      }
+      for (Map.Entry<DailyProductSales_pk, Total> total : totals.entrySet()) {
+         add(manager, total.getKey().getUpc(), total.getKey().getSales_day(), total.getValue().units,
+                 total.getValue().revenue);
+      }
+   }
+
+   /**
+    * Add the order lines up per product and day.  Unless exact, this is plain long arithmetic,
+    * checked once at the end with Money.cannotOverflow.
+    * @return  The totals, or null if not exact and the lines were too big to be sure of them.
+    */
+   private static Map<DailyProductSales_pk, Total> totals(Collection<Orders> orders, boolean exact) {
+      Map<DailyProductSales_pk, Total> totals = new LinkedHashMap<>();
+      long centsBits = 0;
+      long quantityBits = 0;
+      long lines = 0;
+      for (Orders order : orders) {
+         LocalDate day = order.getOrder_date().toLocalDate();
+         for (Order_lines line : order.getLines()) {
+            Total total = totals.computeIfAbsent(new DailyProductSales_pk(line.getProduct().getUPC(), day),
+                    k -> new Total());
+            long price = line.getUnit_sale_price_cents();
+            int quantity = line.getQuantity();
+            total.units += quantity;
+            if (exact) {
+               total.revenue = Money.plus(total.revenue, Money.times(price, quantity));
+            } else {
+               total.revenue += price * quantity;
+               centsBits |= price;
+               quantityBits |= quantity;
+               lines++;
+            }
+         }
+      }
+      return exact || Money.cannotOverflow(centsBits, quantityBits, lines) ? totals : null;
+   }
+
+   /** Add to the totals of one product on one day, creating the row if this is the first sale. */
+   private static void add(EntityManager manager, String upc, LocalDate day, long units, long revenue) {
+      // Each time round, some other transaction has inserted the row since our UPDATE looked.
+      while (manager.createNamedQuery("AddDailyProductSales")
+              .setParameter("units", units)
+              .setParameter("revenue", revenue)
+              .setParameter("upc", upc)
+              .setParameter("day", day)
+              .executeUpdate() == 0) {
+         if (insertFirstSale(manager, upc, day, units, revenue)) {
+            return;
+         }
+         LOGGER.log(Level.FINE, "Lost the race to insert the sales of {0} on {1}", new Object[]{upc, day});
+      }
+   }
+
+   /** @return  Whether the row was inserted, rather than found to be there already. */
+   private static boolean insertFirstSale(EntityManager manager, String upc, LocalDate day, long units,
+                                          long revenue) {
+      // The connection of the transaction, which the UPDATE has already begun.
+      Connection connection = manager.unwrap(Connection.class);
+      try (PreparedStatement insert = connection.prepareStatement(INSERT_FIRST_SALE)) {
+         insert.setString(1, upc);
+         insert.setDate(2, Date.valueOf(day));
+         insert.setLong(3, units);
+         insert.setLong(4, revenue);
+         insert.executeUpdate();
+         return true;
+      } catch (SQLException e) {
+         if (DUPLICATE_KEY.equals(e.getSQLState()) || e.getErrorCode() == MYSQL_DUPLICATE_KEY) {
+            return false;
+         }
+         throw new PersistenceException("Could not insert the sales of " + upc + " on " + day, e);
+      }
+   }
+
+   /**
+    * Rebuild the rollup for every day that has orders.
+    * @return  The number of rollup rows written.
+    */
+   public long backfill() {
+      Object[] range = persistence.withEntityManager(manager ->
+              manager.createQuery(ORDER_DATE_RANGE, Object[].class).getSingleResult());
+      if (range[0] == null) {
+         return 0;
+      }
+      LocalDate first = ((LocalDateTime) range[0]).toLocalDate();
+      LocalDate last = ((LocalDateTime) range[1]).toLocalDate();
+      return backfill(first, last.plusDays(1));
+   }
+
+   /**
+    * Rebuild the rollup for a range of days, in one transaction: the rows for those days are
+    * deleted, and written again from a GROUP BY over the order lines.
+    * @param from    The first day to rebuild.
+    * @param to      The day after the last day to rebuild.
+    * @return        The number of rollup rows written.
+    */
+   public long backfill(LocalDate from, LocalDate to) {
+      long written = persistence.inTransaction(manager -> {
+         int deleted = manager.createNamedQuery("DeleteDailyProductSales")
+                 .setParameter("from", from)
+                 .setParameter("to", to)
+                 .executeUpdate();
+         LOGGER.log(Level.FINE, "Deleted {0} rollup rows from {1} to {2}", new Object[]{deleted, from, to});
+         List<Object[]> rows = manager.createQuery(BY_PRODUCT_AND_DAY, Object[].class)
+                 .setParameter("from", from.atStartOfDay())
+                 .setParameter("to", to.atStartOfDay())
+                 .getResultList();
+         List<DailyProductSales> sales = new ArrayList<>(rows.size());
+         for (Object[] row : rows) {
+            LocalDate day = LocalDate.of(number(row[1]), number(row[2]), number(row[3]));
+            sales.add(new DailyProductSales((String) row[0], day, (Long) row[4], Money.ofCents((Long) row[5])));
+         }
+         return new BulkPersister(manager).persistAll(sales);
+      });
+      LOGGER.info("Rebuilt " + written + " daily product sales from " + from + " to " + to);
+      return written;
+   }
+
+   /** The database decides what type of number YEAR, MONTH and DAY come back as. */
+   private static int number(Object value) {
+      return ((Number) value).intValue();
+   }
+
+   /**
+    * Rebuild the rollup from the command line.
+    * @param args    Nothing, to rebuild every day with orders, or the first day and the day after
+    *                the last, as ISO dates: 2021-03-01 2021-04-01.
+    */
+   public static void main(String[] args) {
+      if (args.length != 0 && args.length != 2) {
+         System.err.println("Usage: SalesRollup [from-date to-date]");
+         System.exit(1);
+      }
+      try (PersistenceManager persistence = PersistenceManager.create()) {
+         SalesRollup rollup = new SalesRollup(persistence);
+         if (args.length == 0) {
+            rollup.backfill();
+         } else {
+            rollup.backfill(LocalDate.parse(args[0]), LocalDate.parse(args[1]));
+         }
+      }
+   }
+
+   /** The running totals of one rollup row, for record. */
+   private static final class Total {
+      private long units;
+      /** In cents. */
+      private long revenue;
+   }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Money;
+
+import java.time.LocalDate;
+
+/**
+ * One row of a sales report: the units sold and the revenue from them, for one product,
+ * customer, sales associate, day or month, depending on the report.  The database does the
+ * adding up; SalesAnalytics builds these straight from the query with a constructor expression.
+ */
+public class SalesTotal {
+   /** What the sales are grouped by: a UPC, a customer id, a name, or an ISO date or month. */
+   private final String key;
+
+   /** The number of units sold. */
+   private final long units;
+
+   /** The revenue from those units, in US cents: the sum of quantity * unit_sale_price. */
+   private final long revenue;
+
+   public SalesTotal(String key, Long units, Long revenue) {
+      this.key = key;
+      this.units = units == null ? 0 : units;
+      this.revenue = revenue == null ? 0 : revenue;
+   }
+
+   /** For reports grouped by customer, whose key is the numeric customer_id. */
+   public SalesTotal(Long key, Long units, Long revenue) {
+      this(String.valueOf(key), units, revenue);
+   }
+
+   /** For reports over the rollup grouped by day, whose key is the ISO date. */
+   public SalesTotal(LocalDate key, Long units, Long revenue) {
+      this(String.valueOf(key), units, revenue);
+   }
+
+   public String getKey() {
+      return key;
+   }
+
+   public long getUnits() {
+      return units;
+   }
+
+   public Money getRevenue() {
+      return Money.ofCents(revenue);
+   }
+
+   @Override
+   public String toString() {
+      return key + ": " + units + " units, $" + getRevenue();
+   }
+}
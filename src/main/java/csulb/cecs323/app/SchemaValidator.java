@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.helper.DatabaseField;
+import org.eclipse.persistence.internal.helper.DatabaseTable;
+import org.eclipse.persistence.sessions.Session;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks that the database has every table and column that the entities are mapped to, for when
+ * the schema is managed outside of the application and EclipseLink is not allowed to create it.
+ * Column types are not checked; a missing column is by far the common mistake, and it is the one
+ * that otherwise only shows up when the first query that uses it fails.
+ */
+final class SchemaValidator {
+   private SchemaValidator() {}
+
+   /**
+    * Compare the mappings of a session with the database.
+    * @param session       The session whose descriptors to check.
+    * @param connection    A connection to the database.
+    * @return              A description of each table or column that is missing; empty if none are.
+    * @throws SQLException if the database metadata cannot be read.
+    */
+   static List<String> validate(Session session, Connection connection) throws SQLException {
+      DatabaseMetaData metadata = connection.getMetaData();
+      Map<String, Set<String>> columnsByTable = new HashMap<>();
+      List<String> problems = new ArrayList<>();
+      for (ClassDescriptor descriptor : session.getDescriptors().values()) {
+         if (descriptor.isAggregateDescriptor()) {
+            continue;
+         }
+         for (DatabaseTable table : descriptor.getTables()) {
+            Set<String> columns = columnsByTable.get(table.getName());
+            if (columns == null) {
+               columns = columnsOf(metadata, table.getName());
+               columnsByTable.put(table.getName(), columns);
+               if (columns.isEmpty()) {
+                  problems.add("Table " + table.getName() + " of " + descriptor.getJavaClass().getSimpleName() +
+                          " does not exist");
+               }
+            }
+         }
+         for (DatabaseField field : descriptor.getFields()) {
+            Set<String> columns = columnsByTable.get(field.getTableName());
+            if (columns != null && !columns.isEmpty() && !columns.contains(normalize(field.getName()))) {
+               problems.add("Column " + field.getTableName() + "." + field.getName() + " of " +
+                       descriptor.getJavaClass().getSimpleName() + " does not exist");
+            }
+         }
+      }
+      return problems;
+   }
+
+   /**
+    * The columns of a table, or none if there is no such table.  Databases differ in the case that
+    * they store unquoted names in (Derby upper, MySQL as written), so try each.
+    */
+   private static Set<String> columnsOf(DatabaseMetaData metadata, String table) throws SQLException {
+      Set<String> columns = new HashSet<>();
+      for (String name : new String[]{table, table.toUpperCase(Locale.ROOT), table.toLowerCase(Locale.ROOT)}) {
+         try (ResultSet rs = metadata.getColumns(null, null, name, null)) {
+            while (rs.next()) {
+               columns.add(normalize(rs.getString("COLUMN_NAME")));
+            }
+         }
+         if (!columns.isEmpty()) {
+            break;
+         }
+      }
+      return columns;
+   }
+
+   private static String normalize(String name) {
+      return name.replace("\"", "").toUpperCase(Locale.ROOT);
+   }
+}
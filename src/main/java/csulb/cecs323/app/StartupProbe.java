@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts the application from cold, places one order, and reports how long that took from the
+ * moment the JVM was launched.  This is the number that static weaving and a class data sharing
+ * archive are meant to bring down; StartupBenchmark measures the part of it after the JVM is up.
+ * <p>
+ * It adds a customer and a product of its own, so run it against a throwaway database:
+ * <pre>
+ *    java -Dcustomerorders.profile=test -cp ... csulb.cecs323.app.StartupProbe
+ * </pre>
+ * The appcds build profile also uses it as the training run for the archive, since it loads the
+ * classes that a real first order needs.
+ * </p>
+ */
+public final class StartupProbe {
+   private StartupProbe() {}
+
+   public static void main(String[] args) {
+      try (PersistenceManager persistence = PersistenceManager.create()) {
+         String upc = "STARTUP-" + System.nanoTime();
+         long customerId = persistence.inTransaction(manager -> {
+            manager.persist(new Products(upc, "Start up probe", "CECS 323", "1", Money.of("1.00"), 1));
+            Customers customer = new Customers("Probe", "Startup", "1250 Bellflower Blvd.", "90840", "5629854111");
+            manager.persist(customer);
+            manager.flush();
+            return customer.getCustomer_id();
+         });
+         new OrderService(persistence).placeOrder(customerId, "StartupProbe", LocalDateTime.now(), upc, 1);
+         long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+         System.out.printf("First order placed %d ms after the JVM started (persistence unit ready in %d ms, %s)%n",
+                 uptime, TimeUnit.NANOSECONDS.toMillis(persistence.getStartupNanos()),
+                 persistence.getProfile().name().toLowerCase());
+      }
+   }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+
+/**
+ * Formats each log record as one line of JSON, so that logs can be searched by field rather than
+ * by pattern:
+ * <pre>
+ *    {"ts":"2021-03-01T18:15:30.123Z","level":"INFO","logger":"csulb.cecs323.app.BulkPersister","thread":1,"msg":"Persisted 1000 entities"}
+ * </pre>
+ * A record with an exception also gets an "error" field with the stack trace.  The message is
+ * formatted with its parameters here, rather than by the code that logged it.
+ */
+public class StructuredFormatter extends Formatter {
+   /**
+    * LogRecord.getLongThreadID, or on Java 11 to 15, which do not have it, getThreadID, which
+    * Java 16 deprecates.  We compile for Java 11, so it is looked up by name.
+    */
+   private static final MethodHandle THREAD_ID = threadId();
+
+   @Override
+   public String format(LogRecord record) {
+      StringBuilder line = new StringBuilder(160);
+      line.append("{\"ts\":\"").append(record.getInstant()).append('"');
+      field(line, "level", record.getLevel().getName());
+      field(line, "logger", record.getLoggerName());
+      line.append(",\"thread\":").append(threadId(record));
+      field(line, "msg", formatMessage(record));
+      if (record.getThrown() != null) {
+         StringWriter trace = new StringWriter();
+         record.getThrown().printStackTrace(new PrintWriter(trace));
+         field(line, "error", trace.toString());
+      }
+      return line.append("}\n").toString();
+   }
+
+   private static long threadId(LogRecord record) {
+      try {
+         return (long) THREAD_ID.invokeExact(record);
+      } catch (Throwable e) {
+         throw new IllegalStateException("Could not read the thread of a log record", e);
+      }
+   }
+
+   private static MethodHandle threadId() {
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      try {
+         return lookup.findVirtual(LogRecord.class, "getLongThreadID", MethodType.methodType(long.class));
+      } catch (ReflectiveOperationException e) {
+         try {
+            return lookup.findVirtual(LogRecord.class, "getThreadID", MethodType.methodType(int.class))
+                    .asType(MethodType.methodType(long.class, LogRecord.class));
+         } catch (ReflectiveOperationException notThere) {
+            throw new ExceptionInInitializerError(notThere);
+         }
+      }
+   }
+
+   private static void field(StringBuilder line, String name, String value) {
+      line.append(",\"").append(name).append("\":");
+      if (value == null) {
+         line.append("null");
+         return;
+      }
+      line.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"':
+               line.append("\\\"");
+               break;
+            case '\\':
+               line.append("\\\\");
+               break;
+            case '\n':
+               line.append("\\n");
+               break;
+            case '\r':
+               line.append("\\r");
+               break;
+            case '\t':
+               line.append("\\t");
+               break;
+            default:
+               if (c < 0x20) {
+                  line.append(String.format("\\u%04x", (int) c));
+               } else {
+                  line.append(c);
+               }
+         }
+      }
+      line.append('"');
+   }
+}
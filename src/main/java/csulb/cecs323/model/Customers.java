@@ -1,7 +1,6 @@
 package csulb.cecs323.model;
 
 import javax.persistence.*;
-import java.util.Objects;
 /*
  * Licensed under the Academic Free License (AFL 3.0).
  *     http://opensource.org/licenses/AFL-3.0
@@ -108,12 +107,24 @@ public class Customers {
     }
     @Override
     public boolean equals (Object o) {
-        Customers customer = (Customers) o;
-        return this.getCustomer_id() == customer.getCustomer_id();
-    }
-
+        boolean results = false;
+        if (this == o) {
+            results = true;
+        } else if (o == null || getClass() != o.getClass()) {
+            results = false;
+        } else {
+            Customers customer = (Customers) o;
+            results = this.getCustomer_id() == customer.getCustomer_id();
+        }
+        return results;
+    }
+
+    /**
+     * Consistent with equals, which only compares the IDs: equal
+     * customers whose names differ must still hash the same.
+     */
     @Override
     public int hashCode() {
-        return Objects.hash(this.getCustomer_id(), this.getLast_name(), this.getFirst_name());
+        return Long.hashCode(this.getCustomer_id());
     }
 }
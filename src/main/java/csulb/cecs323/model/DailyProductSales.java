@@ -0,0 +1,92 @@
+package csulb.cecs323.model;
+
+import javax.persistence.*;
+import java.time.LocalDate;
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+/*
+This is a rollup table: everything in it can be worked out again
+from Order_lines, and it is kept only so that the reports do not
+have to add up every order line ever sold.  It is maintained in
+the same transaction that writes the order lines (see
+SalesRollup), so it is never out of step with them.
+
+The product is held as a plain UPC column rather than a
+@ManyToOne, since the reports never need anything else about the
+product, and there is no reason to load one just to add to its
+totals.
+ */
+@Entity
+@IdClass(DailyProductSales_pk.class)
+@Table(indexes = @Index(name = "daily_product_sales_day_idx", columnList = "sales_day"))
+// Add to the totals of a row that is already there.  Zero rows updated means that this is the
+// first sale of the product on that day, and the row has to be inserted.
+@NamedQuery(
+        name="AddDailyProductSales",
+        query = "UPDATE DailyProductSales d " +
+                "SET    d.units = d.units + :units, d.revenue = d.revenue + :revenue " +
+                "WHERE  d.upc = :upc AND d.sales_day = :day"
+)
+@NamedQuery(
+        name="DeleteDailyProductSales",
+        query = "DELETE FROM DailyProductSales d " +
+                "WHERE  d.sales_day >= :from AND d.sales_day < :to"
+)
+/** The units sold and the revenue from them for one product on one day. */
+public class DailyProductSales {
+    @Id
+    @Column(nullable = false, length = 30)
+    /** The UPC of the product sold. */
+    private String upc;
+    @Id
+    @Column(nullable = false)
+    /** The day of the orders, from Orders.order_date. */
+    private LocalDate sales_day;
+    @Column(nullable = false)
+    /** The sum of the quantity of every order line for the product on that day. */
+    private long units;
+    @Column(name = "revenue_cents", nullable = false)
+    /** The sum of quantity * unit_sale_price over the same order lines, in US cents. */
+    private long revenue;
+
+    public DailyProductSales() {}
+
+    public DailyProductSales(String upc, LocalDate sales_day, long units, Money revenue) {
+        this.upc = upc;
+        this.sales_day = sales_day;
+        this.units = units;
+        this.revenue = revenue.getCents();
+    }
+
+    public String getUpc() {
+        return upc;
+    }
+
+    public LocalDate getSales_day() {
+        return sales_day;
+    }
+
+    public long getUnits() {
+        return units;
+    }
+
+    public Money getRevenue() {
+        return Money.ofCents(revenue);
+    }
+
+    @Override
+    public String toString () {
+        return "DailyProductSales- UPC: " + this.upc + ", Day: " + this.sales_day +
+                ", Units: " + this.units + ", Revenue: " + getRevenue() + "\n";
+    }
+}
@@ -0,0 +1,64 @@
+package csulb.cecs323.model;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.util.Objects;
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+/** The primary key class for DailyProductSales: one row per product per day. */
+public class DailyProductSales_pk implements Serializable {
+    private String upc;
+    private LocalDate sales_day;
+    /** The hash code, or 0 if it has not been worked out yet. */
+    private transient int hash;
+
+    public DailyProductSales_pk () {}
+
+    public DailyProductSales_pk (String upc, LocalDate sales_day) {
+        this.upc = upc;
+        this.sales_day = sales_day;
+    }
+
+    public String getUpc() {
+        return upc;
+    }
+
+    public LocalDate getSales_day() {
+        return sales_day;
+    }
+
+    @Override
+    public boolean equals (Object o) {
+        boolean results = false;
+        if (this == o) {
+            results = true;
+        } else if (o == null || getClass() != o.getClass()) {
+            results = false;
+        } else {
+            DailyProductSales_pk pk = (DailyProductSales_pk) o;
+            results =   Objects.equals(this.getUpc(), pk.getUpc()) &&
+                        Objects.equals(this.getSales_day(), pk.getSales_day());
+        }
+        return results;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = 31 * (31 + Objects.hashCode(upc)) + Objects.hashCode(sales_day);
+            hash = h;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,73 @@
+package csulb.cecs323.model;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+/*
+The application keeps some changes in a journal on the disk (see
+AppendLog) before it writes them to the database.  Each journal
+has one row here, with the sequence number of the last journal
+record whose change is in the database.  The row is updated in
+the same transaction as the changes themselves, so after a crash
+the records after it are exactly the ones still to be applied.
+ */
+@Entity
+@Table(name = "JOURNAL_CHECKPOINTS")
+/** How far the database has caught up with one journal. */
+public class JournalCheckpoint {
+    @Id
+    @Column(nullable = false, length = 40)
+    /** The name of the journal. */
+    private String journal;
+    @Column(nullable = false)
+    /** The sequence number of the last record applied to the database. */
+    private long last_sequence;
+    @Column(nullable = false)
+    /** When the checkpoint last moved. */
+    private LocalDateTime checkpointed_at;
+
+    public JournalCheckpoint() {}
+
+    public JournalCheckpoint(String journal, long last_sequence, LocalDateTime checkpointed_at) {
+        this.journal = journal;
+        this.last_sequence = last_sequence;
+        this.checkpointed_at = checkpointed_at;
+    }
+
+    public String getJournal() {
+        return journal;
+    }
+
+    public long getLast_sequence() {
+        return last_sequence;
+    }
+
+    public void setLast_sequence(long last_sequence) {
+        this.last_sequence = last_sequence;
+    }
+
+    public LocalDateTime getCheckpointed_at() {
+        return checkpointed_at;
+    }
+
+    public void setCheckpointed_at(LocalDateTime checkpointed_at) {
+        this.checkpointed_at = checkpointed_at;
+    }
+
+    @Override
+    public String toString () {
+        return "JournalCheckpoint- Journal: " + this.journal + ", Last sequence: " + this.last_sequence +
+                ", At: " + this.checkpointed_at + "\n";
+    }
+}
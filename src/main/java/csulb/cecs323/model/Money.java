@@ -0,0 +1,166 @@
+package csulb.cecs323.model;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+/*
+An amount of US $, as a whole number of cents.  Prices and revenue
+used to be doubles, and a double cannot hold most amounts of cents
+exactly (0.1 + 0.2 != 0.3), so adding up a great many of them drifts
+away from the right total.  A long number of cents adds up exactly,
+at least as fast as a double does, and without the garbage and the time
+that BigDecimal takes.
+
+The entities keep their amounts as long cents, in columns whose names
+end in _cents, so the database adds them up exactly too.  Their
+getters hand out Money.  Code that adds up a lot of amounts, and does
+not want an object for each one, can use the static methods on long
+cents instead, which is all that the instance methods do.
+
+Arithmetic that overflows a long throws rather than wrapping around.
+Checking every step for overflow costs more than the step itself, so
+the loops that add up many lines (QuoteEngine, SalesRollup) use plain
+long arithmetic, and ask cannotOverflow once at the end whether the
+lines were small enough that it cannot have overflowed.  Only if they
+were not do they add the lines up again with plus and times.
+ */
+/** An exact amount of money, in cents. */
+public final class Money implements Comparable<Money>, Serializable {
+    /** No money. */
+    public static final Money ZERO = new Money(0);
+
+    /** The number of cents in a dollar. */
+    public static final int CENTS_PER_DOLLAR = 100;
+
+    /** The digits after the decimal point. */
+    public static final int SCALE = 2;
+
+    private final long cents;
+
+    private Money(long cents) {
+        this.cents = cents;
+    }
+
+    /**
+     * @param cents     A number of cents.
+     * @return          That amount.
+     */
+    public static Money ofCents(long cents) {
+        return cents == 0 ? ZERO : new Money(cents);
+    }
+
+    /**
+     * Parse an amount of dollars, such as 9.97, exactly.
+     * @param dollars   The amount, with at most two digits after the point.
+     * @return          The amount.
+     * @throws NumberFormatException   if it is not a number, or has fractions of a cent.
+     */
+    public static Money of(String dollars) {
+        return ofCents(parseCents(dollars));
+    }
+
+    /**
+     * @param amount    An amount of dollars.
+     * @return          The amount, which must be a whole number of cents.
+     * @throws ArithmeticException   if it has fractions of a cent, or is too big.
+     */
+    public static Money of(BigDecimal amount) {
+        return ofCents(amount.setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact());
+    }
+
+    /**
+     * Parse an amount of dollars into cents, exactly.
+     * @param dollars   The amount, with at most two digits after the point.
+     * @return          The number of cents.
+     * @throws NumberFormatException   if it is not a number, or has fractions of a cent.
+     */
+    public static long parseCents(String dollars) {
+        try {
+            return of(new BigDecimal(dollars.trim())).cents;
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Not a whole number of cents: " + dollars);
+        }
+    }
+
+    /** @return  a + b, in cents. */
+    public static long plus(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    /** @return  The price of quantity units at unitCents each, in cents. */
+    public static long times(long unitCents, long quantity) {
+        return Math.multiplyExact(unitCents, quantity);
+    }
+
+    /**
+     * Whether a sum of count prices times quantities cannot overflow a long, judged from the
+     * bitwise OR of all the prices and of all the quantities, which a loop can keep for
+     * next to nothing.  If every price is below 2^a, every quantity below 2^b, and count below
+     * 2^c, the sum is below 2^(a+b+c).  A negative price or quantity is never judged safe.
+     * @param centsBits      The OR of the prices, in cents, or of any more prices besides.
+     * @param quantityBits   The OR of the quantities.
+     * @param count          The number of prices times quantities in the sum.
+     * @return               true if the plain long sum is exact; false if it might not be.
+     */
+    public static boolean cannotOverflow(long centsBits, long quantityBits, long count) {
+        if ((centsBits | quantityBits | count) < 0) {
+            return false;
+        }
+        return bits(centsBits) + bits(quantityBits) + bits(count) < Long.SIZE;
+    }
+
+    /** The number of bits needed to write a value that is not negative. */
+    private static int bits(long value) {
+        return Long.SIZE - Long.numberOfLeadingZeros(value);
+    }
+
+    public long getCents() {
+        return cents;
+    }
+
+    public Money plus(Money other) {
+        return ofCents(plus(cents, other.cents));
+    }
+
+    public Money times(long quantity) {
+        return ofCents(times(cents, quantity));
+    }
+
+    /** @return  The amount in dollars, exactly. */
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(cents, SCALE);
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(cents, other.cents);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Money && ((Money) o).cents == cents;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(cents);
+    }
+
+    /** @return  The amount in dollars with two decimal places, such as 9.97 or -0.05. */
+    @Override
+    public String toString() {
+        return toBigDecimal().toPlainString();
+    }
+}
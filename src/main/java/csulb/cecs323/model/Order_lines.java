@@ -1,5 +1,8 @@
 package csulb.cecs323.model;
 
+import org.eclipse.persistence.annotations.BatchFetch;
+import org.eclipse.persistence.annotations.BatchFetchType;
+
 import javax.persistence.*;
 import java.util.Objects;
 /*
@@ -28,16 +31,53 @@ that mean that you would have to explicitly declare the
 association class the way that we are doing here.  It seems to
 me that would be the case.
  */
+/*
+Both relationships are lazy, and nothing is loaded with a line
+unless the query asks for it: callers pick a fetch plan, one of
+the entity graphs below, for what they are about to walk (see
+FetchPlans).  Whatever is not in the plan, but is walked anyway,
+is batch fetched: the first line to touch its order (or product)
+loads the orders of all of the lines read by the same query,
+with one SELECT, rather than one SELECT per line.
+
+Lazy @ManyToOne needs EclipseLink's weaving.  Without it the
+relationships are loaded eagerly, but still in batches.
+ */
 @Entity
 @IdClass(Order_lines_pk.class)
+@NamedEntityGraph(
+        name = "Order_lines.product",
+        attributeNodes = @NamedAttributeNode("product")
+)
+@NamedEntityGraph(
+        name = "Order_lines.orderAndProduct",
+        attributeNodes = {
+                @NamedAttributeNode("product"),
+                @NamedAttributeNode(value = "order", subgraph = "customer")
+        },
+        subgraphs = @NamedSubgraph(name = "customer", attributeNodes = @NamedAttributeNode("customer"))
+)
 /** The occurrence of a single Product within a single Order */
 public class Order_lines {
+    @Transient
+    /** Surrogate key, only used in the compact key schema (see
+    META-INF/orm-compact.xml).  In the default schema the
+    order and the product are the primary key.
+     */
+    private long line_id;
     @Id
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
+    // The key of an order has two columns, and Derby cannot do IN on
+    // pairs of values, so batch by joining to the query that read the lines.
+    @BatchFetch(BatchFetchType.JOIN)
     /** The order that this line belongs to. */
     private Orders order;
     @Id
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
+    // JOIN rather than IN, so that it can follow on from the lines of
+    // a batch of orders, which are read with EXISTS (see Orders);
+    // EclipseLink can only batch with IN after a query that did too.
+    @BatchFetch(BatchFetchType.JOIN)
     /** The product ordered in this line item of the order. */
     private Products product;
     @Column(nullable=false)
@@ -46,15 +86,19 @@ public class Order_lines {
     back to this row and update the quantity.
      */
     private int quantity;
-    @Column(nullable = false)
-    /** The price of this item FOR THIS ORDER.  The customer might
+    @Column(name = "unit_sale_price_cents", nullable = false)
+    /** The price of this item FOR THIS ORDER, in US cents.  The customer might
     have scored a discount from the unit_list_price for this
     product that is only in effect for this sale.
      */
-    private double unit_sale_price;
+    private long unit_sale_price;
 
     public Order_lines() {}
 
+    public long getLine_id() {
+        return line_id;
+    }
+
     public Orders getOrder() {
         return order;
     }
@@ -79,20 +123,28 @@ public class Order_lines {
         this.quantity = quantity;
     }
 
-    public double getUnit_sale_price() {
-        return unit_sale_price;
+    public Money getUnit_sale_price() {
+        return Money.ofCents(unit_sale_price);
+    }
+
+    public void setUnit_sale_price(Money unit_sale_price) {
+        this.unit_sale_price = unit_sale_price.getCents();
     }
 
-    public void setUnit_sale_price(double unit_sale_price) {
-        this.unit_sale_price = unit_sale_price;
+    /** The unit sale price in cents, for adding up without a Money for each line. */
+    public long getUnit_sale_price_cents() {
+        return unit_sale_price;
     }
 
+    /** A line for q of product p in order o, sold at p's list price. */
     public Order_lines (Products p, Orders o, int q){
         this.product = p;
         this.order = o;
         this.quantity = q;
+        this.unit_sale_price = p.getUnit_list_price_cents();
     }
 
+    @Override
     public boolean equals (Object o) {
         boolean results = false;
         if (this == o) {
@@ -101,13 +153,20 @@ public class Order_lines {
             results = false;
         } else {
             Order_lines ol = (Order_lines) o;
-            results = this.getOrder().equals (ol.getOrder()) &&
-                    this.getProduct() == ol.getProduct();
+            results = Objects.equals(this.getOrder(), ol.getOrder()) &&
+                    Objects.equals(this.upc(), ol.upc());
         }
         return results;
     }
 
-    public int hasCode () {
-        return Objects.hash(this.getOrder(), this.getProduct());
+    /** Consistent with equals: the order, and the UPC of the product. */
+    @Override
+    public int hashCode () {
+        return 31 * (31 + Objects.hashCode(this.getOrder())) + Objects.hashCode(this.upc());
+    }
+
+    /** The key of the product, since Products does not define equals. */
+    private String upc () {
+        return this.getProduct() == null ? null : this.getProduct().getUPC();
     }
 }
@@ -17,7 +17,8 @@ import java.util.Objects;
  */
 
 /**
- * The primary key class for the Order_lines class.
+ * The primary key class for the Order_lines class.  Once built, a key
+ * does not change, so its hash code is worked out once and kept.
  */
 public class Order_lines_pk implements Serializable {
     @Id
@@ -36,21 +37,22 @@ public class Order_lines_pk implements Serializable {
     @Column(nullable = false, length = 30)
     /** One product within this one order */
     private String product;
+    /** The hash code, or 0 if it has not been worked out yet. */
+    private transient int hash;
 
-    public Orders_pk getOrder() {
-        return order;
-    }
+    public Order_lines_pk () {}
 
-    public void setOrder(Orders_pk order) {
+    public Order_lines_pk (Orders_pk order, String product) {
         this.order = order;
+        this.product = product;
     }
 
-    public String getProduct() {
-        return product;
+    public Orders_pk getOrder() {
+        return order;
     }
 
-    public void setProduct(String product) {
-        this.product = product;
+    public String getProduct() {
+        return product;
     }
 
     @Override
@@ -62,13 +64,19 @@ public class Order_lines_pk implements Serializable {
             results = false;
         } else {
             Order_lines_pk olpk = (Order_lines_pk) o;
-            results = this.getOrder().equals (olpk.getOrder()) &&
-                    this.getProduct() == olpk.getProduct();
+            results = Objects.equals(this.getOrder(), olpk.getOrder()) &&
+                    Objects.equals(this.getProduct(), olpk.getProduct());
         }
         return results;
     }
     @Override
     public int hashCode () {
-        return Objects.hash (this.getOrder(), this.getProduct());
+        int h = hash;
+        if (h == 0) {
+            // Same as Objects.hash, without the varargs array.
+            h = 31 * (31 + Objects.hashCode(order)) + Objects.hashCode(product);
+            hash = h;
+        }
+        return h;
     }
 }
@@ -1,7 +1,13 @@
 package csulb.cecs323.model;
 
+import org.eclipse.persistence.annotations.BatchFetch;
+import org.eclipse.persistence.annotations.BatchFetchType;
+
 import javax.persistence.*;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 /*
  * Licensed under the Academic Free License (AFL 3.0).
@@ -17,14 +23,39 @@ import java.util.Objects;
 
 @Entity
 @IdClass(Orders_pk.class)
+// For the sales reports, which pick orders by date and add them up
+// by sales associate.
+@Table(indexes = {
+        @Index(name = "orders_order_date_idx", columnList = "order_date"),
+        @Index(name = "orders_sold_by_idx", columnList = "sold_by")
+})
+// Fetch plans, see Order_lines and FetchPlans.
+@NamedEntityGraph(
+        name = "Orders.customer",
+        attributeNodes = @NamedAttributeNode("customer")
+)
+@NamedEntityGraph(
+        name = "Orders.linesAndProducts",
+        attributeNodes = @NamedAttributeNode(value = "lines", subgraph = "product"),
+        subgraphs = @NamedSubgraph(name = "product", attributeNodes = @NamedAttributeNode("product"))
+)
 /**
 A request by a Customer for a collection of one or more
 Products.  The Order includes a quantity of each Product
 within the order.
  */
 public class Orders {
+    @Transient
+    /** Surrogate key, only used in the compact key schema (see
+    META-INF/orm-compact.xml).  In the default schema the
+    customer and order_date are the primary key.
+     */
+    private long order_id;
     @Id
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
+    // JOIN rather than IN, so that it can follow on from a batch of
+    // orders that was itself read with a JOIN (see Order_lines).
+    @BatchFetch(BatchFetchType.JOIN)
     // I could easily have left the @JoinColumn annotation out
     @JoinColumn(name="customer_id",
     referencedColumnName = "customer_id")
@@ -41,6 +72,14 @@ public class Orders {
     @Column(nullable=false, length=128)
     /** The name of the sales person who sold the goods. */
     private String sold_by;
+    @OneToMany(mappedBy = "order", cascade = CascadeType.PERSIST)
+    // Batched with a subquery on the orders, since the lines refer to
+    // their order by two columns.
+    @BatchFetch(BatchFetchType.EXISTS)
+    /** The products in this order, one line per product.  Persisting
+    the order persists its lines along with it.
+     */
+    private List<Order_lines> lines = new ArrayList<>();
 
     public Orders () {}
 
@@ -51,6 +90,10 @@ public class Orders {
         this.sold_by = sold_by;
     }
 
+    public long getOrder_id() {
+        return order_id;
+    }
+
     public Customers getCustomer() {
         return customer;
     }
@@ -75,6 +118,33 @@ public class Orders {
         this.sold_by = sold_by;
     }
 
+    /** The lines of this order, which can only be added to through addLine. */
+    public List<Order_lines> getLines() {
+        return Collections.unmodifiableList(lines);
+    }
+
+    /**
+     * Add a product to this order at its current list price.  If the
+     * product is already in the order, its quantity goes up instead.
+     * @param product   The product ordered.
+     * @param quantity  How many of it, at least 1.
+     * @return          The order line for the product.
+     */
+    public Order_lines addLine(Products product, int quantity) {
+        if (quantity < 1) {
+            throw new IllegalArgumentException("Quantity must be at least 1: " + quantity);
+        }
+        for (Order_lines line : lines) {
+            if (line.getProduct().getUPC().equals(product.getUPC())) {
+                line.setQuantity(line.getQuantity() + quantity);
+                return line;
+            }
+        }
+        Order_lines line = new Order_lines(product, this, quantity);
+        lines.add(line);
+        return line;
+    }
+
     @Override
     public String toString () {
         return "Order: Placed by: " + this.getCustomer() + ", On: " + this.getOrder_date() +
@@ -83,13 +153,24 @@ public class Orders {
 
     @Override
     public boolean equals (Object o) {
-        Orders order = (Orders) o;
-        return (this.getCustomer().equals(order.getCustomer()) &&
-                this.getOrder_date() == order.getOrder_date());
+        boolean results = false;
+        if (this == o) {
+            results = true;
+        } else if (o == null || getClass() != o.getClass()) {
+            results = false;
+        } else {
+            Orders order = (Orders) o;
+            results = Objects.equals(this.getCustomer(), order.getCustomer()) &&
+                    Objects.equals(this.getOrder_date(), order.getOrder_date());
+        }
+        return results;
     }
 
+    /** Consistent with equals: Customers are equal when their IDs are,
+    so hash on the customer ID rather than the whole customer. */
     @Override
     public int hashCode () {
-        return Objects.hash(this.getOrder_date(), this.getCustomer());
+        long customer_id = this.getCustomer() == null ? 0 : this.getCustomer().getCustomer_id();
+        return 31 * (31 + Long.hashCode(customer_id)) + Objects.hashCode(this.getOrder_date());
     }
 }
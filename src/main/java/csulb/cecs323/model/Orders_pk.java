@@ -17,7 +17,8 @@ import java.util.Objects;
  *
  */
 
-/** The primary key class for Orders */
+/** The primary key class for Orders.  Once built, a key does not
+change, so its hash code is worked out once and kept. */
 public class Orders_pk implements Serializable {
     @Id
     @Column(nullable = false)
@@ -31,6 +32,8 @@ public class Orders_pk implements Serializable {
     @Id
     @Column(nullable = false)
     private LocalDateTime order_date;
+    /** The hash code, or 0 if it has not been worked out yet. */
+    private transient int hash;
 
     public Orders_pk () {}
 
@@ -43,18 +46,10 @@ public class Orders_pk implements Serializable {
         return customer;
     }
 
-    public void setCustomer(long customer) {
-        this.customer = customer;
-    }
-
     public LocalDateTime getOrder_date() {
         return order_date;
     }
 
-    public void setOrder_date(LocalDateTime order_date) {
-        this.order_date = order_date;
-    }
-
     @Override
     public boolean equals (Object o) {
         boolean results = false;
@@ -65,13 +60,19 @@ public class Orders_pk implements Serializable {
         } else {
             Orders_pk orders_pk = (Orders_pk) o;
             results =   this.getCustomer() == orders_pk.getCustomer() &&
-                        this.getOrder_date() == orders_pk.getOrder_date();
+                        Objects.equals(this.getOrder_date(), orders_pk.getOrder_date());
         }
         return results;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(this.getCustomer(), this.getOrder_date());
+        int h = hash;
+        if (h == 0) {
+            // Same as Objects.hash, without the boxing and the varargs array.
+            h = 31 * (31 + Long.hashCode(customer)) + Objects.hashCode(order_date);
+            hash = h;
+        }
+        return h;
     }
 }
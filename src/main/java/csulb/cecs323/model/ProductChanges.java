@@ -0,0 +1,81 @@
+package csulb.cecs323.model;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.jpa.JpaEntityManager;
+import org.eclipse.persistence.sequencing.NativeSequence;
+import org.eclipse.persistence.sequencing.TableSequence;
+import org.eclipse.persistence.sessions.DatabaseLogin;
+import org.eclipse.persistence.sessions.Session;
+
+import javax.persistence.EntityManager;
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+/*
+Every write to a product stamps its change_number with the next
+number from one database sequence, PRODUCT_CHANGES, so that a reader
+(QuoteEngine) can ask for the products changed since the highest
+number it has seen, without trusting anybody's clock.
+
+An insert takes its number the way a generated ID would, and an
+update through the entity takes one just before it is written.  The
+bulk UPDATEs, ReserveStock and AdjustStock, go around both, so
+whoever runs them takes a number with next and passes it in.
+
+The sequence hands out one number at a time: preallocating a block,
+the way EclipseLink does for IDs, would let one JVM stamp a change
+with a lower number than another JVM had already used.  Where the
+database has sequences (Derby, H2) it is one of those.  Elsewhere
+(MySQL) it is a row of EclipseLink's SEQUENCE table, which is taken
+on a connection of its own (eclipselink.jdbc.sequence-connection-pool
+in persistence.xml), so that the row is not locked until the change
+commits.
+
+Numbers are in the order that they were taken, which is not always
+the order in which their transactions commit.
+ */
+/** Numbers the changes to the products; named in persistence.xml as the session customizer. */
+public class ProductChanges extends DescriptorEventAdapter implements SessionCustomizer {
+    /** The name of the sequence, and of its row in the SEQUENCE table where there is one. */
+    public static final String SEQUENCE = "PRODUCT_CHANGES";
+
+    @Override
+    public void customize(Session session) {
+        DatabaseLogin login = session.getLogin();
+        login.addSequence(login.getPlatform().supportsSequenceObjects()
+                ? new NativeSequence(SEQUENCE, 1, false)
+                : new TableSequence(SEQUENCE, 1));
+        ClassDescriptor descriptor = session.getDescriptor(Products.class);
+        descriptor.setSequenceNumberFieldName("CHANGE_NUMBER");
+        descriptor.setSequenceNumberName(SEQUENCE);
+        descriptor.getEventManager().addListener(this);
+    }
+
+    @Override
+    public void aboutToUpdate(DescriptorEvent event) {
+        long change = event.getSession().getNextSequenceNumberValue(Products.class).longValue();
+        event.updateAttributeWithObject("change_number", change);
+    }
+
+    /**
+     * Take the next change number, for a bulk UPDATE of the products to set.
+     * @param manager   Any EntityManager of the persistence unit.
+     * @return          A number higher than any taken before it.
+     */
+    public static long next(EntityManager manager) {
+        return manager.unwrap(JpaEntityManager.class).getServerSession()
+                .getNextSequenceNumberValue(Products.class).longValue();
+    }
+}
@@ -1,9 +1,18 @@
 package csulb.cecs323.model;
 
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.annotations.CacheType;
+import org.eclipse.persistence.config.CacheUsage;
+import org.eclipse.persistence.config.QueryHints;
+
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
-import javax.persistence.NamedNativeQuery;
+import javax.persistence.Index;
+import javax.persistence.NamedQuery;
+import javax.persistence.QueryHint;
+import javax.persistence.Table;
 /*
  * Licensed under the Academic Free License (AFL 3.0).
  *     http://opensource.org/licenses/AFL-3.0
@@ -17,12 +26,62 @@ import javax.persistence.NamedNativeQuery;
  */
 
 @Entity
-@NamedNativeQuery(
-        name="ReturnProduct",
-        query = "SELECT * " +
-                "FROM   PRODUCTS " +
-                "WHERE  url = ? ",
-        resultClass = Products.class
+// Keep the hot part of the catalog in EclipseLink's shared (L2) cache, so that em.find on a UPC
+// is usually served from memory.  The bulk UPDATEs, ReserveStock and AdjustStock, leave the cache
+// alone rather than invalidate every product in it; whoever runs them evicts the products that
+// they changed once they commit (PersistenceManager.evict).  The expiry (in ms) bounds how stale
+// a product changed by another process can be.
+@Cacheable
+@Cache(type = CacheType.SOFT_WEAK, size = 10000, expiry = 300000)
+// The lookups other than by UPC (which is just em.find on the @Id) each have an index to back
+// them, so that they stay index seeks no matter how big the catalog gets.  So does QuoteEngine's
+// refresh, which reads the products changed since it last looked.
+@Table(indexes = {
+        @Index(name = "products_mfgr_model_idx", columnList = "mfgr, model"),
+        @Index(name = "products_prod_name_idx", columnList = "prod_name"),
+        @Index(name = "products_change_number_idx", columnList = "change_number")
+})
+@NamedQuery(
+        name="FindProductsByModel",
+        query = "SELECT p " +
+                "FROM   Products p " +
+                "WHERE  p.mfgr = :mfgr AND p.model = :model"
+)
+// The prefix must have any % or _ escaped with a backslash, see ProductQueries.
+@NamedQuery(
+        name="FindProductsByNamePrefix",
+        query = "SELECT p " +
+                "FROM   Products p " +
+                "WHERE  p.prod_name LIKE :prefix ESCAPE '\\' " +
+                "ORDER BY p.prod_name"
+)
+// Take units out of stock only if there are enough of them, all in one statement, so that two
+// sessions cannot both see the same units in stock and sell them twice.  A bulk UPDATE goes
+// around ProductChanges, so it is given the change number to set, from ProductChanges.next; so
+// is AdjustStock.
+@NamedQuery(
+        name="ReserveStock",
+        query = "UPDATE Products p " +
+                "SET    p.units_in_stock = p.units_in_stock - :quantity, " +
+                "       p.change_number = :change " +
+                "WHERE  p.UPC = :upc AND p.units_in_stock >= :quantity",
+        hints = @QueryHint(name = QueryHints.CACHE_USAGE, value = CacheUsage.NoCache)
+)
+// The InventoryLedger keeps the live stock in memory; these read the stock it starts from, and
+// write back the net change since the last write, which may be either way.
+@NamedQuery(
+        name="FindUnitsInStock",
+        query = "SELECT p.units_in_stock " +
+                "FROM   Products p " +
+                "WHERE  p.UPC = :upc"
+)
+@NamedQuery(
+        name="AdjustStock",
+        query = "UPDATE Products p " +
+                "SET    p.units_in_stock = p.units_in_stock + :delta, " +
+                "       p.change_number = :change " +
+                "WHERE  p.UPC = :upc",
+        hints = @QueryHint(name = QueryHints.CACHE_USAGE, value = CacheUsage.NoCache)
 )
 /** Something that we stock, that the customer can order. */
 public class Products {
@@ -43,20 +102,24 @@ public class Products {
     /** The manufacturer's model number for this product. */
     private String model;
 
-    @Column(nullable = false)
-    /** Price in US $ */
-    private double unit_list_price;
+    @Column(name = "unit_list_price_cents", nullable = false)
+    /** Price in US cents, see Money. */
+    private long unit_list_price;
 
     @Column(nullable = false)
     /** The quantity of this item that we have on hand. */
     private int units_in_stock;
 
-    public Products(String UPC, String prod_name, String mfgr, String model, double unit_list_price, int units_in_stock) {
+    @Column(nullable = false)
+    /** The number of the last change to the product, from the PRODUCT_CHANGES sequence, see ProductChanges. */
+    private long change_number;
+
+    public Products(String UPC, String prod_name, String mfgr, String model, Money unit_list_price, int units_in_stock) {
         this.UPC = UPC;
         this.prod_name = prod_name;
         this.mfgr = mfgr;
         this.model = model;
-        this.unit_list_price = unit_list_price;
+        this.unit_list_price = unit_list_price.getCents();
         this.units_in_stock = units_in_stock;
     }
 
@@ -94,12 +157,17 @@ public class Products {
         this.model = model;
     }
 
-    public double getUnit_list_price() {
-        return unit_list_price;
+    public Money getUnit_list_price() {
+        return Money.ofCents(unit_list_price);
     }
 
-    public void setUnit_list_price(double unit_list_price) {
-        this.unit_list_price = unit_list_price;
+    public void setUnit_list_price(Money unit_list_price) {
+        this.unit_list_price = unit_list_price.getCents();
+    }
+
+    /** The unit list price in cents, for adding up without a Money for each product. */
+    public long getUnit_list_price_cents() {
+        return unit_list_price;
     }
 
     public int getUnits_in_stock() {
@@ -110,9 +178,13 @@ public class Products {
         this.units_in_stock = units_in_stock;
     }
 
+    public long getChange_number() {
+        return change_number;
+    }
+
     @Override
     public String toString () {
-        return "Product- UPC: " + this.UPC + ", Name: " + this.prod_name + ", Price: " + this.unit_list_price
+        return "Product- UPC: " + this.UPC + ", Name: " + this.prod_name + ", Price: " + getUnit_list_price()
                 + " QTY on hand: " + this.units_in_stock + "\n";
     }
 }
@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+import org.eclipse.persistence.jpa.JpaEntityManager;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.SessionProfiler;
+import org.eclipse.persistence.sessions.SessionProfilerAdapter;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The number of SQL statements it takes to load an order of LINES lines and walk its customer,
+ * lines and products, in both key schemas: with a fetch plan, and with nothing but @BatchFetch.
+ * Either way it must be a small constant, not one statement per line.
+ * <p>
+ * The tests run unwoven, so EclipseLink loads the lazy @ManyToOne relationships eagerly, in
+ * batches; with weaving they are loaded when walked, by the same batches.
+ * </p>
+ */
+class FetchPlansTest {
+   /** Lines in the order. */
+   private static final int LINES = 1000;
+
+   /** Products per IN (...) that EclipseLink batch fetches. */
+   private static final int IN_BATCH = 500;
+
+   /**
+    * The most statements that loading the order may take, with a plan or without: the order, its
+    * customer, its lines, and their products, in batches of up to IN_BATCH.
+    */
+   private static final int MOST_STATEMENTS = 3 + (LINES + IN_BATCH - 1) / IN_BATCH;
+
+   /** When the order was placed; no order in the seed data was placed then. */
+   private static final LocalDateTime ORDER_DATE = LocalDateTime.of(1999, 12, 31, 23, 59);
+
+   private static final String ORDER_PLACED_AT = "SELECT o FROM Orders o WHERE o.order_date = :date";
+
+   /** A database for each key schema, made by the first test that uses it. */
+   private static final Map<String, PersistenceManager> databases = new HashMap<>();
+
+   /** SQL statements sent to a database since the last test started. */
+   private static final AtomicInteger statements = new AtomicInteger();
+
+   @AfterAll
+   static void close() {
+      databases.values().forEach(PersistenceManager::close);
+   }
+
+   @ParameterizedTest
+   @ValueSource(strings = {"natural", "compact"})
+   void orderWithLinesAndProductsPlan(String schema) {
+      int walked = open(schema).withEntityManager(manager -> walk(FetchPlans.apply(manager,
+              manager.createQuery(ORDER_PLACED_AT, Orders.class), FetchPlans.ORDER_LINES_AND_PRODUCTS)
+              .setParameter("date", ORDER_DATE)
+              .getSingleResult()));
+      assertEquals(LINES, walked);
+      assertFewStatements();
+   }
+
+   @ParameterizedTest
+   @ValueSource(strings = {"natural", "compact"})
+   void linesWithOrderAndProductPlan(String schema) {
+      int walked = open(schema).withEntityManager(manager -> {
+         List<Order_lines> lines = FetchPlans.findLinesPlacedBetween(manager, ORDER_DATE,
+                 ORDER_DATE.plusMinutes(1), FetchPlans.LINE_ORDER_AND_PRODUCT);
+         for (Order_lines line : lines) {
+            assertNotNull(line.getOrder().getCustomer().getLast_name());
+            assertNotNull(line.getProduct().getProd_name());
+         }
+         return lines.size();
+      });
+      assertEquals(LINES, walked);
+      assertFewStatements();
+   }
+
+   @ParameterizedTest
+   @ValueSource(strings = {"natural", "compact"})
+   void orderWithBatchFetchAlone(String schema) {
+      int walked = open(schema).withEntityManager(manager -> walk(
+              manager.createQuery(ORDER_PLACED_AT, Orders.class)
+                      .setParameter("date", ORDER_DATE)
+                      .getSingleResult()));
+      assertEquals(LINES, walked);
+      assertFewStatements();
+   }
+
+   /**
+    * The database for a key schema, with an order of LINES lines in it, an empty shared cache, so
+    * that everything comes from the database, and the statement count at zero.
+    */
+   private static PersistenceManager open(String schema) {
+      PersistenceManager persistence = databases.computeIfAbsent(schema, FetchPlansTest::create);
+      persistence.getFactory().getCache().evictAll();
+      statements.set(0);
+      return persistence;
+   }
+
+   private static PersistenceManager create(String schema) {
+      Map<String, Object> properties = new HashMap<>();
+      properties.put("javax.persistence.jdbc.url", "jdbc:derby:memory:FetchPlansTest-" + schema + ";create=true");
+      properties.put("eclipselink.logging.level", "OFF");
+      properties.put(PersistenceManager.SCHEMA_PROPERTY, schema);
+      PersistenceManager persistence = PersistenceManager.create(properties);
+      persistence.inTransaction(manager -> {
+         Customers customer = new Customers("Brown", "Dave", "1250 Bellflower Blvd", "90840", "562-985-4111");
+         manager.persist(customer);
+         Orders order = new Orders(customer, ORDER_DATE, "Ann");
+         for (int i = 0; i < LINES; i++) {
+            Products product = new Products(String.format("9%011d", i), "Product " + i, "CSULB", "1",
+                    Money.of("9.99"), 100);
+            manager.persist(product);
+            order.addLine(product, 1);
+         }
+         manager.persist(order);
+         return null;
+      });
+      persistence.withEntityManager(manager -> {
+         manager.unwrap(JpaEntityManager.class).getServerSession().setProfiler(new StatementCounter());
+         return null;
+      });
+      return persistence;
+   }
+
+   /** Touch the order's customer, and each line's product, as a page showing the order would. */
+   private static int walk(Orders order) {
+      assertNotNull(order.getCustomer().getLast_name());
+      for (Order_lines line : order.getLines()) {
+         assertNotNull(line.getProduct().getProd_name());
+      }
+      return order.getLines().size();
+   }
+
+   private static void assertFewStatements() {
+      int count = statements.get();
+      assertTrue(count > 0, "nothing was read from the database; is the cache still warm?");
+      assertTrue(count <= MOST_STATEMENTS, "loading " + LINES + " lines took " + count
+              + " SQL statements; at most " + MOST_STATEMENTS + " were expected");
+   }
+
+   /**
+    * Counts the SQL statements that EclipseLink sends, which it prepares one at a time, whichever
+    * query they are for.
+    */
+   private static class StatementCounter extends SessionProfilerAdapter {
+      @Override
+      public void startOperationProfile(String operation, DatabaseQuery query, int weight) {
+         if (operation.equals(SessionProfiler.SqlPrepare)) {
+            statements.incrementAndGet();
+         }
+      }
+
+      @Override
+      public int getProfileWeight() {
+         return SessionProfiler.ALL;
+      }
+   }
+}
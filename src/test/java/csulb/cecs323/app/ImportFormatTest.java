@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Parsing lines of both ImportFormats: the quoting of CSV and the escapes of JSONL come out as
+ * the text they stand for, and a malformed line is refused with an IllegalArgumentException
+ * rather than read as something it is not.
+ */
+class ImportFormatTest {
+   private static final String[] HEADER = {"upc", "prod_name", "unit_list_price"};
+
+   @Test
+   void csvHeaderIsTrimmed() {
+      assertArrayEquals(HEADER, ImportFormat.parseHeader("upc, prod_name ,unit_list_price"));
+   }
+
+   @Test
+   void csvPlainAndEmptyFields() {
+      Map<String, String> record = ImportFormat.CSV.parse("100000000001,,9.99", HEADER);
+      assertEquals("100000000001", record.get("upc"));
+      assertEquals("", record.get("prod_name"));
+      assertEquals("9.99", record.get("unit_list_price"));
+   }
+
+   @Test
+   void csvQuotedFields() {
+      Map<String, String> record = ImportFormat.CSV.parse(
+              "100000000001,\"Widget, \"\"deluxe\"\"\",\"9.99\"", HEADER);
+      assertEquals("Widget, \"deluxe\"", record.get("prod_name"));
+      assertEquals("9.99", record.get("unit_list_price"));
+      assertEquals("\"", ImportFormat.CSV.parse("1,\"\"\"\",2", HEADER).get("prod_name"));
+   }
+
+   @Test
+   void csvUnterminatedQuote() {
+      IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+              () -> ImportFormat.CSV.parse("100000000001,\"Widget,9.99", HEADER));
+      assertEquals("Unterminated quoted field", e.getMessage());
+   }
+
+   @Test
+   void csvWrongNumberOfFields() {
+      IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+              () -> ImportFormat.CSV.parse("100000000001,Widget", HEADER));
+      assertEquals("Expected 3 fields but found 2", e.getMessage());
+      assertThrows(IllegalArgumentException.class,
+              () -> ImportFormat.CSV.parse("100000000001,Widget,9.99,extra", HEADER));
+   }
+
+   @Test
+   void jsonlValues() {
+      Map<String, String> record = ImportFormat.JSONL.parse(
+              " { \"upc\" : \"100000000001\", \"units_in_stock\": 12, \"active\":true, \"model\": null } ", null);
+      assertEquals(4, record.size());
+      assertEquals("100000000001", record.get("upc"));
+      assertEquals("12", record.get("units_in_stock"));
+      assertEquals("true", record.get("active"));
+      assertTrue(record.containsKey("model"));
+      assertNull(record.get("model"));
+      assertTrue(ImportFormat.JSONL.parse("{}", null).isEmpty());
+   }
+
+   @Test
+   void jsonlEscapes() {
+      Map<String, String> record = ImportFormat.JSONL.parse(
+              "{\"prod_name\": \"Zo\\u00eb's \\\"best\\\"\\tA\\\\B\\/C\\n\"}", null);
+      assertEquals("Zoë's \"best\"\tA\\B/C\n", record.get("prod_name"));
+   }
+
+   @Test
+   void jsonlMalformed() {
+      assertMalformed("{\"upc\": \"1\"", "Unexpected end of line at column 12");
+      assertMalformed("{\"upc\" \"1\"}", "Expected ':' at column 8");
+      assertMalformed("{\"upc\": \"1\" \"mfgr\": \"x\"}", "Expected ',' or '}' at column 13");
+      assertMalformed("{\"upc\": }", "Missing value at column 9");
+      assertMalformed("{\"upc\": [1]}", "Nested objects and arrays are not supported at column 9");
+      assertMalformed("{\"upc\": \"1\"} x", "Unexpected text after the object at column 14");
+      assertMalformed("[]", "Expected '{' at column 1");
+      assertMalformed("{\"upc\": \"\\u00e", "Truncated unicode escape at column 12");
+      assertThrows(IllegalArgumentException.class, () -> ImportFormat.JSONL.parse("{\"upc\": \"\\uzzzz\"}", null));
+   }
+
+   @Test
+   void formatForPath() {
+      assertEquals(ImportFormat.CSV, ImportFormat.forPath(Paths.get("catalog.CSV")));
+      assertEquals(ImportFormat.JSONL, ImportFormat.forPath(Paths.get("catalog.jsonl")));
+      assertEquals(ImportFormat.JSONL, ImportFormat.forPath(Paths.get("catalog.ndjson")));
+      assertEquals(ImportFormat.JSONL, ImportFormat.forPath(Paths.get("catalog.json")));
+      assertThrows(IllegalArgumentException.class, () -> ImportFormat.forPath(Paths.get("catalog.xml")));
+   }
+
+   private static void assertMalformed(String line, String message) {
+      IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+              () -> ImportFormat.JSONL.parse(line, null), line);
+      assertEquals(message, e.getMessage(), line);
+   }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Export the order lines of a small database, in both key schemas, and read the file back: every
+ * line comes back exactly as it is in the database, in customer_id and order_date order.
+ * <p>
+ * The exporter runs with more threads than the database has customers to split, and a fetch size
+ * of a few rows, so that the ranges, the cursors and the row groups all get exercised.
+ * </p>
+ */
+class OrderLinesExporterTest {
+   private static final LocalDateTime EPOCH = LocalDateTime.of(2021, 3, 1, 10, 0);
+
+   @ParameterizedTest
+   @ValueSource(strings = {"natural", "compact"})
+   void readsBackWhatWasExported(String schema, @TempDir Path directory) throws Exception {
+      try (PersistenceManager persistence = TestDatabase.open("OrderLinesExporterTest-" + schema, Backend.DERBY,
+              Collections.singletonMap(PersistenceManager.SCHEMA_PROPERTY, schema))) {
+         placeOrders(persistence);
+         List<String> expected = persistence.withEntityManager(manager -> {
+            List<String> lines = new ArrayList<>();
+            for (Order_lines line : manager.createQuery("SELECT ol FROM Order_lines ol", Order_lines.class)
+                    .getResultList()) {
+               Orders order = line.getOrder();
+               lines.add(format(order.getCustomer().getCustomer_id(), order.getOrder_date(), order.getSold_by(),
+                       line.getProduct().getUPC(), line.getQuantity(), line.getUnit_sale_price().getCents()));
+            }
+            return lines;
+         });
+
+         Path file = directory.resolve("order-lines.olx");
+         long exported = new OrderLinesExporter(persistence, 4, 7).export(file);
+         assertEquals(expected.size(), exported);
+         assertTrue(Files.exists(file));
+
+         List<String> read = new ArrayList<>();
+         List<Object[]> keys = new ArrayList<>();
+         long count = OrderLinesExporter.read(file, (customerId, orderDate, soldBy, upc, quantity, priceCents) -> {
+            read.add(format(customerId, orderDate, soldBy, upc, quantity, priceCents));
+            keys.add(new Object[]{customerId, orderDate});
+         });
+         assertEquals(expected.size(), count);
+         for (int i = 1; i < keys.size(); i++) {
+            long customer = (Long) keys.get(i)[0];
+            long previous = (Long) keys.get(i - 1)[0];
+            assertTrue(customer > previous || customer == previous
+                    && !((LocalDateTime) keys.get(i)[1]).isBefore((LocalDateTime) keys.get(i - 1)[1]),
+                    "lines in customer_id, order_date order at " + i);
+         }
+         Collections.sort(expected);
+         Collections.sort(read);
+         assertEquals(expected, read);
+      }
+   }
+
+   /**
+    * Add orders of a few lines each for a handful of customers, with order dates down to the
+    * nanosecond and names that are not all ASCII, to whatever the seed data has.
+    */
+   private static void placeOrders(PersistenceManager persistence) {
+      Random random = new Random(323);
+      persistence.inTransaction(manager -> {
+         List<Products> products = new ArrayList<>();
+         for (int i = 0; i < 12; i++) {
+            Products product = new Products(String.format("7%011d", i), "Product " + i, "CSULB", "M" + i,
+                    Money.ofCents(1 + random.nextInt(9999)), 1000);
+            manager.persist(product);
+            products.add(product);
+         }
+         for (int c = 0; c < 10; c++) {
+            Customers customer = new Customers("Brown", "Dave" + c, "1250 Bellflower Blvd", "90840", "562-985-4111");
+            manager.persist(customer);
+            for (int o = 0; o < 3; o++) {
+               Orders order = new Orders(customer, EPOCH.plusDays(o).plusNanos(random.nextInt(1_000_000_000)),
+                       c % 2 == 0 ? "Ann" : "Zoë");
+               for (int l = 1 + random.nextInt(4); l > 0; l--) {
+                  order.addLine(products.get(random.nextInt(products.size())), 1 + random.nextInt(5));
+               }
+               manager.persist(order);
+            }
+         }
+         return null;
+      });
+   }
+
+   private static String format(long customerId, LocalDateTime orderDate, String soldBy, String upc, int quantity,
+                                long priceCents) {
+      return customerId + " " + orderDate + " " + soldBy + " " + upc + " " + quantity + " " + priceCents;
+   }
+}
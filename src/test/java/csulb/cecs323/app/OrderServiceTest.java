@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+import org.eclipse.persistence.jpa.JpaCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Placing orders with OrderService, on each Backend: the order, its lines, the stock taken by
+ * ReserveStock and the DailyProductSales rollup are written together, or, when a product is short,
+ * none of them are; only the products ordered leave the shared cache; and orders racing for the
+ * last units of a product never sell more than there are, however their transactions collide.
+ */
+class OrderServiceTest {
+   private static final LocalDateTime ORDER_DATE = LocalDateTime.of(2021, 3, 1, 10, 0);
+
+   private static final String WIDGET = "100000000001";
+
+   private static final String GADGET = "100000000002";
+
+   /** Databases opened so far, so that each test gets a new one. */
+   private static final AtomicInteger databases = new AtomicInteger();
+
+   private PersistenceManager persistence;
+
+   private long customerId;
+
+   @AfterEach
+   void close() {
+      if (persistence != null) {
+         persistence.close();
+      }
+   }
+
+   @ParameterizedTest
+   @EnumSource(Backend.class)
+   void placesOrder(Backend backend) {
+      open(backend, 10);
+      Orders order = new OrderService(persistence).placeOrder(new Basket(customerId, "Ann", ORDER_DATE)
+              .add(WIDGET, 3)
+              .add(GADGET, 2));
+      assertEquals(2, order.getLines().size());
+
+      assertEquals(7, stockOf(WIDGET));
+      assertEquals(8, stockOf(GADGET));
+      persistence.withEntityManager(manager -> {
+         Orders placed = manager.createQuery("SELECT o FROM Orders o WHERE o.order_date = :date", Orders.class)
+                 .setParameter("date", ORDER_DATE)
+                 .getSingleResult();
+         assertEquals(customerId, placed.getCustomer().getCustomer_id());
+         assertEquals(2, placed.getLines().size());
+         DailyProductSales sales = manager.find(DailyProductSales.class,
+                 new DailyProductSales_pk(WIDGET, ORDER_DATE.toLocalDate()));
+         assertEquals(3, sales.getUnits());
+         assertEquals(Money.of("29.97"), sales.getRevenue());
+         return null;
+      });
+   }
+
+   @ParameterizedTest
+   @EnumSource(Backend.class)
+   void evictsOnlyTheProductsOrdered(Backend backend) {
+      open(backend, 10);
+      JpaCache cache = (JpaCache) persistence.getFactory().getCache();
+      persistence.withEntityManager(manager -> {
+         manager.find(Products.class, WIDGET);
+         return manager.find(Products.class, GADGET);
+      });
+      assertTrue(cache.isValid(Products.class, GADGET));
+      new OrderService(persistence).placeOrder(new Basket(customerId, "Ann", ORDER_DATE).add(WIDGET, 3));
+
+      // ReserveStock leaves the gadget alone, and the widget is read again with its new stock.
+      assertTrue(cache.isValid(Products.class, GADGET));
+      assertFalse(cache.contains(Products.class, WIDGET));
+      int units = persistence.withEntityManager(manager -> manager.find(Products.class, WIDGET).getUnits_in_stock());
+      assertEquals(7, units);
+   }
+
+   @ParameterizedTest
+   @EnumSource(Backend.class)
+   void refusesOrderShortOfStock(Backend backend) {
+      open(backend, 5);
+      InsufficientStockException e = assertThrows(InsufficientStockException.class,
+              () -> new OrderService(persistence).placeOrder(new Basket(customerId, "Ann", ORDER_DATE)
+                      .add(WIDGET, 3)
+                      .add(GADGET, 6)));
+      assertEquals(GADGET, e.getUpc());
+      assertEquals(6, e.getRequested());
+
+      // The widgets that ReserveStock took before the gadgets ran short went back with the rollback.
+      assertEquals(5, stockOf(WIDGET));
+      assertEquals(5, stockOf(GADGET));
+      long orders = persistence.withEntityManager(manager ->
+              manager.createQuery("SELECT COUNT(o) FROM Orders o", Long.class).getSingleResult());
+      assertEquals(0, orders);
+   }
+
+   @ParameterizedTest
+   @EnumSource(Backend.class)
+   void racingOrdersNeverOversell(Backend backend) throws Exception {
+      int stock = 20;
+      int threads = 8;
+      int ordersPerThread = 5;
+      open(backend, stock);
+      // Lock conflicts are retried until there is no stock left to fight over.
+      OrderService service = new OrderService(persistence, null, 50);
+      AtomicInteger placed = new AtomicInteger();
+      AtomicInteger refused = new AtomicInteger();
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+         List<Future<?>> futures = new ArrayList<>();
+         for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+               for (int i = 0; i < ordersPerThread; i++) {
+                  LocalDateTime orderDate = ORDER_DATE.plusSeconds(thread * ordersPerThread + i);
+                  try {
+                     service.placeOrder(new Basket(customerId, "Ann", orderDate).add(WIDGET, 1));
+                     placed.incrementAndGet();
+                  } catch (InsufficientStockException e) {
+                     refused.incrementAndGet();
+                  }
+               }
+            }));
+         }
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } finally {
+         executor.shutdown();
+      }
+
+      assertEquals(stock, placed.get());
+      assertEquals(threads * ordersPerThread - stock, refused.get());
+      assertEquals(0, stockOf(WIDGET));
+      persistence.withEntityManager(manager -> {
+         assertEquals(Long.valueOf(stock),
+                 manager.createQuery("SELECT SUM(ol.quantity) FROM Order_lines ol", Long.class).getSingleResult());
+         DailyProductSales sales = manager.find(DailyProductSales.class,
+                 new DailyProductSales_pk(WIDGET, ORDER_DATE.toLocalDate()));
+         assertEquals(stock, sales.getUnits());
+         return null;
+      });
+   }
+
+   /** Open a new database with a customer, and stock of the widget and the gadget. */
+   private void open(Backend backend, int stock) {
+      persistence = TestDatabase.open("OrderServiceTest" + databases.incrementAndGet(), backend);
+      customerId = persistence.inTransaction(manager -> {
+         Customers customer = new Customers("Brown", "Dave", "1250 Bellflower Blvd", "90840", "562-985-4111");
+         manager.persist(customer);
+         manager.persist(new Products(WIDGET, "Widget", "CSULB", "W1", Money.of("9.99"), stock));
+         manager.persist(new Products(GADGET, "Gadget", "CSULB", "G1", Money.of("24.50"), stock));
+         return customer;
+      }).getCustomer_id();
+   }
+
+   private int stockOf(String upc) {
+      return persistence.withEntityManager(manager -> manager.createQuery(
+              "SELECT p.units_in_stock FROM Products p WHERE p.UPC = :upc", Integer.class)
+              .setParameter("upc", upc)
+              .getSingleResult());
+   }
+}
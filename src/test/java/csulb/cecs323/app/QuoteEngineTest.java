@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.*;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A QuoteEngine refresh, on each Backend, finds every kind of change to the products: one made
+ * through the entity, one made by ReserveStock for an order, and a new product; and every one of
+ * them has a change number from ProductChanges, higher than any before it.
+ */
+class QuoteEngineTest {
+   private static final String WIDGET = "200000000001";
+
+   private static final String GADGET = "200000000002";
+
+   private static final String DOOHICKEY = "200000000003";
+
+   @ParameterizedTest
+   @EnumSource(Backend.class)
+   void refreshFindsEveryChange(Backend backend) {
+      try (PersistenceManager persistence = TestDatabase.open("QuoteEngineTest-" + backend, backend)) {
+         long customerId = persistence.inTransaction(manager -> {
+            Customers customer = new Customers("Brown", "Dave", "1250 Bellflower Blvd", "90840", "562-985-4111");
+            manager.persist(customer);
+            manager.persist(new Products(WIDGET, "Widget", "CSULB", "W1", Money.of("9.99"), 10));
+            manager.persist(new Products(GADGET, "Gadget", "CSULB", "G1", Money.of("24.50"), 10));
+            return customer;
+         }).getCustomer_id();
+         long first = changeNumberOf(persistence, WIDGET);
+         assertTrue(first > 0, "an insert takes a change number");
+
+         // Refresh by hand only; nothing here needs long to commit.
+         try (QuoteEngine quotes = new QuoteEngine(persistence, Duration.ofHours(1), Duration.ZERO)) {
+            assertEquals(2, quotes.size());
+            String[] upcs = {WIDGET, GADGET};
+            int[] quantities = {1, 1};
+            assertEquals(999 + 2450, quotes.totalCents(upcs, quantities, 2));
+
+            persistence.inTransaction(manager -> {
+               manager.find(Products.class, WIDGET).setUnit_list_price(Money.of("8.99"));
+               return null;
+            });
+            long repriced = changeNumberOf(persistence, WIDGET);
+            assertTrue(repriced > changeNumberOf(persistence, GADGET), "an update takes a new change number");
+
+            new OrderService(persistence).placeOrder(new Basket(customerId, "Ann", LocalDateTime.of(2021, 3, 1, 10, 0))
+                    .add(GADGET, 4));
+            assertTrue(changeNumberOf(persistence, GADGET) > repriced, "ReserveStock sets a new change number");
+
+            persistence.inTransaction(manager -> {
+               manager.persist(new Products(DOOHICKEY, "Doohickey", "CSULB", "D1", Money.of("1.25"), 3));
+               return null;
+            });
+
+            assertEquals(3, quotes.refresh());
+            assertEquals(3, quotes.size());
+            assertEquals(899 + 2450, quotes.totalCents(upcs, quantities, 2));
+            assertTrue(quotes.isInStock(new String[]{GADGET}, new int[]{6}, 1));
+            assertFalse(quotes.isInStock(new String[]{GADGET}, new int[]{7}, 1));
+            assertEquals(125, quotes.totalCents(new String[]{DOOHICKEY}, new int[]{1}, 1));
+         }
+      }
+   }
+
+   private static long changeNumberOf(PersistenceManager persistence, String upc) {
+      return persistence.withEntityManager(manager -> manager.createQuery(
+              "SELECT p.change_number FROM Products p WHERE p.UPC = :upc", Long.class)
+              .setParameter("upc", upc)
+              .getSingleResult());
+   }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.eclipse.persistence.jpa.JpaEntityManagerFactory;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * SchemaValidator on each Backend, whose metadata differ in the case of their names: a schema
+ * made from the entities passes, one that has lost a table and a column does not, and the PROD
+ * profile will not start on it.
+ */
+class SchemaValidatorTest {
+   private static final Map<String, String> PROD = Collections.singletonMap(RuntimeProfile.PROFILE_PROPERTY, "prod");
+
+   @ParameterizedTest
+   @EnumSource(Backend.class)
+   void acceptsSchemaMadeFromEntities(Backend backend) {
+      String name = "SchemaValidatorTest-fresh-" + backend;
+      try (PersistenceManager persistence = TestDatabase.open(name, backend)) {
+         assertEquals(Collections.emptyList(), validate(persistence));
+      }
+      // PROD leaves the tables alone, and checks them at start up.
+      try (PersistenceManager persistence = TestDatabase.open(name, backend, PROD)) {
+         assertEquals(RuntimeProfile.PROD, persistence.getProfile());
+      }
+   }
+
+   @ParameterizedTest
+   @EnumSource(Backend.class)
+   void reportsMissingTableAndColumn(Backend backend) {
+      String name = "SchemaValidatorTest-stale-" + backend;
+      try (PersistenceManager persistence = TestDatabase.open(name, backend)) {
+         persistence.inTransaction(manager -> {
+            manager.createNativeQuery("DROP TABLE DAILYPRODUCTSALES").executeUpdate();
+            manager.createNativeQuery("ALTER TABLE PRODUCTS DROP COLUMN UNITS_IN_STOCK").executeUpdate();
+            return null;
+         });
+         List<String> problems = validate(persistence);
+         assertEquals(2, problems.size(), problems::toString);
+         assertTrue(mentions(problems, "Table DAILYPRODUCTSALES"), problems::toString);
+         assertTrue(mentions(problems, "Column PRODUCTS.UNITS_IN_STOCK"), problems::toString);
+      }
+      IllegalStateException e = assertThrows(IllegalStateException.class,
+              () -> TestDatabase.open(name, backend, PROD).close());
+      assertTrue(e.getMessage().toUpperCase(Locale.ROOT).contains("PRODUCTS.UNITS_IN_STOCK"), e::getMessage);
+   }
+
+   /** Validate the schema the way PersistenceManager does at start up. */
+   private static List<String> validate(PersistenceManager persistence) {
+      return persistence.inTransaction(manager -> {
+         try {
+            return SchemaValidator.validate(
+                    persistence.getFactory().unwrap(JpaEntityManagerFactory.class).getServerSession(),
+                    manager.unwrap(Connection.class));
+         } catch (SQLException e) {
+            throw new IllegalStateException("Could not read the database schema", e);
+         }
+      });
+   }
+
+   /** Whether any of the problems starts with the text, whatever the case of its names. */
+   private static boolean mentions(List<String> problems, String text) {
+      String upperCase = text.toUpperCase(Locale.ROOT);
+      return problems.stream().anyMatch(problem -> problem.toUpperCase(Locale.ROOT).startsWith(upperCase));
+   }
+}
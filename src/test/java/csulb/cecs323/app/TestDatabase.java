@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Opens the CustomerOrders persistence unit against an in-memory database for a Backend, so that
+ * the tests that take a Backend run on each of them.
+ * <p>
+ * DERBY is Derby.  MYSQL is H2 in its MySQL compatibility mode, standing in for a MySQL server, as
+ * in the benchmarks (see BenchmarkDatabase): EclipseLink generates MySQL SQL for it, the way it
+ * would for the real thing, but the Connector/J tuning is not applied.
+ * </p>
+ */
+final class TestDatabase {
+   private TestDatabase() {}
+
+   /**
+    * Open an in-memory database, creating it if it is not there yet.  The RuntimeProfile decides
+    * what happens to its tables, as it would for any other database.
+    * @param name       The name of the database; opening the same name again opens the same one.
+    * @param backend    The backend to run against.
+    * @param overrides  Any further persistence unit properties.
+    * @return           A PersistenceManager over the database.
+    */
+   static PersistenceManager open(String name, Backend backend, Map<String, ?> overrides) {
+      Map<String, Object> properties = new HashMap<>();
+      properties.put(Backend.BACKEND_PROPERTY, backend.name());
+      switch (backend) {
+         case DERBY:
+            properties.put("javax.persistence.jdbc.url", "jdbc:derby:memory:" + name + ";create=true");
+            break;
+         case MYSQL:
+            properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+            properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:" + name + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+            break;
+         default:
+            throw new IllegalArgumentException("No test database for " + backend);
+      }
+      properties.put("eclipselink.logging.level", "OFF");
+      properties.putAll(overrides);
+      return PersistenceManager.create(properties);
+   }
+
+   /**
+    * Open an in-memory database with the current RuntimeProfile, which, unless it is PROD, makes
+    * the tables afresh from the entities.
+    * @param name       The name of the database; use a different one for each test.
+    * @param backend    The backend to run against.
+    * @return           A PersistenceManager over the database.
+    */
+   static PersistenceManager open(String name, Backend backend) {
+      return open(name, backend, new HashMap<>());
+   }
+}
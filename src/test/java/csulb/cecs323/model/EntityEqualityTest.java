@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Properties of equals and hashCode of the keys and the entities that hash-based collections and
+ * the persistence context lean on, checked over random values.  Each value type has a generator,
+ * a way to make an equal copy that is a different object, and the key that equals is meant to
+ * compare on.  The values are drawn from small ranges, so that random pairs are often equal.
+ * <p>
+ * The generators are seeded, so a failure is the same on every run.
+ * </p>
+ */
+class EntityEqualityTest {
+   /** Random pairs checked per property. */
+   private static final int TRIALS = 20_000;
+
+   /** Distinct values put in the large collections. */
+   private static final int LARGE = 100_000;
+
+   /**
+    * The most distinct values that may share one hash code among LARGE of them.  Anything near a
+    * constant bound keeps a HashMap lookup O(1); a broken hashCode puts them all in one.
+    */
+   private static final int MAX_SHARING_A_HASH = 8;
+
+   private static final LocalDateTime EPOCH = LocalDateTime.of(2021, 1, 1, 0, 0);
+
+   private final Random random = new Random(323);
+
+   @Test
+   void ordersPkEqualsAndHashCode() {
+      checkEqualityContract(this::randomOrdersPk, this::copy, pk -> List.of(pk.getCustomer(), pk.getOrder_date()));
+   }
+
+   @Test
+   void orderLinesPkEqualsAndHashCode() {
+      checkEqualityContract(this::randomOrderLinesPk, this::copy,
+              pk -> List.of(pk.getOrder().getCustomer(), pk.getOrder().getOrder_date(), pk.getProduct()));
+   }
+
+   @Test
+   void customersEqualsAndHashCode() {
+      checkEqualityContract(this::randomCustomer, this::copy, Customers::getCustomer_id);
+   }
+
+   @Test
+   void ordersEqualsAndHashCode() {
+      checkEqualityContract(this::randomOrder, this::copy,
+              order -> List.of(order.getCustomer().getCustomer_id(), order.getOrder_date()));
+   }
+
+   @Test
+   void orderLinesEqualsAndHashCode() {
+      checkEqualityContract(this::randomLine, this::copy,
+              line -> List.of(line.getOrder().getCustomer().getCustomer_id(), line.getOrder().getOrder_date(),
+                      line.getProduct().getUPC()));
+   }
+
+   @Test
+   void keysHashTheSameEveryTime() {
+      for (int i = 0; i < TRIALS; i++) {
+         Order_lines_pk pk = randomOrderLinesPk();
+         int first = pk.hashCode();
+         assertEquals(first, pk.hashCode());
+         assertEquals(first, copy(pk).hashCode());
+      }
+   }
+
+   @Test
+   void largeCollectionsOfOrdersPkDedupeAndLookUp() {
+      checkLargeCollections(i -> new Orders_pk(i % 1000, EPOCH.plusMinutes(i / 1000)), this::copy);
+   }
+
+   @Test
+   void largeCollectionsOfOrderLinesPkDedupeAndLookUp() {
+      checkLargeCollections(i -> new Order_lines_pk(new Orders_pk(i % 500, EPOCH.plusMinutes(i / 5000)),
+              upc(i / 500 % 10)), this::copy);
+   }
+
+   @Test
+   void largeCollectionsOfOrderLinesDedupeAndLookUp() {
+      checkLargeCollections(i -> line(i % 500, EPOCH.plusMinutes(i / 5000), upc(i / 500 % 10), 1), this::copy);
+   }
+
+   /** Adding a product that is already in an order adds to its line rather than making another. */
+   @Test
+   void addLineMergesLinesForTheSameProduct() {
+      Orders order = new Orders(customer(1, "Brown", "Dave"), EPOCH, "Ann");
+      Order_lines first = order.addLine(product(upc(7)), 2);
+      Order_lines again = order.addLine(product(upc(7)), 3);
+      assertSame(first, again);
+      assertEquals(5, first.getQuantity());
+      assertEquals(1, order.getLines().size());
+   }
+
+   /**
+    * The properties of equals and hashCode, over TRIALS random pairs: equals is reflexive,
+    * symmetric and transitive; it agrees with the key; equal values hash the same; and nothing is
+    * equal to null or to a value of another class.
+    */
+   private <T> void checkEqualityContract(Supplier<T> generator, Function<T, T> copy,
+                                          Function<T, Object> key) {
+      int equalPairs = 0;
+      for (int i = 0; i < TRIALS; i++) {
+         T a = generator.get();
+         T b = generator.get();
+         T aCopy = copy.apply(a);
+         T aCopyCopy = copy.apply(aCopy);
+         assertNotSame(a, aCopy);
+
+         assertEquals(a, a, "reflexive");
+         assertEquals(a, aCopy, "equal to a copy");
+         assertEquals(aCopy, a, "symmetric with a copy");
+         assertEquals(a, aCopyCopy, "transitive");
+         assertEquals(a.hashCode(), aCopy.hashCode(), "copies hash the same");
+
+         boolean equal = key.apply(a).equals(key.apply(b));
+         assertEquals(equal, a.equals(b), () -> "equals agrees with the key: " + a + " and " + b);
+         assertEquals(a.equals(b), b.equals(a), "symmetric");
+         if (equal) {
+            equalPairs++;
+            assertEquals(a.hashCode(), b.hashCode(), () -> "equal values hash the same: " + a + " and " + b);
+         }
+
+         assertNotEquals(null, a);
+         assertFalse(a.equals(null));
+         assertFalse(a.equals(new Object()));
+      }
+      // Otherwise the generator is too spread out to test equal pairs that are not copies.
+      assertTrue(equalPairs > 0, "no random pair was equal");
+   }
+
+   /**
+    * LARGE distinct values, and a copy of each, go into a HashSet and a HashMap: the set keeps one
+    * of each, the map finds each value by its copy, and few values share a hash code.
+    */
+   private <T> void checkLargeCollections(IntFunction<T> value, Function<T, T> copy) {
+      Set<T> set = new HashSet<>();
+      Map<T, Integer> map = new HashMap<>();
+      Map<Integer, Integer> sharing = new HashMap<>();
+      for (int i = 0; i < LARGE; i++) {
+         T t = value.apply(i);
+         set.add(t);
+         set.add(copy.apply(t));
+         map.put(t, i);
+         sharing.merge(t.hashCode(), 1, Integer::sum);
+      }
+      assertEquals(LARGE, set.size(), "the set has one of each value");
+      assertEquals(LARGE, map.size());
+      for (int i = 0; i < LARGE; i++) {
+         T lookup = copy.apply(value.apply(i));
+         assertEquals(Integer.valueOf(i), map.get(lookup), () -> "found by an equal copy: " + lookup);
+         assertTrue(set.contains(lookup));
+      }
+      int most = sharing.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+      assertTrue(most <= MAX_SHARING_A_HASH, "at most " + MAX_SHARING_A_HASH + " values share a hash code, not " + most);
+   }
+
+   private Orders_pk randomOrdersPk() {
+      return new Orders_pk(random.nextInt(20), EPOCH.plusMinutes(random.nextInt(20)));
+   }
+
+   private Order_lines_pk randomOrderLinesPk() {
+      return new Order_lines_pk(randomOrdersPk(), upc(random.nextInt(5)));
+   }
+
+   private Customers randomCustomer() {
+      // Customers are equal on their ID alone, so the names vary independently of it.
+      return customer(random.nextInt(50), "Last" + random.nextInt(3), "First" + random.nextInt(3));
+   }
+
+   private Orders randomOrder() {
+      return new Orders(customer(random.nextInt(10), "Brown", "Dave"), EPOCH.plusMinutes(random.nextInt(10)),
+              "Ann");
+   }
+
+   private Order_lines randomLine() {
+      return line(random.nextInt(5), EPOCH.plusMinutes(random.nextInt(5)), upc(random.nextInt(5)),
+              1 + random.nextInt(3));
+   }
+
+   private Orders_pk copy(Orders_pk pk) {
+      return new Orders_pk(pk.getCustomer(), pk.getOrder_date());
+   }
+
+   private Order_lines_pk copy(Order_lines_pk pk) {
+      // A new String, so that equals cannot get away with ==.
+      return new Order_lines_pk(copy(pk.getOrder()), new String(pk.getProduct()));
+   }
+
+   private Customers copy(Customers customer) {
+      return customer(customer.getCustomer_id(), customer.getLast_name(), customer.getFirst_name());
+   }
+
+   private Orders copy(Orders order) {
+      return new Orders(copy(order.getCustomer()), order.getOrder_date(), order.getSold_by());
+   }
+
+   private Order_lines copy(Order_lines line) {
+      return new Order_lines(product(new String(line.getProduct().getUPC())), copy(line.getOrder()),
+              line.getQuantity());
+   }
+
+   private static Order_lines line(long customerId, LocalDateTime orderDate, String upc, int quantity) {
+      Orders order = new Orders(customer(customerId, "Brown", "Dave"), orderDate, "Ann");
+      return new Order_lines(product(upc), order, quantity);
+   }
+
+   private static Customers customer(long id, String lastName, String firstName) {
+      Customers customer = new Customers(lastName, firstName, "1250 Bellflower Blvd", "90840", "562-985-4111");
+      customer.setCustomer_id(id);
+      return customer;
+   }
+
+   private static Products product(String upc) {
+      return new Products(upc, "Product " + upc, "CSULB", "1", Money.of("9.99"), 100);
+   }
+
+   private static String upc(int i) {
+      char[] digits = new char[12];
+      Arrays.fill(digits, '0');
+      String number = Integer.toString(i);
+      number.getChars(0, number.length(), digits, digits.length - number.length());
+      return new String(digits);
+   }
+}